@@ -18,6 +18,7 @@ import com.arecmetafora.getmethere.AugmentedRealityCompass;
 import com.arecmetafora.getmethere.Map;
 import com.arecmetafora.getmethere.Compass;
 import com.arecmetafora.getmethere.CompassSensor;
+import com.arecmetafora.getmethere.CompassSensorHub;
 import com.arecmetafora.getmethere.GeoURI;
 import com.arecmetafora.getmethere.OfflineGoogleMaps;
 import com.arecmetafora.getmethere.OfflineMap;
@@ -25,11 +26,15 @@ import com.arecmetafora.getmethere.OfflineMap;
 public class GetMeThereActivity extends AppCompatActivity implements CompassSensor.RotationCallback {
 
     private Map mMap;
+    private OfflineMap mOfflineMap;
     private Compass mCompass;
     private Location mLocationToTrack;
-    private CompassSensor mCompassSensor;
+    private CompassSensorHub.Registration mCompassSensor;
 
     private static final int ANGLE_CHANGE_LAYOUT = 60;
+    private static final float ROTATION_CHECK_RATE = 4;
+    private static final float ROTATION_CHECK_MIN_ANGLE_CHANGE = 2;
+    private static final float POSITION_INTERPOLATION_RATE = 5;
     private static boolean sUsingAR = false;
 
     private final float[] mOrientationData = new float[3];
@@ -76,9 +81,15 @@ public class GetMeThereActivity extends AppCompatActivity implements CompassSens
         mMap = findViewById(R.id.map);
         AugmentedRealityCompass mAugmetedRealityCompass = findViewById(R.id.augmented_reality_compass);
 
-        mCompassSensor = CompassSensor.from(this, (LifecycleOwner) this)
-                .bindTo(this)
+        // The sensor is shared by the activity instances, so switching modes finds it warm
+        mCompassSensor = CompassSensorHub.get(this).register((LifecycleOwner) this)
                 .track(mLocationToTrack);
+        mCompassSensor.getSensor().setPositionInterpolationRate(POSITION_INTERPOLATION_RATE);
+
+        // Picking between compass and augmented reality modes does not need every rotation
+        mCompassSensor.subscribe(this)
+                .setMaxRate(ROTATION_CHECK_RATE)
+                .setMinAngleChange(ROTATION_CHECK_MIN_ANGLE_CHANGE);
 
         if(mCompass != null) {
             mCompassSensor.bindTo(mCompass);
@@ -91,6 +102,9 @@ public class GetMeThereActivity extends AppCompatActivity implements CompassSens
         if(mMap != null) {
             mCompassSensor.bindTo(mMap);
             mMap.setOfflineMap(offlineMap);
+            mOfflineMap = offlineMap;
+        } else if(offlineMap != null) {
+            offlineMap.recycle();
         }
         if(mAugmetedRealityCompass != null) {
             mCompassSensor.bindTo(mAugmetedRealityCompass);
@@ -125,7 +139,7 @@ public class GetMeThereActivity extends AppCompatActivity implements CompassSens
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
-        mCompassSensor.start();
+        mCompassSensor.restart();
     }
 
     @Override
@@ -133,11 +147,28 @@ public class GetMeThereActivity extends AppCompatActivity implements CompassSens
         super.onActivityResult(requestCode, resultCode, data);
         if(resultCode == RESULT_OK) {
             if(mMap != null) {
-                mMap.setOfflineMap(OfflineGoogleMaps.fromLocation(this, mLocationToTrack));
+                OfflineMap offlineMap = OfflineGoogleMaps.fromLocation(this, mLocationToTrack);
+                if(offlineMap != null) {
+                    // The map view does not own its maps, so the replaced one is recycled here
+                    mMap.setOfflineMap(offlineMap);
+                    if(mOfflineMap != null) {
+                        mOfflineMap.recycle();
+                    }
+                    mOfflineMap = offlineMap;
+                }
             }
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if(mOfflineMap != null) {
+            mOfflineMap.recycle();
+            mOfflineMap = null;
+        }
+    }
+
     @Override
     public void onTrackingNewLocation(Location location) {
     }
@@ -152,11 +183,9 @@ public class GetMeThereActivity extends AppCompatActivity implements CompassSens
         double pitchAngle = Math.abs(Math.toDegrees(mOrientationData[1]));
         if(!sUsingAR && pitchAngle > ANGLE_CHANGE_LAYOUT) {
             sUsingAR = true;
-            mCompassSensor.stop();
             recreate();
         } else if(sUsingAR && pitchAngle < ANGLE_CHANGE_LAYOUT) {
             sUsingAR = false;
-            mCompassSensor.stop();
             recreate();
         }
     }
@@ -0,0 +1,100 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import com.arecmetafora.getmethere.Angles;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the angle math of the bearing hot path, against the {@link Math} equivalents.
+ * Each operation processes a batch of {@value #COUNT} angles.
+ */
+@State(Scope.Thread)
+public class AngleBenchmark {
+
+    private static final int COUNT = 1024;
+
+    private final float[] mDegrees = new float[COUNT];
+    private final float[] mX = new float[COUNT];
+    private final float[] mY = new float[COUNT];
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        for (int i = 0; i < COUNT; i++) {
+            mDegrees[i] = random.nextFloat() * 720 - 360;
+            mX[i] = (float) random.nextGaussian();
+            mY[i] = (float) random.nextGaussian();
+        }
+    }
+
+    @Benchmark
+    public float fastSinCos() {
+        float sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            sum += Angles.sinDegrees(mDegrees[i]) + Angles.cosDegrees(mDegrees[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float mathSinCos() {
+        float sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            double radians = Math.toRadians(mDegrees[i]);
+            sum += (float) Math.sin(radians) + (float) Math.cos(radians);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float fastAtan2() {
+        float sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            sum += Angles.atan2Degrees(mY[i], mX[i]);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float mathAtan2() {
+        float sum = 0;
+        for (int i = 0; i < COUNT; i++) {
+            sum += (float) Math.toDegrees(Math.atan2(mY[i], mX[i]));
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public float shortestArc() {
+        float sum = 0;
+        for (int i = 1; i < COUNT; i++) {
+            sum += Angles.shortestArc(mDegrees[i - 1], mDegrees[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Baseline of {@link #shortestArc()}: the former quadrant unwrapping of the compass animations.
+     */
+    @Benchmark
+    public float quadrantUnwrapping() {
+        float sum = 0;
+        for (int i = 1; i < COUNT; i++) {
+            float oldAngle = (mDegrees[i - 1] + 360) % 360;
+            float newAngle = (mDegrees[i] + 360) % 360;
+            if (oldAngle > 270 && newAngle < 90) {
+                newAngle += 360;
+            }
+            if (newAngle > 270 && oldAngle < 90) {
+                oldAngle += 360;
+            }
+            sum += newAngle - oldAngle;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,50 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import com.arecmetafora.getmethere.DeclinationCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the magnetic declination, as computed for every compass sensor event: the direct evaluation of
+ * the World Magnetic Model against its cache. Locations jitter around a walking user, like GPS fixes.
+ */
+@State(Scope.Thread)
+public class DeclinationBenchmark {
+
+    private static final int COUNT = 1024;
+
+    private final double[] mLatitudes = new double[COUNT];
+    private final double[] mLongitudes = new double[COUNT];
+    private long mTime;
+    private DeclinationCache mCache;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(0);
+        for (int i = 0; i < COUNT; i++) {
+            mLatitudes[i] = -23.561414 + random.nextGaussian() * 0.001;
+            mLongitudes[i] = -46.655881 + random.nextGaussian() * 0.001;
+        }
+        mTime = 1514764800000L;
+        mCache = new DeclinationCache(DeclinationCache.WORLD_MAGNETIC_MODEL);
+    }
+
+    @Benchmark
+    public float direct() {
+        int i = mIndex++ & (COUNT - 1);
+        return DeclinationCache.WORLD_MAGNETIC_MODEL.getDeclination(
+                (float) mLatitudes[i], (float) mLongitudes[i], 760, mTime);
+    }
+
+    @Benchmark
+    public float cached() {
+        int i = mIndex++ & (COUNT - 1);
+        return mCache.getDeclination(mLatitudes[i], mLongitudes[i], 760, mTime);
+    }
+}
@@ -0,0 +1,86 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import android.location.Location;
+
+import com.arecmetafora.getmethere.ECEF;
+import com.arecmetafora.getmethere.EnuFrame;
+import com.arecmetafora.getmethere.PointsOfInterest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the ECEF and ENU conversions, used by the augmented reality compass.
+ */
+@State(Scope.Thread)
+@SuppressWarnings("deprecation")
+public class EnuBenchmark {
+
+    private static final int POINTS_OF_INTEREST = 256;
+
+    private Location mMyLocation;
+    private Location mLocation;
+    private EnuFrame mFrame;
+    private float[] mEnu;
+    private PointsOfInterest mPointsOfInterest;
+    private float[] mPointsOfInterestEnu;
+
+    @Setup
+    public void setUp() {
+        mMyLocation = new Location("");
+        mMyLocation.setLatitude(-23.561414);
+        mMyLocation.setLongitude(-46.655881);
+        mMyLocation.setAltitude(760);
+
+        mLocation = new Location("");
+        mLocation.setLatitude(-23.560912);
+        mLocation.setLongitude(-46.657263);
+        mLocation.setAltitude(760);
+
+        mFrame = new EnuFrame(mMyLocation.getLatitude(), mMyLocation.getLongitude(), mMyLocation.getAltitude());
+        mEnu = new float[4];
+
+        Random random = new Random(42);
+        mPointsOfInterest = new PointsOfInterest(POINTS_OF_INTEREST);
+        for (int i = 0; i < POINTS_OF_INTEREST; i++) {
+            mPointsOfInterest.add(
+                    mMyLocation.getLatitude() + (random.nextDouble() - 0.5) * 0.02,
+                    mMyLocation.getLongitude() + (random.nextDouble() - 0.5) * 0.02,
+                    Double.NaN);
+        }
+        mPointsOfInterestEnu = new float[4 * POINTS_OF_INTEREST];
+    }
+
+    @Benchmark
+    public float[] ecefFromWSG84() {
+        return ECEF.fromWSG84(mLocation);
+    }
+
+    @Benchmark
+    public float[] ecefToENU() {
+        return ECEF.toENU(mMyLocation, ECEF.fromWSG84(mMyLocation), ECEF.fromWSG84(mLocation));
+    }
+
+    @Benchmark
+    public EnuFrame enuFrameSetOrigin() {
+        return mFrame.setOrigin(mMyLocation.getLatitude(), mMyLocation.getLongitude(), mMyLocation.getAltitude());
+    }
+
+    @Benchmark
+    public float[] enuFrameToENU() {
+        mFrame.toENU(mLocation.getLatitude(), mLocation.getLongitude(), mLocation.getAltitude(), mEnu, 0);
+        return mEnu;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS_OF_INTEREST)
+    public float[] pointsOfInterestToENU() {
+        mPointsOfInterest.toENU(mFrame, mPointsOfInterestEnu);
+        return mPointsOfInterestEnu;
+    }
+}
@@ -0,0 +1,35 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import com.arecmetafora.getmethere.Histogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Benchmarks of the metrics recorded on the hot path of the compass sensor, alone and contended by the delivery
+ * threads, which also record the dispatch latency.
+ */
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private final Histogram mHistogram = new Histogram();
+    private long mDuration = 12345;
+
+    @Benchmark
+    public void record() {
+        mHistogram.record(mDuration++ & 0xFFFFFF);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended() {
+        mHistogram.record(mDuration++ & 0xFFFFFF);
+    }
+
+    @Benchmark
+    public long percentile() {
+        return mHistogram.getPercentile(99);
+    }
+}
@@ -0,0 +1,106 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import android.net.Uri;
+
+import com.arecmetafora.getmethere.GeoURI;
+import com.arecmetafora.getmethere.GeoURIImporter;
+import com.arecmetafora.getmethere.OfflineGoogleMaps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmarks of the parsing of geo URIs and cached map file names.
+ * The {@code regex} benchmarks measure the former regular expression based parser, as a baseline.
+ */
+@State(Scope.Thread)
+public class ParsingBenchmark {
+
+    private Uri mGeoUri;
+    private Uri mGeoUriWithQuery;
+    private String mCacheFileName;
+    private String mGeoUriList;
+    private GeoURIImporter mImporter;
+
+    private static final int GEO_URI_LIST_SIZE = 1000;
+
+    @Setup
+    public void setUp() throws IOException {
+        mGeoUri = Uri.parse("geo:-23.561414,-46.655881");
+        mGeoUriWithQuery = Uri.parse("geo:0,0?q=-33.4390426969755,-70.6447425484657(Park%20Plaza%20Apart%20Hotel)");
+        mCacheFileName = "map(-23.561414,-46.655881,15) - Avenida Paulista.png";
+
+        Random random = new Random(0);
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < GEO_URI_LIST_SIZE; i++) {
+            // The former parser accepts neither URI parameters nor negative altitudes.
+            list.append(String.format(Locale.US, "geo:%.6f,%.6f,%.1f%n", random.nextDouble() * 180 - 90,
+                    random.nextDouble() * 360 - 180, random.nextDouble() * 100));
+        }
+        mGeoUriList = list.toString();
+        mImporter = new GeoURIImporter();
+
+        // Both import benchmarks must do the same work to be comparable.
+        int imported = geoUriImport();
+        int regexImported = regexGeoUriImport();
+        if (imported != GEO_URI_LIST_SIZE || regexImported != GEO_URI_LIST_SIZE) {
+            throw new IllegalStateException("Imported " + imported + " and " + regexImported + " of "
+                    + GEO_URI_LIST_SIZE + " geo URIs");
+        }
+    }
+
+    @Benchmark
+    public GeoURI geoUriParse() {
+        return GeoURI.parse(mGeoUri);
+    }
+
+    @Benchmark
+    public GeoURI geoUriParseQuery() {
+        return GeoURI.parse(mGeoUriWithQuery);
+    }
+
+    @Benchmark
+    public double[] regexGeoUriParse() {
+        return RegexGeoURIParser.parse(mGeoUri.toString());
+    }
+
+    @Benchmark
+    public double[] regexGeoUriParseQuery() {
+        return RegexGeoURIParser.parse(mGeoUriWithQuery.toString());
+    }
+
+    /**
+     * Imports a list of {@link #GEO_URI_LIST_SIZE} geo URIs into primitive arrays.
+     */
+    @Benchmark
+    public int geoUriImport() throws IOException {
+        mImporter.clear();
+        return mImporter.importFrom(new StringReader(mGeoUriList));
+    }
+
+    /**
+     * Baseline of {@link #geoUriImport()}: splits the list in lines and parses them with the former parser.
+     */
+    @Benchmark
+    public int regexGeoUriImport() {
+        int count = 0;
+        for (String line : mGeoUriList.split("\\n")) {
+            if (RegexGeoURIParser.parse(line.trim()) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public boolean cacheNamePatternMatches() {
+        return OfflineGoogleMaps.CACHE_NAME_PATTERN.matcher(mCacheFileName).matches();
+    }
+}
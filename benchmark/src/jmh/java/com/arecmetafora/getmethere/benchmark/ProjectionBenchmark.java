@@ -0,0 +1,89 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import android.graphics.Bitmap;
+import android.graphics.PointF;
+import android.location.Location;
+
+import com.arecmetafora.getmethere.MercatorProjection;
+import com.arecmetafora.getmethere.OfflineGoogleMaps;
+import com.arecmetafora.getmethere.OfflineMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * Benchmarks of the map projection, used on every frame drawn by the Map view.
+ */
+@State(Scope.Thread)
+public class ProjectionBenchmark {
+
+    private static final int BATCH_SIZE = 256;
+
+    private MercatorProjection mProjection;
+    private OfflineMap mOfflineMap;
+    private Location mLocation;
+    private PointF mPixel;
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private float[] mPoints;
+
+    @Setup
+    public void setUp() {
+        Location center = new Location("");
+        center.setLatitude(-23.561414);
+        center.setLongitude(-46.655881);
+
+        mProjection = new MercatorProjection(15, 256, center);
+        mOfflineMap = new OfflineGoogleMaps(Bitmap.createBitmap(1200, 800, Bitmap.Config.ARGB_8888),
+                center, 15, OfflineGoogleMaps.Scale.ENHANCED);
+
+        mLocation = new Location("");
+        mLocation.setLatitude(-23.560912);
+        mLocation.setLongitude(-46.657263);
+        mPixel = new PointF();
+
+        Random random = new Random(42);
+        mLatitudes = new double[BATCH_SIZE];
+        mLongitudes = new double[BATCH_SIZE];
+        mPoints = new float[2 * BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            mLatitudes[i] = center.getLatitude() + (random.nextDouble() - 0.5) * 0.02;
+            mLongitudes[i] = center.getLongitude() + (random.nextDouble() - 0.5) * 0.02;
+        }
+    }
+
+    @Benchmark
+    public PointF mercatorToCartesian() {
+        return mProjection.toCartesian(mLocation);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public float[] mercatorToCartesianBatch() {
+        mProjection.toCartesian(mLatitudes, mLongitudes, mPoints, BATCH_SIZE);
+        return mPoints;
+    }
+
+    @Benchmark
+    public PointF projectToPixel() {
+        return mOfflineMap.projectToPixel(mLocation);
+    }
+
+    @Benchmark
+    public PointF projectToPixelInto() {
+        mOfflineMap.projectToPixel(mLocation, mPixel);
+        return mPixel;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public float[] projectToPixelBatch() {
+        mOfflineMap.projectToPixel(mLatitudes, mLongitudes, mPoints, BATCH_SIZE);
+        return mPoints;
+    }
+}
@@ -0,0 +1,74 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Former regular expression based parser of geo URIs, kept as the baseline of {@link ParsingBenchmark}.
+ */
+final class RegexGeoURIParser {
+
+    private static final Pattern GEO_URI_PATTERN =
+            Pattern.compile("geo:([\\-0-9.]+),([\\-0-9.]+)(?:,([\\-0-9.]+))?(?:\\?(.*))?", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern GEO_URI_QUERY_PATTERN =
+            Pattern.compile("q=([\\-0-9.]+),([\\-0-9.]+)(?:,([\\-0-9.]+))?\\(.*\\)?", Pattern.CASE_INSENSITIVE);
+
+    private RegexGeoURIParser() {
+    }
+
+    /**
+     * @return The latitude, longitude and altitude of the URI, or null if it is not valid.
+     */
+    static double[] parse(String uri) {
+        Matcher matcher = GEO_URI_PATTERN.matcher(uri);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        double latitude;
+        double longitude;
+        double altitude = 0d;
+        try {
+            latitude = Double.parseDouble(matcher.group(1));
+            if (latitude > 90.0 || latitude < -90.0) {
+                return null;
+            }
+            longitude = Double.parseDouble(matcher.group(2));
+            if (longitude > 180.0 || longitude < -180.0) {
+                return null;
+            }
+            if (matcher.group(3) != null) {
+                altitude = Double.parseDouble(matcher.group(3));
+                if (altitude < 0.0) {
+                    return null;
+                }
+            }
+
+            String query = matcher.group(4);
+            if (query != null) {
+                matcher = GEO_URI_QUERY_PATTERN.matcher(query);
+                if (matcher.matches()) {
+                    latitude = Double.parseDouble(matcher.group(1));
+                    if (latitude > 90.0 || latitude < -90.0) {
+                        return null;
+                    }
+                    longitude = Double.parseDouble(matcher.group(2));
+                    if (longitude > 180.0 || longitude < -180.0) {
+                        return null;
+                    }
+                    if (matcher.group(3) != null) {
+                        altitude = Double.parseDouble(matcher.group(3));
+                        if (altitude < 0.0) {
+                            return null;
+                        }
+                    }
+                }
+            }
+        } catch (NumberFormatException ignored) {
+            return null;
+        }
+
+        return new double[] { latitude, longitude, altitude };
+    }
+}
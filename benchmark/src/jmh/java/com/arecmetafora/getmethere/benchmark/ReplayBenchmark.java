@@ -0,0 +1,113 @@
+package com.arecmetafora.getmethere.benchmark;
+
+import android.location.Location;
+
+import com.arecmetafora.getmethere.SensorFusion;
+import com.arecmetafora.getmethere.SensorRecorder;
+import com.arecmetafora.getmethere.SensorReplayer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Benchmarks of the replay of a sensor recording, as fast as possible: the decoding alone, and the decoding
+ * feeding the fusion core of the compass sensor ({@link SensorFusion}), as {@code CompassSensor.replay} does.
+ * <p>
+ * The recording is a synthetic walk of one minute, with magnetometer and gravity events at 50 Hz and a GPS fix
+ * per second. Real traces recorded by {@code CompassSensor.setRecorder} can be replayed the same way.
+ */
+@State(Scope.Thread)
+public class ReplayBenchmark {
+
+    // Sensor types, as in android.hardware.Sensor
+    private static final int TYPE_MAGNETIC_FIELD = 2;
+    private static final int TYPE_GRAVITY = 9;
+
+    private static final int DURATION = 60;
+    private static final int SENSOR_RATE = 50;
+
+    private byte[] mRecording;
+    private final SensorFusion mFusion = new SensorFusion();
+
+    /**
+     * Target which only receives the decoded records.
+     */
+    private static class NullTarget implements SensorReplayer.Target {
+        private int mCount;
+
+        @Override
+        public void onSensorSample(int sensorType, long timestamp, float[] values) {
+            mCount++;
+        }
+
+        @Override
+        public void onSensorAccuracyChanged(int sensorType, int accuracy) {
+            mCount++;
+        }
+
+        @Override
+        public void onLocationSample(Location location) {
+            mCount++;
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorRecorder recorder = new SensorRecorder(out);
+        Random random = new Random(0);
+        Location location = new Location("gps");
+        float[] values = new float[3];
+        long timestamp = 1000000000L;
+
+        recorder.recordAccuracyChange(TYPE_MAGNETIC_FIELD, 3);
+        for(int i = 0; i < DURATION * SENSOR_RATE; i++) {
+            float heading = (float) Math.toRadians(90 + 30 * Math.sin(i * 0.002));
+            if(i % SENSOR_RATE == 0) {
+                location.setTime(1514764800000L + i * 1000L / SENSOR_RATE);
+                location.setLatitude(-23.561414 + i * 1e-6 + random.nextGaussian() * 2e-5);
+                location.setLongitude(-46.655881 + random.nextGaussian() * 2e-5);
+                location.setAltitude(760);
+                location.setAccuracy(8);
+                recorder.recordLocation(location);
+            }
+            values[0] = (float) (-20 * Math.sin(heading) + random.nextGaussian());
+            values[1] = (float) (20 * Math.cos(heading) + random.nextGaussian());
+            values[2] = -40;
+            recorder.recordSensorEvent(TYPE_MAGNETIC_FIELD, timestamp, values);
+            values[0] = (float) (random.nextGaussian() * 0.2);
+            values[1] = (float) (random.nextGaussian() * 0.2);
+            values[2] = 9.81f;
+            recorder.recordSensorEvent(TYPE_GRAVITY, timestamp + 3000000, values);
+            timestamp += 1000000000L / SENSOR_RATE;
+        }
+        recorder.close();
+        mRecording = out.toByteArray();
+
+        Location locationToTrack = new Location("");
+        locationToTrack.setLatitude(-23.587416);
+        locationToTrack.setLongitude(-46.657634);
+        mFusion.setLocationToTrack(locationToTrack);
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        NullTarget target = new NullTarget();
+        new SensorReplayer(new ByteArrayInputStream(mRecording)).replay(target, false);
+        return target.mCount;
+    }
+
+    @Benchmark
+    public float fusion() throws IOException {
+        mFusion.reset();
+        new SensorReplayer(new ByteArrayInputStream(mRecording)).replay(mFusion, false);
+        return mFusion.getBearingToLocation();
+    }
+}
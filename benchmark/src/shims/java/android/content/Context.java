@@ -0,0 +1,19 @@
+package android.content;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ */
+public abstract class Context {
+
+    public static final int MODE_PRIVATE = 0x0000;
+
+    public abstract File getFilesDir();
+
+    public abstract File getDir(String name, int mode);
+
+    public abstract FileOutputStream openFileOutput(String name, int mode) throws FileNotFoundException;
+}
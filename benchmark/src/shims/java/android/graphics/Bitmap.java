@@ -0,0 +1,58 @@
+package android.graphics;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ * It keeps the bitmap dimensions, without any pixel data.
+ */
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8,
+        RGB_565,
+        ARGB_4444,
+        ARGB_8888
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final Config mConfig;
+    private boolean mRecycled;
+
+    private Bitmap(int width, int height, Config config) {
+        mWidth = width;
+        mHeight = height;
+        mConfig = config;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public final Config getConfig() {
+        return mConfig;
+    }
+
+    public final int getByteCount() {
+        return mWidth * mHeight * (mConfig == Config.ARGB_8888 ? 4 : mConfig == Config.ALPHA_8 ? 1 : 2);
+    }
+
+    public final boolean isMutable() {
+        return true;
+    }
+
+    public final boolean isRecycled() {
+        return mRecycled;
+    }
+
+    public void recycle() {
+        mRecycled = true;
+    }
+}
@@ -0,0 +1,32 @@
+package android.graphics;
+
+import java.io.InputStream;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ * Images are not decoded on the JVM.
+ */
+public final class BitmapFactory {
+
+    public static class Options {
+        public Bitmap inBitmap;
+        public boolean inMutable;
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+        public int outWidth;
+        public int outHeight;
+    }
+
+    public static Bitmap decodeFile(String pathName) {
+        return null;
+    }
+
+    public static Bitmap decodeFile(String pathName, Options opts) {
+        return null;
+    }
+
+    public static Bitmap decodeStream(InputStream is) {
+        return null;
+    }
+}
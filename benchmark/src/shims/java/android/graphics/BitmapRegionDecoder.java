@@ -0,0 +1,43 @@
+package android.graphics;
+
+import java.io.IOException;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ * Images are not decoded on the JVM, so instances only keep the image dimensions.
+ */
+public final class BitmapRegionDecoder {
+
+    private final int mWidth;
+    private final int mHeight;
+    private boolean mRecycled;
+
+    private BitmapRegionDecoder(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public static BitmapRegionDecoder newInstance(String pathName, boolean isShareable) throws IOException {
+        throw new IOException("Images are not decoded on the JVM");
+    }
+
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        return null;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public boolean isRecycled() {
+        return mRecycled;
+    }
+
+    public void recycle() {
+        mRecycled = true;
+    }
+}
@@ -0,0 +1,22 @@
+package android.graphics;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ */
+public class PointF {
+    public float x;
+    public float y;
+
+    public PointF() {
+    }
+
+    public PointF(float x, float y) {
+        this.x = x;
+        this.y = y;
+    }
+
+    public final void set(float x, float y) {
+        this.x = x;
+        this.y = y;
+    }
+}
@@ -0,0 +1,137 @@
+package android.location;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ */
+public class Location {
+    private String mProvider;
+    private long mTime;
+    private double mLatitude;
+    private double mLongitude;
+    private boolean mHasAltitude;
+    private double mAltitude;
+    private boolean mHasAccuracy;
+    private float mAccuracy;
+    private boolean mHasSpeed;
+    private float mSpeed;
+    private boolean mHasBearing;
+    private float mBearing;
+
+    public Location(String provider) {
+        mProvider = provider;
+    }
+
+    public void set(Location location) {
+        mProvider = location.mProvider;
+        mTime = location.mTime;
+        mLatitude = location.mLatitude;
+        mLongitude = location.mLongitude;
+        mHasAltitude = location.mHasAltitude;
+        mAltitude = location.mAltitude;
+        mHasAccuracy = location.mHasAccuracy;
+        mAccuracy = location.mAccuracy;
+        mHasSpeed = location.mHasSpeed;
+        mSpeed = location.mSpeed;
+        mHasBearing = location.mHasBearing;
+        mBearing = location.mBearing;
+    }
+
+    public void reset() {
+        mProvider = null;
+        mTime = 0;
+        mLatitude = 0;
+        mLongitude = 0;
+        mHasAltitude = false;
+        mAltitude = 0;
+        mHasAccuracy = false;
+        mAccuracy = 0;
+        mHasSpeed = false;
+        mSpeed = 0;
+        mHasBearing = false;
+        mBearing = 0;
+    }
+
+    public String getProvider() {
+        return mProvider;
+    }
+
+    public void setProvider(String provider) {
+        mProvider = provider;
+    }
+
+    public long getTime() {
+        return mTime;
+    }
+
+    public void setTime(long time) {
+        mTime = time;
+    }
+
+    public double getLatitude() {
+        return mLatitude;
+    }
+
+    public void setLatitude(double latitude) {
+        mLatitude = latitude;
+    }
+
+    public double getLongitude() {
+        return mLongitude;
+    }
+
+    public void setLongitude(double longitude) {
+        mLongitude = longitude;
+    }
+
+    public boolean hasAltitude() {
+        return mHasAltitude;
+    }
+
+    public double getAltitude() {
+        return mAltitude;
+    }
+
+    public void setAltitude(double altitude) {
+        mAltitude = altitude;
+        mHasAltitude = true;
+    }
+
+    public boolean hasAccuracy() {
+        return mHasAccuracy;
+    }
+
+    public float getAccuracy() {
+        return mAccuracy;
+    }
+
+    public void setAccuracy(float accuracy) {
+        mAccuracy = accuracy;
+        mHasAccuracy = true;
+    }
+
+    public boolean hasSpeed() {
+        return mHasSpeed;
+    }
+
+    public float getSpeed() {
+        return mSpeed;
+    }
+
+    public void setSpeed(float speed) {
+        mSpeed = speed;
+        mHasSpeed = true;
+    }
+
+    public boolean hasBearing() {
+        return mHasBearing;
+    }
+
+    public float getBearing() {
+        return mBearing;
+    }
+
+    public void setBearing(float bearing) {
+        mBearing = bearing;
+        mHasBearing = true;
+    }
+}
@@ -0,0 +1,17 @@
+package android.net;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ * Like the framework implementation, parsing is lazy and the original string is kept.
+ */
+public abstract class Uri {
+
+    public static Uri parse(final String uriString) {
+        return new Uri() {
+            @Override
+            public String toString() {
+                return uriString;
+            }
+        };
+    }
+}
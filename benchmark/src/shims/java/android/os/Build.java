@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * JVM shim of the Android framework class, with only the members used by the benchmarked code.
+ * The benchmarks run as the newest platform the library knows about.
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.KITKAT;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+    }
+}
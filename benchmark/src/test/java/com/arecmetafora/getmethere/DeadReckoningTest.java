@@ -0,0 +1,108 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Walks a synthetic track through the {@link DeadReckoning} estimator.
+ */
+public class DeadReckoningTest {
+
+    private static final double LATITUDE = -23.561414;
+    private static final double LONGITUDE = -46.655881;
+
+    private static final int ACCELEROMETER_RATE = 50;
+    private static final float CADENCE = 2;
+    private static final float STEP_LENGTH = 0.7f;
+    private static final float HEADING = 60;
+
+    /**
+     * Errors of the estimated positions against the true track.
+     */
+    private static final class Errors {
+        double deadReckoning;
+        double lastFix;
+        long steps;
+    }
+
+    /**
+     * Walks in a straight line at 2 steps per second, with exact fixes at a regular interval, and measures the
+     * largest distance to the true position, of the dead-reckoning estimate and of the last fix alone. The
+     * first fix interval is left out, since the walking speed is unknown until the second step.
+     *
+     * @param seconds Duration of the walk.
+     * @param fixInterval Interval between fixes, in seconds.
+     */
+    private static Errors walk(int seconds, int fixInterval) {
+        DeadReckoning deadReckoning = new DeadReckoning();
+        Random random = new Random(0);
+        float[] values = new float[3];
+        double[] position = new double[2];
+        double[] lastFix = new double[2];
+        double[] results = new double[2];
+        double speed = CADENCE * STEP_LENGTH;
+        double deadReckoningError = 0;
+        double lastFixError = 0;
+        int samples = seconds * ACCELEROMETER_RATE;
+
+        for (int i = 0; i < samples; i++) {
+            double time = (double) i / ACCELEROMETER_RATE;
+            long timestamp = 1000000000L + i * (1000000000L / ACCELEROMETER_RATE);
+            double walked = speed * time;
+            Geodesy.flatEarthOffset(LATITUDE, LONGITUDE, walked * Math.sin(Math.toRadians(HEADING)),
+                    walked * Math.cos(Math.toRadians(HEADING)), position);
+
+            if(i % (fixInterval * ACCELEROMETER_RATE) == 0) {
+                deadReckoning.onFix(position[0], position[1], 0);
+                lastFix[0] = position[0];
+                lastFix[1] = position[1];
+            }
+
+            // A vertical bounce at every step, above gravity, with sensor noise
+            double phase = Math.sin(2 * Math.PI * CADENCE * time);
+            values[0] = (float) (random.nextGaussian() * 0.1);
+            values[1] = (float) (random.nextGaussian() * 0.1);
+            values[2] = (float) (9.80665 + 4 * Math.max(0, phase) - 1 + random.nextGaussian() * 0.1);
+            deadReckoning.onAcceleration(timestamp, values, HEADING);
+
+            if(time < fixInterval) {
+                continue;
+            }
+            Geodesy.vincenty(position[0], position[1], deadReckoning.getLatitude(), deadReckoning.getLongitude(),
+                    results);
+            deadReckoningError = Math.max(deadReckoningError, results[0]);
+            Geodesy.vincenty(position[0], position[1], lastFix[0], lastFix[1], results);
+            lastFixError = Math.max(lastFixError, results[0]);
+        }
+
+        Errors errors = new Errors();
+        errors.deadReckoning = deadReckoningError;
+        errors.lastFix = lastFixError;
+        errors.steps = deadReckoning.getStepCount();
+        return errors;
+    }
+
+    @Test
+    public void followsTheTrackBetweenFixes() {
+        Errors errors = walk(60, 3);
+        assertEquals(60 * CADENCE, errors.steps, 2);
+        assertTrue("dead-reckoning error " + errors.deadReckoning, errors.deadReckoning < 0.5);
+        assertTrue("last fix error " + errors.lastFix, errors.lastFix > 3.9);
+    }
+
+    @Test
+    public void offsetsOnTheEllipsoid() {
+        double[] position = new double[2];
+        double[] results = new double[2];
+        for (int latitude = -70; latitude <= 70; latitude += 10) {
+            Geodesy.flatEarthOffset(latitude, LONGITUDE, 30, 40, position);
+            Geodesy.vincenty(latitude, LONGITUDE, position[0], position[1], results);
+            assertEquals(50, results[0], 0.001);
+            assertEquals(Math.toDegrees(Math.atan2(30, 40)), results[1], 0.01);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the error bounds documented by {@link DeclinationCache} against the direct evaluation of the World
+ * Magnetic Model.
+ */
+public class DeclinationCacheTest {
+
+    private static final int SAMPLES = 20000;
+
+    /**
+     * January 1, 2018, within the validity of the model shipped with Android.
+     */
+    private static final long TIME = 1514764800000L;
+    private static final long YEAR = 365 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Gets the largest difference between the cache and the model, at random coordinates between the given
+     * latitudes, altitudes up to 3 km and times within a year.
+     */
+    private static float getMaxError(double minLatitude, double maxLatitude) {
+        DeclinationCache cache = new DeclinationCache(DeclinationCache.WORLD_MAGNETIC_MODEL);
+        Random random = new Random(0);
+        float maxError = 0;
+
+        for (int i = 0; i < SAMPLES; i++) {
+            double latitude = minLatitude + random.nextDouble() * (maxLatitude - minLatitude);
+            if(random.nextBoolean()) {
+                latitude = -latitude;
+            }
+            double longitude = random.nextDouble() * 360 - 180;
+            double altitude = random.nextDouble() * 3000;
+            long time = TIME + (long) (random.nextDouble() * YEAR);
+
+            float expected = DeclinationCache.WORLD_MAGNETIC_MODEL.getDeclination(
+                    (float) latitude, (float) longitude, (float) altitude, time);
+            float actual = cache.getDeclination(latitude, longitude, altitude, time);
+            maxError = Math.max(maxError, Math.abs(Angles.shortestArc(expected, actual)));
+        }
+        return maxError;
+    }
+
+    @Test
+    public void belowSixtyDegrees() {
+        float error = getMaxError(0, 60);
+        assertTrue("declination error " + error, error < 0.03f);
+    }
+
+    @Test
+    public void upToEightyDegrees() {
+        float error = getMaxError(60, 80);
+        assertTrue("declination error " + error, error < 0.3f);
+    }
+
+    @Test
+    public void evaluatesTheModelOncePerCell() {
+        DeclinationCache cache = new DeclinationCache(DeclinationCache.WORLD_MAGNETIC_MODEL);
+        for (int i = 0; i < 100; i++) {
+            cache.getDeclination(-23.56 + i * 0.0005, -46.65 + i * 0.0005, 760, TIME + i * 1000);
+        }
+        assertEquals(4, cache.getEvaluationCount());
+    }
+}
@@ -0,0 +1,208 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@link GeoURIParser} and the {@link GeoURIImporter} built on it.
+ */
+public class GeoURIParserTest {
+
+    private final GeoURIParser mParser = new GeoURIParser();
+
+    private boolean parse(String uri) {
+        return mParser.parse(uri, 0, uri.length());
+    }
+
+    private void assertParses(String uri, double latitude, double longitude, double altitude, double uncertainty) {
+        assertTrue(uri, parse(uri));
+        assertEquals(uri, latitude, mParser.getLatitude(), 0);
+        assertEquals(uri, longitude, mParser.getLongitude(), 0);
+        assertEquals(uri, altitude, mParser.getAltitude(), 0);
+        assertEquals(uri, uncertainty, mParser.getUncertainty(), 0);
+    }
+
+    @Test
+    public void parsesTheCoordinates() {
+        assertParses("geo:48.2010,16.3695", 48.2010, 16.3695, Double.NaN, Double.NaN);
+        assertParses("geo:48.2010,16.3695,183", 48.2010, 16.3695, 183, Double.NaN);
+        assertParses("GEO:-33.8688,+151.2093", -33.8688, 151.2093, Double.NaN, Double.NaN);
+        assertParses("geo:-33.8688,151.2093,-12.5", -33.8688, 151.2093, -12.5, Double.NaN);
+        assertParses("geo:90,-180", 90, -180, Double.NaN, Double.NaN);
+    }
+
+    @Test
+    public void parsesTheParameters() {
+        assertParses("geo:48.198634,16.371648;crs=wgs84;u=40", 48.198634, 16.371648, Double.NaN, 40);
+        assertParses("geo:48.198634,16.371648;CRS=WGS84", 48.198634, 16.371648, Double.NaN, Double.NaN);
+        assertParses("geo:48.198634,16.371648,10;u=0.5;foo=bar", 48.198634, 16.371648, 10, 0.5);
+        assertTrue(!parse("geo:48.198634,16.371648;crs=nad27"));
+        assertTrue(!parse("geo:48.198634,16.371648;crs=wgs84x"));
+        assertTrue(!parse("geo:48.198634,16.371648;u=-1"));
+        assertTrue(!parse("geo:48.198634,16.371648;u="));
+    }
+
+    @Test
+    public void parsesTheQuery() {
+        assertParses("geo:0,0?q=34.99,-106.61(Treasure)", 34.99, -106.61, Double.NaN, Double.NaN);
+        assertParses("geo:0,0?q=34.99,-106.61", 34.99, -106.61, Double.NaN, Double.NaN);
+        assertParses("geo:0,0?z=11&q=34.99,-106.61,1500(Treasure)", 34.99, -106.61, 1500, Double.NaN);
+        assertParses("geo:1,2;u=5?q=34.99,-106.61", 34.99, -106.61, Double.NaN, 5);
+
+        // Queries without coordinates, such as addresses, keep the coordinates of the URI
+        assertParses("geo:1,2?q=1600+Amphitheatre+Parkway", 1, 2, Double.NaN, Double.NaN);
+        assertParses("geo:1,2?q=34.99,-106.61x", 1, 2, Double.NaN, Double.NaN);
+        assertParses("geo:1,2?q=95,0(Label)", 1, 2, Double.NaN, Double.NaN);
+    }
+
+    @Test
+    public void rejectsMalformedURIs() {
+        String[] uris = {
+                "", "geo:", "geo:1", "geo:1,", "geo:1,2,", "geo:,2", "geo:a,b", "geo:1,2x", "geo:1.2.3,4",
+                "geo:91,0", "geo:0,181", "geo:-90.5,0", "http:1,2", "geo 1,2", "geo:1;2" };
+        for (String uri : uris) {
+            assertTrue(uri, !parse(uri));
+        }
+    }
+
+    @Test
+    public void parsesWithinBounds() {
+        String text = "xxgeo:1,2;u=3yy";
+        assertTrue(mParser.parse(text, 2, text.length() - 2));
+        assertEquals(3, mParser.getUncertainty(), 0);
+        assertTrue(!mParser.parse(text, 2, text.length()));
+    }
+
+    @Test
+    public void roundsNumbersLikeTheJdk() {
+        Random random = new Random(0);
+        for (int i = 0; i < 100000; i++) {
+            // Up to 15 significant digits, which are rounded exactly
+            int digits = 1 + random.nextInt(15);
+            String number = randomNumber(random, digits);
+            String uri = "geo:0,0," + number;
+            assertTrue(uri, parse(uri));
+            assertEquals(uri, Double.parseDouble(number), mParser.getAltitude(), 0);
+
+            // Up to 18 significant digits, within one ulp
+            number = randomNumber(random, 16 + random.nextInt(3));
+            uri = "geo:0,0," + number;
+            assertTrue(uri, parse(uri));
+            double expected = Double.parseDouble(number);
+            assertEquals(uri, expected, mParser.getAltitude(), Math.ulp(expected));
+        }
+    }
+
+    /**
+     * Formats a random decimal number, with a random sign and a random position of the decimal point.
+     */
+    private static String randomNumber(Random random, int digits) {
+        StringBuilder number = new StringBuilder();
+        number.append(1 + random.nextInt(9));
+        for (int i = 1; i < digits; i++) {
+            number.append(random.nextInt(10));
+        }
+        int fractionDigits = random.nextInt(digits + 4);
+        while (number.length() <= fractionDigits) {
+            number.insert(0, '0');
+        }
+        if (fractionDigits > 0) {
+            number.insert(number.length() - fractionDigits, '.');
+        }
+        if (random.nextBoolean()) {
+            number.insert(0, '-');
+        }
+        return number.toString();
+    }
+
+    /**
+     * Reader which returns a few characters at a time, so lines are split between reads.
+     */
+    private static class ChunkedReader extends Reader {
+        private final Reader mReader;
+        private final int mChunkSize;
+
+        ChunkedReader(String text, int chunkSize) {
+            mReader = new StringReader(text);
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            return mReader.read(buffer, offset, Math.min(length, mChunkSize));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    @Test
+    public void importsEveryLine() throws IOException {
+        Random random = new Random(0);
+        int count = 5000;
+        double[] latitudes = new double[count];
+        double[] longitudes = new double[count];
+        double[] altitudes = new double[count];
+        StringBuilder text = new StringBuilder("# Points of interest\r\n\r\n");
+        for (int i = 0; i < count; i++) {
+            String latitude = String.format(Locale.US, "%.6f", random.nextDouble() * 180 - 90);
+            String longitude = String.format(Locale.US, "%.6f", random.nextDouble() * 360 - 180);
+            latitudes[i] = Double.parseDouble(latitude);
+            longitudes[i] = Double.parseDouble(longitude);
+            altitudes[i] = i % 2 == 0 ? i - 100 : Double.NaN;
+            text.append("  geo:").append(latitude).append(',').append(longitude);
+            if(i % 2 == 0) {
+                text.append(',').append(i - 100);
+            }
+            text.append(i % 3 == 0 ? "\r\n" : "\n");
+            if(i % 1000 == 0) {
+                text.append("geo:invalid\n#geo:1,2\n");
+            }
+        }
+
+        // Read at several chunk sizes, so that lines cross the buffer boundaries
+        for (int chunkSize : new int[] { 1, 7, 4096, Integer.MAX_VALUE }) {
+            GeoURIImporter importer = new GeoURIImporter();
+            assertEquals(count, importer.importFrom(new ChunkedReader(text.toString(), chunkSize)));
+            assertEquals(count, importer.size());
+            assertEquals(count / 1000, importer.getRejectedCount());
+            for (int i = 0; i < count; i++) {
+                assertEquals(latitudes[i], importer.getLatitudes()[i], 0);
+                assertEquals(longitudes[i], importer.getLongitudes()[i], 0);
+                assertEquals(altitudes[i], importer.getAltitudes()[i], 0);
+                assertTrue(Double.isNaN(importer.getUncertainties()[i]));
+            }
+        }
+    }
+
+    @Test
+    public void importsLinesLongerThanTheBuffer() throws IOException {
+        StringBuilder longParameter = new StringBuilder();
+        while (longParameter.length() < 20000) {
+            longParameter.append("abcdefghij");
+        }
+        String text = "geo:1,2\ngeo:3,4;x=" + longParameter + "\ngeo:5,6";
+
+        GeoURIImporter importer = new GeoURIImporter();
+        assertEquals(3, importer.importFrom(new ChunkedReader(text, 1000)));
+        assertEquals(3, importer.getLatitudes()[1], 0);
+        assertEquals(6, importer.getLongitudes()[2], 0);
+
+        // Importing again appends, and clearing forgets everything
+        assertEquals(1, importer.importFrom(new StringReader("geo:7,8")));
+        assertEquals(4, importer.size());
+        importer.clear();
+        assertEquals(0, importer.size());
+        assertEquals(0, importer.getRejectedCount());
+    }
+}
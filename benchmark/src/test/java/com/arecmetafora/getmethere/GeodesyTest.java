@@ -0,0 +1,96 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the error bounds documented by {@link Geodesy} against Vincenty`s solution on the WGS84 ellipsoid.
+ */
+public class GeodesyTest {
+
+    private static final double LONGITUDE = 10;
+
+    /**
+     * Largest errors of the approximate solvers over a set of coordinate pairs.
+     */
+    private static final class Errors {
+        double flatEarthDistance;
+        double flatEarthBearing;
+        double haversineDistance;
+        double sphericalBearing;
+    }
+
+    /**
+     * Compares the approximate solvers with Vincenty, from every half degree of latitude up to the given one,
+     * to destinations in every direction (5 degree steps) and up to the given distance.
+     */
+    private static Errors measure(double maxLatitude, double maxDistance) {
+        Errors errors = new Errors();
+        double[] results = new double[2];
+
+        for (double latitude = -maxLatitude; latitude <= maxLatitude; latitude += 0.5) {
+            for (double azimuth = 0; azimuth < 360; azimuth += 5) {
+                for (double distance = 10; distance <= maxDistance; distance *= 1.3) {
+                    double toLatitude = latitude + Math.toDegrees(
+                            distance * Math.cos(Math.toRadians(azimuth)) / 6371000);
+                    double toLongitude = LONGITUDE + Math.toDegrees(
+                            distance * Math.sin(Math.toRadians(azimuth))
+                                    / (6371000 * Math.cos(Math.toRadians(latitude))));
+                    if(Math.abs(toLatitude) >= maxLatitude) {
+                        continue;
+                    }
+
+                    assertTrue(Geodesy.vincenty(latitude, LONGITUDE, toLatitude, toLongitude, results));
+                    errors.flatEarthDistance = Math.max(errors.flatEarthDistance, Math.abs(
+                            Geodesy.flatEarthDistance(latitude, LONGITUDE, toLatitude, toLongitude) - results[0]));
+                    errors.flatEarthBearing = Math.max(errors.flatEarthBearing, bearingError(
+                            Geodesy.flatEarthBearing(latitude, LONGITUDE, toLatitude, toLongitude) - results[1]));
+                    errors.haversineDistance = Math.max(errors.haversineDistance, Math.abs(
+                            Geodesy.haversineDistance(latitude, LONGITUDE, toLatitude, toLongitude) - results[0])
+                            / results[0]);
+                    errors.sphericalBearing = Math.max(errors.sphericalBearing, bearingError(
+                            Geodesy.sphericalBearing(latitude, LONGITUDE, toLatitude, toLongitude) - results[1]));
+                }
+            }
+        }
+        return errors;
+    }
+
+    private static double bearingError(double difference) {
+        return Math.abs((difference + 540) % 360 - 180);
+    }
+
+    @Test
+    public void flatEarthWithin10Kilometers() {
+        Errors errors = measure(Geodesy.FLAT_EARTH_MAX_LATITUDE, Geodesy.FLAT_EARTH_MAX_DISTANCE);
+        assertTrue("distance error " + errors.flatEarthDistance, errors.flatEarthDistance < 0.02);
+        assertTrue("bearing error " + errors.flatEarthBearing, errors.flatEarthBearing < 0.2);
+    }
+
+    @Test
+    public void flatEarthWithin1Kilometer() {
+        Errors errors = measure(Geodesy.FLAT_EARTH_MAX_LATITUDE, 1000);
+        assertTrue("bearing error " + errors.flatEarthBearing, errors.flatEarthBearing < 0.02);
+    }
+
+    @Test
+    public void sphere() {
+        Errors errors = measure(85, 100000);
+        assertTrue("distance error " + errors.haversineDistance, errors.haversineDistance < 0.006);
+        assertTrue("bearing error " + errors.sphericalBearing, errors.sphericalBearing < 0.2);
+    }
+
+    @Test
+    public void solvePicksVincentyCloseToThePoles() {
+        double[] results = new double[2];
+        double toLatitude = 75.05;
+        double toLongitude = LONGITUDE + 0.2;
+        Geodesy.vincenty(75, LONGITUDE, toLatitude, toLongitude, results);
+
+        Geodesy.Solution solution = Geodesy.solve(75, LONGITUDE, toLatitude, toLongitude);
+        assertEquals(results[0], solution.getDistance(), 0);
+        assertEquals(results[1], solution.getInitialBearing(), 0);
+    }
+}
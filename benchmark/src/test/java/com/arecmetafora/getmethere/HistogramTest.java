@@ -0,0 +1,78 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the log-linear buckets of the {@link Histogram}.
+ */
+public class HistogramTest {
+
+    /**
+     * Finds the bucket in which a duration was recorded.
+     */
+    private static int bucketOf(long nanos) {
+        Histogram histogram = new Histogram();
+        histogram.record(nanos);
+        for (int i = 0; i < Histogram.BUCKET_COUNT; i++) {
+            if(histogram.getBucketCount(i) == 1) {
+                return i;
+            }
+        }
+        throw new AssertionError("not recorded: " + nanos);
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        long lowerBound = 0;
+        for (int i = 0; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long upperBound = Histogram.getBucketUpperBound(i);
+            assertTrue(upperBound > lowerBound);
+            assertEquals(i, bucketOf(lowerBound));
+            assertEquals(i, bucketOf(upperBound - 1));
+            lowerBound = upperBound;
+        }
+        assertEquals(Histogram.BUCKET_COUNT - 1, bucketOf(lowerBound));
+        assertEquals(Histogram.BUCKET_COUNT - 1, bucketOf(Long.MAX_VALUE));
+        assertEquals(0, bucketOf(-1));
+    }
+
+    @Test
+    public void bucketsSplitEveryOctave() {
+        for (int i = Histogram.SUB_BUCKET_COUNT; i < Histogram.BUCKET_COUNT - 1; i++) {
+            long lowerBound = Histogram.getBucketUpperBound(i - 1);
+            long width = Histogram.getBucketUpperBound(i) - lowerBound;
+            assertTrue("bucket " + i, width * Histogram.SUB_BUCKET_COUNT <= lowerBound);
+        }
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(0);
+        long[] durations = new long[10000];
+        for (int i = 0; i < durations.length; i++) {
+            // Log-normal, around 2 milliseconds
+            durations[i] = (long) (2000000 * Math.exp(random.nextGaussian()));
+            histogram.record(durations[i]);
+        }
+        Arrays.sort(durations);
+
+        assertEquals(durations.length, histogram.getCount());
+        for (float percentile : new float[] { 50, 90, 99, 99.9f }) {
+            long exact = durations[(int) Math.ceil(durations.length * percentile / 100) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " vs " + exact,
+                    reported > exact && reported <= exact * 1.125 + 1000);
+        }
+
+        histogram.clear();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(99));
+    }
+}
@@ -0,0 +1,44 @@
+package com.arecmetafora.getmethere;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the {@link LocationScheduler} policy through a start, a relaxation and a restart.
+ */
+public class LocationSchedulerTest {
+
+    @Test
+    public void relaxesFarAway() {
+        LocationScheduler scheduler = new LocationScheduler();
+        scheduler.onStarted(0);
+        assertEquals(LocationScheduler.Level.APPROACHING, scheduler.getLevel());
+
+        // Relaxed levels must hold for a while before they are applied
+        scheduler.update(10000, 1, 0);
+        assertEquals(LocationScheduler.Level.APPROACHING, scheduler.getLevel());
+        assertTrue(scheduler.update(10000, 1, LocationScheduler.MINIMUM_RELAX_DWELL));
+        assertEquals(LocationScheduler.Level.FAR, scheduler.getLevel());
+    }
+
+    @Test
+    public void restartsFromApproaching() {
+        LocationScheduler scheduler = new LocationScheduler();
+        scheduler.onStarted(0);
+        scheduler.update(10000, 1, 0);
+        scheduler.update(10000, 1, LocationScheduler.MINIMUM_RELAX_DWELL);
+        assertEquals(LocationScheduler.Level.FAR, scheduler.getLevel());
+
+        // The user may have reached the tracked location while the updates were stopped
+        scheduler.onStopped(60000);
+        scheduler.onStarted(600000);
+        assertEquals(LocationScheduler.Level.APPROACHING, scheduler.getLevel());
+
+        // Only the time with updates requested is accounted, at the level of each period
+        scheduler.onStopped(603000);
+        assertEquals(60000 + 3000, scheduler.getUpdatesTime(603000));
+        assertEquals(LocationScheduler.MINIMUM_RELAX_DWELL + 3000, scheduler.getGpsTime(603000));
+    }
+}
@@ -0,0 +1,223 @@
+package com.arecmetafora.getmethere;
+
+import android.hardware.Sensor;
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays recordings through the fusion core into the {@link SensorDispatcher}, with real subscribers bound to it,
+ * as {@link CompassSensor} wires them.
+ */
+public class SensorDispatcherTest {
+
+    private static final int SENSOR_RATE = 50;
+
+    private static final int ALL_CHANGES =
+            SensorFusion.CHANGED_LOCATION | SensorFusion.CHANGED_BEARING | SensorFusion.CHANGED_ROTATION;
+
+    /**
+     * Subscriber which counts its deliveries.
+     */
+    private static class CountingSubscriber extends SensorDispatcher.Subscriber {
+        int mDeliveryCount;
+        int mDeliveredChanges;
+
+        CountingSubscriber(SensorDispatcher dispatcher, SensorDispatcher.DeliveryThread deliveryThread,
+                           int acceptedChanges) {
+            super(dispatcher, deliveryThread, acceptedChanges);
+        }
+
+        @Override
+        void onDelivery(CompassSensorSnapshot snapshot, int changes) {
+            mDeliveryCount++;
+            mDeliveredChanges |= changes;
+        }
+    }
+
+    /**
+     * Delivery thread which only runs its deliveries when asked to, like a busy thread.
+     */
+    private static class QueuedDeliveryThread implements SensorDispatcher.DeliveryThread {
+        final List<Runnable> mDeliveries = new ArrayList<>();
+
+        @Override
+        public void post(Runnable delivery, long delayMillis) {
+            mDeliveries.add(delivery);
+        }
+
+        void runAll() {
+            for (Runnable delivery : mDeliveries) {
+                delivery.run();
+            }
+            mDeliveries.clear();
+        }
+    }
+
+    private final SensorDispatcher mDispatcher = new SensorDispatcher();
+    private final SensorFusion mFusion = new SensorFusion(new SensorFusion.Callback() {
+        @Override
+        public void onFused(int changes) {
+            mDispatcher.publish(mFusion, changes);
+        }
+
+        @Override
+        public void onLocationFix(Location location) {
+        }
+    });
+
+    {
+        Location locationToTrack = new Location("");
+        locationToTrack.setLatitude(-23.587416);
+        locationToTrack.setLongitude(-46.657634);
+        mFusion.setLocationToTrack(locationToTrack);
+    }
+
+    private void replay(byte[] recording) throws IOException {
+        new SensorReplayer(new ByteArrayInputStream(recording)).replay(mFusion, false);
+    }
+
+    /**
+     * Binds subscribers which are delivered on the fusion thread, and replays a recording.
+     *
+     * @param recording The recording.
+     * @param count The number of subscribers.
+     * @return The test, after the replay.
+     */
+    private static SensorDispatcherTest replayWithSubscribers(byte[] recording, int count) throws IOException {
+        SensorDispatcherTest test = new SensorDispatcherTest();
+        CountingSubscriber[] subscribers = new CountingSubscriber[count];
+        for (int i = 0; i < count; i++) {
+            subscribers[i] = new CountingSubscriber(test.mDispatcher, null, ALL_CHANGES);
+            test.mDispatcher.add(subscribers[i]);
+        }
+
+        test.replay(recording);
+
+        // Without limits, each subscriber gets one delivery per published snapshot
+        for (int i = 0; i < count; i++) {
+            assertEquals(test.mDispatcher.getPublishCount(), subscribers[i].mDeliveryCount);
+            assertEquals(ALL_CHANGES & ~SensorFusion.CHANGED_ROTATION, subscribers[i].mDeliveredChanges);
+        }
+        return test;
+    }
+
+    @Test
+    public void fusesOncePerInputWhateverTheSubscriberCount() throws IOException {
+        byte[] recording = SensorFusionTest.recordFlatDevice(2);
+        SensorDispatcherTest single = replayWithSubscribers(recording, 1);
+        assertEquals(single.mFusion.getInputEventCount(), single.mFusion.getFusionPassCount());
+        assertTrue(single.mDispatcher.getPublishCount() > 0);
+        assertTrue(single.mDispatcher.getPublishCount() <= single.mFusion.getFusionPassCount());
+
+        for (int count : new int[] { 2, 8, 32 }) {
+            SensorDispatcherTest test = replayWithSubscribers(recording, count);
+            assertEquals(single.mFusion.getInputEventCount(), test.mFusion.getInputEventCount());
+            assertEquals(single.mFusion.getFusionPassCount(), test.mFusion.getFusionPassCount());
+            assertEquals(single.mFusion.getBearingPassCount(), test.mFusion.getBearingPassCount());
+            assertEquals(single.mDispatcher.getPublishCount(), test.mDispatcher.getPublishCount());
+        }
+    }
+
+    @Test
+    public void conflatesTheDeliveriesOfABusySubscriber() throws IOException {
+        QueuedDeliveryThread deliveryThread = new QueuedDeliveryThread();
+        CountingSubscriber subscriber = new CountingSubscriber(mDispatcher, deliveryThread, ALL_CHANGES);
+        mDispatcher.add(subscriber);
+
+        replay(SensorFusionTest.recordFlatDevice(2));
+        assertTrue(mDispatcher.getPublishCount() > 1);
+        assertEquals(1, deliveryThread.mDeliveries.size());
+
+        deliveryThread.runAll();
+        assertEquals(1, subscriber.mDeliveryCount);
+        assertEquals(SensorFusion.CHANGED_LOCATION | SensorFusion.CHANGED_BEARING, subscriber.mDeliveredChanges);
+    }
+
+    @Test
+    public void deliversOnlyTheAcceptedChanges() throws IOException {
+        CountingSubscriber location = new CountingSubscriber(mDispatcher, null, SensorFusion.CHANGED_LOCATION);
+        CountingSubscriber rotation = new CountingSubscriber(mDispatcher, null, SensorFusion.CHANGED_ROTATION);
+        mDispatcher.add(location);
+        mDispatcher.add(rotation);
+        assertEquals(SensorFusion.CHANGED_LOCATION | SensorFusion.CHANGED_ROTATION, mDispatcher.getAcceptedChanges());
+
+        // The recording has no rotation vector, and a location fix every second
+        replay(SensorFusionTest.recordFlatDevice(2));
+        assertEquals(2, location.mDeliveryCount);
+        assertEquals(SensorFusion.CHANGED_LOCATION, location.mDeliveredChanges);
+        assertEquals(0, rotation.mDeliveryCount);
+    }
+
+    /**
+     * Records a device held flat which turns around at a constant rate, after a single location fix.
+     *
+     * @param seconds Duration of the recording.
+     * @param degreesPerSecond Turn rate.
+     * @return The recording.
+     */
+    private static byte[] recordTurningDevice(int seconds, float degreesPerSecond) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorRecorder recorder = new SensorRecorder(out);
+        Location location = new Location("gps");
+        location.setTime(1514764800000L);
+        location.setLatitude(-23.561414);
+        location.setLongitude(-46.655881);
+        recorder.recordLocation(location);
+
+        float[] values = new float[4];
+        for (int i = 0; i < seconds * SENSOR_RATE; i++) {
+            // Rotation about the vertical axis, clockwise by the heading
+            double halfAngle = -Math.toRadians(degreesPerSecond * i / SENSOR_RATE) / 2;
+            values[2] = (float) Math.sin(halfAngle);
+            values[3] = (float) Math.cos(halfAngle);
+            recorder.recordSensorEvent(Sensor.TYPE_ROTATION_VECTOR, 1000000000L + i * (1000000000L / SENSOR_RATE),
+                    values);
+        }
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void suppressesSmallAngleChanges() throws IOException {
+        CountingSubscriber all = new CountingSubscriber(mDispatcher, null, SensorFusion.CHANGED_ROTATION);
+        CountingSubscriber coarse = new CountingSubscriber(mDispatcher, null, SensorFusion.CHANGED_ROTATION);
+        coarse.setMinDeliveryAngleChange(5);
+        mDispatcher.add(all);
+        mDispatcher.add(coarse);
+
+        // Half a turn in events 0.6 degrees apart, so the coarse subscriber gets every 9th one
+        replay(recordTurningDevice(6, 30));
+        assertEquals(6 * SENSOR_RATE, all.mDeliveryCount);
+        assertEquals(1 + (6 * SENSOR_RATE - 1) / 9, coarse.mDeliveryCount);
+    }
+
+    @Test
+    public void removedSubscribersReceiveNothing() throws IOException {
+        CountingSubscriber kept = new CountingSubscriber(mDispatcher, null, ALL_CHANGES);
+        CountingSubscriber removed = new CountingSubscriber(mDispatcher, null, SensorFusion.CHANGED_ROTATION);
+        mDispatcher.add(kept);
+        mDispatcher.add(removed);
+
+        assertTrue(mDispatcher.remove(removed));
+        assertTrue(!mDispatcher.remove(removed));
+        assertEquals(ALL_CHANGES, mDispatcher.getAcceptedChanges());
+
+        replay(SensorFusionTest.recordFlatDevice(1));
+        assertTrue(kept.mDeliveryCount > 0);
+        assertEquals(0, removed.mDeliveryCount);
+
+        mDispatcher.clear();
+        assertEquals(0, mDispatcher.getSubscribers().length);
+        assertEquals(0, mDispatcher.getAcceptedChanges());
+    }
+}
@@ -0,0 +1,246 @@
+package com.arecmetafora.getmethere;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.location.Location;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays synthetic recordings through the fusion core of the compass sensor.
+ */
+public class SensorFusionTest {
+
+    private static final double LATITUDE = -23.561414;
+    private static final double LONGITUDE = -46.655881;
+
+    /**
+     * Device heading of the recordings, in degrees east of magnetic north.
+     */
+    private static final float HEADING = 60;
+
+    private static final int SENSOR_RATE = 50;
+
+    /**
+     * Time of the first location fix of the recordings, 2018-01-01 00:00 UTC.
+     */
+    private static final long FIX_TIME = 1514764800000L;
+
+    /**
+     * Counts the fusion results handed to the callback.
+     */
+    private static class CountingCallback implements SensorFusion.Callback {
+        int mFusedCount;
+        int mBearingCount;
+        int mLocationFixCount;
+
+        @Override
+        public void onFused(int changes) {
+            mFusedCount++;
+            if((changes & SensorFusion.CHANGED_BEARING) != 0) {
+                mBearingCount++;
+            }
+        }
+
+        @Override
+        public void onLocationFix(Location location) {
+            mLocationFixCount++;
+        }
+    }
+
+    private final CountingCallback mCallback = new CountingCallback();
+    private final SensorFusion mFusion = new SensorFusion(mCallback);
+
+    @Before
+    public void setUp() {
+        Location locationToTrack = new Location("");
+        locationToTrack.setLatitude(-23.587416);
+        locationToTrack.setLongitude(-46.657634);
+        mFusion.setLocationToTrack(locationToTrack);
+    }
+
+    /**
+     * Records a device held flat, with magnetometer and gravity events, and a location fix every second.
+     *
+     * @param seconds Duration of the recording.
+     * @return The recording.
+     */
+    static byte[] recordFlatDevice(int seconds) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorRecorder recorder = new SensorRecorder(out);
+        Random random = new Random(0);
+        Location location = new Location("gps");
+        float[] values = new float[3];
+        long timestamp = 1000000000L;
+        double heading = Math.toRadians(HEADING);
+
+        recorder.recordAccuracyChange(Sensor.TYPE_MAGNETIC_FIELD, SensorManager.SENSOR_STATUS_ACCURACY_HIGH);
+        for (int i = 0; i < seconds * SENSOR_RATE; i++) {
+            if(i % SENSOR_RATE == 0) {
+                location.setTime(FIX_TIME + i * 1000L / SENSOR_RATE);
+                location.setLatitude(LATITUDE);
+                location.setLongitude(LONGITUDE);
+                location.setAltitude(760);
+                location.setAccuracy(8);
+                recorder.recordLocation(location);
+            }
+            values[0] = (float) (-20 * Math.sin(heading) + random.nextGaussian() * 0.5);
+            values[1] = (float) (20 * Math.cos(heading) + random.nextGaussian() * 0.5);
+            values[2] = -40;
+            recorder.recordSensorEvent(Sensor.TYPE_MAGNETIC_FIELD, timestamp, values);
+            values[0] = (float) (random.nextGaussian() * 0.1);
+            values[1] = (float) (random.nextGaussian() * 0.1);
+            values[2] = SensorManager.GRAVITY_EARTH;
+            recorder.recordSensorEvent(Sensor.TYPE_GRAVITY, timestamp + 3000000, values);
+            timestamp += 1000000000L / SENSOR_RATE;
+        }
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Records a device held flat, with a single rotation vector stream and a location fix every second.
+     *
+     * @param seconds Duration of the recording.
+     * @param rate Rate of the rotation vector events, in hertz.
+     * @return The recording.
+     */
+    private static byte[] recordRotationVector(int seconds, int rate) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SensorRecorder recorder = new SensorRecorder(out);
+        Location location = new Location("gps");
+        long timestamp = 1000000000L;
+
+        // Rotation about the vertical axis, clockwise by the heading
+        double halfAngle = -Math.toRadians(HEADING) / 2;
+        float[] values = { 0, 0, (float) Math.sin(halfAngle), (float) Math.cos(halfAngle) };
+
+        for (int i = 0; i < seconds * rate; i++) {
+            if(i % rate == 0) {
+                location.setTime(FIX_TIME + i * 1000L / rate);
+                location.setLatitude(LATITUDE);
+                location.setLongitude(LONGITUDE);
+                location.setAltitude(760);
+                recorder.recordLocation(location);
+            }
+            recorder.recordSensorEvent(Sensor.TYPE_ROTATION_VECTOR, timestamp, values);
+            timestamp += 1000000000L / rate;
+        }
+        recorder.close();
+        return out.toByteArray();
+    }
+
+    private int replay(byte[] recording) throws IOException {
+        return new SensorReplayer(new ByteArrayInputStream(recording)).replay(mFusion, false);
+    }
+
+    @Test
+    public void replayFusesTheBearingOfEverySample() throws IOException {
+        int seconds = 10;
+        int count = replay(recordFlatDevice(seconds));
+
+        int fixes = seconds;
+        int samples = 2 * seconds * SENSOR_RATE;
+        assertEquals(1 + fixes + samples, count);
+        assertEquals(fixes + samples, mFusion.getInputEventCount());
+        assertEquals(fixes + samples, mFusion.getFusionPassCount());
+        assertEquals(fixes + samples, mFusion.getBearingPassCount());
+        assertEquals(fixes, mCallback.mLocationFixCount);
+        assertTrue(mCallback.mBearingCount > 0);
+    }
+
+    @Test
+    public void replayFusesTheAzimuth() throws IOException {
+        replay(recordFlatDevice(10));
+
+        float declination = DeclinationCache.getDefault().getDeclination(LATITUDE, LONGITUDE, 760, FIX_TIME);
+        float azimuth = Angles.wrapDegrees(HEADING + declination);
+        assertEquals(0, Angles.shortestArc(azimuth, mFusion.getAzimuth()), 1);
+        assertEquals(0, mFusion.getPitch(), 1);
+    }
+
+    @Test
+    public void throttlesTheBearingOfTheRotationVector() throws IOException {
+        int seconds = 10;
+        int rate = 200;
+        mFusion.setBearingFromRotationVector(true);
+        replay(recordRotationVector(seconds, rate));
+
+        // Every event runs a rotation pass, but the bearing only runs at the gravity and magnetometer rate,
+        // and for every location fix
+        int fixes = seconds;
+        int events = seconds * rate;
+        assertEquals(fixes + events, mFusion.getInputEventCount());
+        assertEquals(fixes + events, mFusion.getFusionPassCount());
+        assertTrue(mFusion.getBearingPassCount() >= fixes + seconds * 5);
+        assertTrue(mFusion.getBearingPassCount() <= fixes + seconds * 1000 / 180 + 1);
+
+        float declination = DeclinationCache.getDefault().getDeclination(LATITUDE, LONGITUDE, 760, FIX_TIME);
+        assertEquals(0, Angles.shortestArc(Angles.wrapDegrees(HEADING + declination), mFusion.getAzimuth()), 1);
+    }
+
+    @Test
+    public void filtersEveryOrientationOnce() throws IOException {
+        final int[] filtered = new int[1];
+        mFusion.setAzimuthFilter(new AngleFilter() {
+            @Override
+            public float filter(float degrees, long timestamp) {
+                filtered[0]++;
+                return degrees;
+            }
+
+            @Override
+            public void reset() {
+            }
+        });
+        mFusion.setBearingFromRotationVector(true);
+
+        // At the rate of the bearing stages, a location fix is the only pass without a new orientation
+        int seconds = 10;
+        int rate = 5;
+        replay(recordRotationVector(seconds, rate));
+        assertEquals(seconds + seconds * rate, mFusion.getBearingPassCount());
+        assertEquals(seconds * rate, filtered[0]);
+    }
+
+    @Test
+    public void resetClearsTheResults() throws IOException {
+        mFusion.setBearingFromRotationVector(true);
+        replay(recordRotationVector(1, 50));
+        assertTrue(mFusion.hasRotation());
+        assertTrue(!Float.isNaN(mFusion.getBearingToLocation()));
+
+        mFusion.reset();
+        assertTrue(!mFusion.hasRotation());
+        assertTrue(mFusion.getLocation() == null);
+        assertTrue(Float.isNaN(mFusion.getBearingToLocation()));
+        assertTrue(Float.isNaN(mFusion.getAzimuth()));
+        assertTrue(Float.isNaN(mFusion.getPitch()));
+
+        // The first rotation vector after a reset runs the bearing stages again
+        long bearingPasses = mFusion.getBearingPassCount();
+        replay(recordRotationVector(1, 50));
+        assertTrue(mFusion.getBearingPassCount() > bearingPasses);
+        assertTrue(!Float.isNaN(mFusion.getBearingToLocation()));
+    }
+
+    @Test
+    public void resetKeepsTheCounters() throws IOException {
+        byte[] recording = recordFlatDevice(1);
+        replay(recording);
+        long inputEvents = mFusion.getInputEventCount();
+
+        mFusion.reset();
+        replay(recording);
+        assertEquals(2 * inputEvents, mFusion.getInputEventCount());
+    }
+}
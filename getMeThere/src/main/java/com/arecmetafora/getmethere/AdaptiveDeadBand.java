@@ -0,0 +1,72 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Dead-band of angle updates, which adapts itself to the measured noise.
+ * <p>
+ * The noise is estimated as the moving root mean square of the residual between the raw and the filtered
+ * angles. Updates are only accepted when the filtered angle moves more than a multiple of it (within bounds)
+ * since the last accepted update, so a still device stops producing updates, while turns pass right through.
+ * <p>
+ * This class is not thread safe.
+ */
+public final class AdaptiveDeadBand {
+
+    /**
+     * Weight of a new residual on the noise estimate.
+     */
+    private static final float NOISE_SMOOTHING = 0.05f;
+
+    private final float mNoiseMultiplier;
+    private final float mMinimumWidth;
+    private final float mMaximumWidth;
+
+    private float mNoiseVariance;
+    private float mLastAccepted = Float.NaN;
+
+    /**
+     * Creates an adaptive dead-band.
+     *
+     * @param noiseMultiplier Width of the band, in multiples of the measured noise.
+     * @param minimumWidth Minimum width of the band, in degrees.
+     * @param maximumWidth Maximum width of the band, in degrees.
+     */
+    public AdaptiveDeadBand(float noiseMultiplier, float minimumWidth, float maximumWidth) {
+        mNoiseMultiplier = noiseMultiplier;
+        mMinimumWidth = minimumWidth;
+        mMaximumWidth = maximumWidth;
+    }
+
+    /**
+     * Checks whether an angle update moved beyond the dead-band.
+     *
+     * @param raw The raw angle, in degrees.
+     * @param filtered The filtered angle, in degrees.
+     * @return True if the update must be accepted. It becomes the reference of the next updates.
+     */
+    public boolean accept(float raw, float filtered) {
+        float residual = Angles.shortestArc(filtered, raw);
+        mNoiseVariance += NOISE_SMOOTHING * (residual * residual - mNoiseVariance);
+
+        if(!Float.isNaN(mLastAccepted) && Math.abs(Angles.shortestArc(mLastAccepted, filtered)) < getWidth()) {
+            return false;
+        }
+        mLastAccepted = filtered;
+        return true;
+    }
+
+    /**
+     * @return The current width of the band, in degrees.
+     */
+    public float getWidth() {
+        float width = mNoiseMultiplier * (float) Math.sqrt(mNoiseVariance);
+        return Math.max(mMinimumWidth, Math.min(mMaximumWidth, width));
+    }
+
+    /**
+     * Forgets the noise estimate and the last accepted update.
+     */
+    public void reset() {
+        mNoiseVariance = 0;
+        mLastAccepted = Float.NaN;
+    }
+}
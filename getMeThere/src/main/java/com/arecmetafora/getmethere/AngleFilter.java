@@ -0,0 +1,25 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Filter of a noisy stream of angles, such as the compass azimuth.
+ * <p>
+ * Angles are circular, so implementations must filter the shortest arc between the estimate and each new
+ * measurement: averaging 359 and 1 degrees must give 0, not 180. Implementations must not allocate, since they
+ * run for every sensor event.
+ */
+public interface AngleFilter {
+
+    /**
+     * Filters a new measurement.
+     *
+     * @param degrees The measured angle, in degrees.
+     * @param timestamp Timestamp of the measurement, in nanoseconds.
+     * @return The filtered angle, in the [0, 360) range.
+     */
+    float filter(float degrees, long timestamp);
+
+    /**
+     * Forgets the filter state, so the next measurement is taken as it is.
+     */
+    void reset();
+}
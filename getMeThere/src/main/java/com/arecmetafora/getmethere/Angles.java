@@ -0,0 +1,167 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Allocation free angle math for the bearing hot path: wrapping, shortest arcs and fast trigonometry.
+ * <p>
+ * The fast functions trade accuracy for speed, with the following maximum absolute errors:
+ * <ul>
+ *     <li>{@link #sinDegrees(float)} and {@link #cosDegrees(float)}: 2e-6 for angles within a few turns,
+ *     using a linearly interpolated table</li>
+ *     <li>{@link #atan2(float, float)}: 2e-6 radians (about 1e-4 degrees), using a minimax polynomial</li>
+ * </ul>
+ * Both are far below what a pixel or a compass sensor can resolve.
+ */
+public final class Angles {
+
+    private static final float PI = (float) Math.PI;
+    private static final float HALF_PI = (float) (Math.PI / 2);
+    private static final float RADIANS_TO_DEGREES = (float) (180 / Math.PI);
+
+    /**
+     * Number of table entries per turn. Must be a power of two.
+     */
+    private static final int SIN_TABLE_SIZE = 4096;
+    private static final int SIN_TABLE_MASK = SIN_TABLE_SIZE - 1;
+    private static final float SIN_TABLE_ENTRIES_PER_DEGREE = SIN_TABLE_SIZE / 360f;
+
+    /**
+     * Sine of a full turn, with an extra entry so interpolation does not need to wrap.
+     */
+    private static final float[] SIN_TABLE = new float[SIN_TABLE_SIZE + 1];
+
+    static {
+        for (int i = 0; i <= SIN_TABLE_SIZE; i++) {
+            SIN_TABLE[i] = (float) Math.sin(2 * Math.PI * i / SIN_TABLE_SIZE);
+        }
+    }
+
+    private Angles() {
+    }
+
+    /**
+     * Wraps an angle to the [0, 360) range.
+     *
+     * @param degrees The angle, in degrees.
+     * @return The equivalent angle in the [0, 360) range.
+     */
+    public static float wrapDegrees(float degrees) {
+        degrees %= 360f;
+        if (degrees < 0) {
+            degrees += 360f;
+            // A tiny negative angle rounds up to a full turn
+            if (degrees >= 360f) {
+                degrees = 0;
+            }
+        }
+        return degrees;
+    }
+
+    /**
+     * Wraps an angle to the [-180, 180) range.
+     *
+     * @param degrees The angle, in degrees.
+     * @return The equivalent angle in the [-180, 180) range.
+     */
+    public static float wrapSignedDegrees(float degrees) {
+        degrees = wrapDegrees(degrees);
+        return degrees >= 180f ? degrees - 360f : degrees;
+    }
+
+    /**
+     * Computes the shortest rotation from one angle to another, so animations never go around the long way
+     * (for instance, from 350 to 10 degrees).
+     *
+     * @param fromDegrees The start angle, in degrees.
+     * @param toDegrees The end angle, in degrees.
+     * @return The signed rotation, in the [-180, 180) range. Positive values are clockwise.
+     */
+    public static float shortestArc(float fromDegrees, float toDegrees) {
+        return wrapSignedDegrees(toDegrees - fromDegrees);
+    }
+
+    /**
+     * Fast sine of an angle in degrees. Maximum absolute error is 2e-6.
+     *
+     * @param degrees The angle, in degrees.
+     * @return The sine of the angle.
+     */
+    public static float sinDegrees(float degrees) {
+        return sinOfTableIndex(degrees * SIN_TABLE_ENTRIES_PER_DEGREE);
+    }
+
+    /**
+     * Fast cosine of an angle in degrees. Maximum absolute error is 2e-6.
+     *
+     * @param degrees The angle, in degrees.
+     * @return The cosine of the angle.
+     */
+    public static float cosDegrees(float degrees) {
+        return sinOfTableIndex(degrees * SIN_TABLE_ENTRIES_PER_DEGREE + SIN_TABLE_SIZE / 4);
+    }
+
+    /**
+     * Interpolates the sine table. The index is wrapped by masking, which is much cheaper than
+     * a floating point modulo.
+     */
+    private static float sinOfTableIndex(float index) {
+        int i = (int) index;
+        if (index < i) {
+            i--;
+        }
+        float fraction = index - i;
+        i &= SIN_TABLE_MASK;
+        return SIN_TABLE[i] + (SIN_TABLE[i + 1] - SIN_TABLE[i]) * fraction;
+    }
+
+    /**
+     * Fast arc tangent of y/x, using the signs of both arguments to determine the quadrant, as
+     * {@link Math#atan2(double, double)}. Maximum absolute error is 2e-6 radians.
+     *
+     * @param y The ordinate.
+     * @param x The abscissa.
+     * @return The angle of the point (x, y), in radians, in the [-PI, PI] range.
+     */
+    public static float atan2(float y, float x) {
+        float absX = Math.abs(x);
+        float absY = Math.abs(y);
+        if (absX == 0 && absY == 0) {
+            return 0;
+        }
+
+        // Keeps the polynomial argument in [0, 1], where it converges
+        boolean swapped = absY > absX;
+        float z = swapped ? absX / absY : absY / absX;
+        float z2 = z * z;
+        float angle = z * (0.99997726f + z2 * (-0.33262347f + z2 * (0.19354346f
+                + z2 * (-0.11643287f + z2 * (0.05265332f + z2 * -0.01172120f)))));
+
+        if (swapped) {
+            angle = HALF_PI - angle;
+        }
+        if (x < 0) {
+            angle = PI - angle;
+        }
+        return y < 0 ? -angle : angle;
+    }
+
+    /**
+     * Fast arc tangent of y/x, in degrees. See {@link #atan2(float, float)}.
+     *
+     * @param y The ordinate.
+     * @param x The abscissa.
+     * @return The angle of the point (x, y), in degrees, in the [-180, 180] range.
+     */
+    public static float atan2Degrees(float y, float x) {
+        return atan2(y, x) * RADIANS_TO_DEGREES;
+    }
+
+    /**
+     * Converts an angle from radians to degrees, in float precision.
+     *
+     * @param radians The angle, in radians.
+     * @return The angle, in degrees.
+     */
+    public static float toDegrees(float radians) {
+        return radians * RADIANS_TO_DEGREES;
+    }
+}
@@ -15,6 +15,7 @@ import android.hardware.Camera;
 import android.location.Location;
 import android.opengl.Matrix;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.view.Surface;
 import android.view.SurfaceHolder;
@@ -32,7 +33,7 @@ import java.util.List;
  * Augmented reality compass which points to a specific location.
  */
 public class AugmentedRealityCompass extends FrameLayout
-        implements SurfaceHolder.Callback, CompassSensor.RotationCallback {
+        implements SurfaceHolder.Callback, CompassSensor.RotationCallback, CompassSensor.TimestampCallback {
 
     // Defaults (units in DP)
     private static final int DEFAULT_TEXT_SIZE = 30;
@@ -79,11 +80,22 @@ public class AugmentedRealityCompass extends FrameLayout
     private SurfaceHolder mHolder;
     private Camera mCamera;
     private LocationOverlay mLocationOverlayView;
+    private final FrameLatencyTracker mLatencyTracker = new FrameLatencyTracker(this);
 
     private final float[] mProjectionMatrix = new float[16];
-    private final float[] mRotatedProjectionMatrix = new float[16];
+    private final float[] mRotatedLocationVector = new float[4];
+    private final float[] mLocationInENU = new float[4];
+    private final EnuFrame mEnuFrame = new EnuFrame();
     private float[] mCameraCoordinateVector = new float[4];
 
+    // Other points of interest, drawn around the location
+    private PointsOfInterest mPointsOfInterest;
+    private int mPointsOfInterestCount;
+    private float[] mPointsOfInterestInENU = new float[0];
+    private float[] mPointsOfInterestCameraVectors = new float[0];
+    private final float[] mRotatedProjectionMatrix = new float[16];
+    private RectF mPointOfInterestRect = new RectF();
+
     /**
      * Constructor that is called when inflating a view from XML. This is called
      * when a view is being constructed from an XML file, supplying attributes
@@ -318,27 +330,74 @@ public class AugmentedRealityCompass extends FrameLayout
     @Override
     public void onTrackingNewLocation(Location location) {
         mLocation = location;
+
+        // The target moved, so it is placed again in the frame of the last GPS fix
+        if(mMyLocation != null) {
+            updateLocationInENU();
+            mLocationOverlayView.invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        float ratio = (float) w / h;
+        Matrix.frustumM(mProjectionMatrix, 0, -ratio, ratio, -1, 1, 0.5f, 2000);
     }
 
     @Override
     public void onNewLocation(Location myLocation) {
         mMyLocation = myLocation;
-        mLocation.setAltitude(myLocation.getAltitude());
+
+        // Position of the location does only change with a new GPS fix
+        mEnuFrame.setOrigin(myLocation.getLatitude(), myLocation.getLongitude(), myLocation.getAltitude());
+        updateLocationInENU();
+        updatePointsOfInterest();
+    }
+
+    /**
+     * Converts the tracked location to the frame of the current user location, at the same altitude.
+     */
+    private void updateLocationInENU() {
+        mLocation.setAltitude(mMyLocation.getAltitude());
+        mEnuFrame.toENU(mLocation.getLatitude(), mLocation.getLongitude(), mLocation.getAltitude(), mLocationInENU, 0);
+    }
+
+    /**
+     * Converts the points of interest to the frame of the current user location.
+     */
+    private void updatePointsOfInterest() {
+        if(mPointsOfInterest == null || mMyLocation == null) {
+            mPointsOfInterestCount = 0;
+            return;
+        }
+
+        int count = mPointsOfInterest.size();
+        if(mPointsOfInterestInENU.length < 4 * count) {
+            mPointsOfInterestInENU = new float[4 * count];
+            mPointsOfInterestCameraVectors = new float[4 * count];
+        }
+        mPointsOfInterest.toENU(mEnuFrame, mPointsOfInterestInENU);
+        mPointsOfInterestCount = count;
+    }
+
+    @Override
+    public void onUpdateTimestamp(long timestamp) {
+        mLatencyTracker.onUpdate(timestamp);
     }
 
     @Override
     public void onNewRotation(float[] rotationMatrix) {
 
         if(mMyLocation != null) {
-            float ratio = (float) getWidth() / getHeight();
-            Matrix.frustumM(mProjectionMatrix, 0, -ratio, ratio, -1, 1, 0.5f, 2000);
-            Matrix.multiplyMM(mRotatedProjectionMatrix, 0, mProjectionMatrix, 0, rotationMatrix, 0);
-
-            float[] myLocationInECEF = ECEF.fromWSG84(mMyLocation);
-            float[] locationInECEF = ECEF.fromWSG84(mLocation);
-            float[] pointInENU = ECEF.toENU(mMyLocation, myLocationInECEF, locationInECEF);
+            Matrix.multiplyMV(mRotatedLocationVector, 0, rotationMatrix, 0, mLocationInENU, 0);
+            Matrix.multiplyMV(mCameraCoordinateVector, 0, mProjectionMatrix, 0, mRotatedLocationVector, 0);
 
-            Matrix.multiplyMV(mCameraCoordinateVector, 0, mRotatedProjectionMatrix, 0, pointInENU, 0);
+            if(mPointsOfInterestCount > 0) {
+                Matrix.multiplyMM(mRotatedProjectionMatrix, 0, mProjectionMatrix, 0, rotationMatrix, 0);
+                PointsOfInterest.multiplyMV(mRotatedProjectionMatrix, mPointsOfInterestInENU,
+                        mPointsOfInterestCameraVectors, mPointsOfInterestCount);
+            }
 
             mLocationOverlayView.invalidate();
         }
@@ -368,6 +427,8 @@ public class AugmentedRealityCompass extends FrameLayout
                 int centerX = canvas.getWidth()/2;
                 int centerY = canvas.getHeight()/2;
 
+                drawPointsOfInterest(canvas);
+
                 // cameraCoordinateVector[2] is z, that always less than 0 to display on right position
                 // if z > 0, the point will display on the opposite
                 if (mCameraCoordinateVector[2] < 0) {
@@ -381,7 +442,7 @@ public class AugmentedRealityCompass extends FrameLayout
                         canvas.getClipBounds(mCanvasRect);
                         PointF intersectionPoint = getIntersectionPoint(centerX, centerY, x, y, mCanvasRect);
                         if(intersectionPoint != null) {
-                            float angle = (float) Math.toDegrees(Math.atan2(y - centerY, x - centerY)) + 90;
+                            float angle = Angles.atan2Degrees(y - centerY, x - centerY) + 90;
 
                             float widthScale = mPointerRect.width() / mPointerBitmap.getWidth();
                             float heightScale = mPointerRect.height() / mPointerBitmap.getHeight();
@@ -399,7 +460,9 @@ public class AugmentedRealityCompass extends FrameLayout
                         canvas.drawBitmap(mLocationBitmap, null, mLocationRect, mImagePaint);
 
                         // Draw distance to location
-                        float distanceToLocation = mMyLocation.distanceTo(mLocation);
+                        float distanceToLocation = (float) GeodesicCache.getDefault().solve(
+                                mMyLocation.getLatitude(), mMyLocation.getLongitude(),
+                                mLocation.getLatitude(), mLocation.getLongitude()).getDistance();
                         String distanceStr;
                         if(distanceToLocation < 1000) {
                             distanceStr = (int) distanceToLocation + " m";
@@ -416,6 +479,32 @@ public class AugmentedRealityCompass extends FrameLayout
                     mTurnRect.offsetTo( centerX - mTurnRect.width()/2, centerY - mTurnRect.height());
                     canvas.drawBitmap(mTurnBitmap, null, mTurnRect, mImagePaint);
                 }
+
+                // Rotations are drawn as they come, with no animation
+                mLatencyTracker.onDraw(true);
+            }
+        }
+
+        /**
+         * Draws the points of interest which are inside the camera frame.
+         *
+         * @param canvas The canvas to draw on
+         */
+        private void drawPointsOfInterest(Canvas canvas) {
+            float[] vectors = mPointsOfInterestCameraVectors;
+            float width = mPointOfInterestRect.width();
+            float height = mPointOfInterestRect.height();
+
+            for (int i = 0, length = 4 * mPointsOfInterestCount; i < length; i += 4) {
+                if (vectors[i + 2] < 0) {
+                    float x = (0.5f + vectors[i] / vectors[i + 3]) * canvas.getWidth();
+                    float y = (0.5f - vectors[i + 1] / vectors[i + 3]) * canvas.getHeight();
+
+                    if(x >= -width && x <= canvas.getWidth() + width && y >= -height && y <= canvas.getHeight() + height) {
+                        mPointOfInterestRect.offsetTo(x - width / 2, y - height);
+                        canvas.drawBitmap(mLocationBitmap, null, mPointOfInterestRect, mImagePaint);
+                    }
+                }
             }
         }
 
@@ -503,6 +592,28 @@ public class AugmentedRealityCompass extends FrameLayout
         }
     }
 
+    /**
+     * Sets other points of interest to be drawn around the location which this widget is pointing at.
+     * Points added to the store are only placed at the next location update.
+     *
+     * @param pointsOfInterest The points of interest, or null to draw none.
+     */
+    public void setPointsOfInterest(PointsOfInterest pointsOfInterest) {
+        mPointsOfInterest = pointsOfInterest;
+        updatePointsOfInterest();
+        mLocationOverlayView.invalidate();
+    }
+
+    /**
+     * Sets the receiver of the motion-to-photon latency reports of this view: the time from the sensor events
+     * to the frames which draw them.
+     *
+     * @param callback The latency callback, or null to stop measuring.
+     */
+    public void setLatencyCallback(@Nullable FrameLatencyTracker.Callback callback) {
+        mLatencyTracker.setCallback(callback);
+    }
+
     /**
      * Sets the size of the distance text.
      *
@@ -535,6 +646,7 @@ public class AugmentedRealityCompass extends FrameLayout
         mLocationBitmap = Bitmap.createScaledBitmap(((BitmapDrawable) locationIcon).getBitmap(),
                 locationIconSize, locationIconSize, true);
         mLocationRect.set(0, 0, iconSize, iconSize);
+        mPointOfInterestRect.set(0, 0, iconSize / 2, iconSize / 2);
         invalidate();
     }
 
@@ -0,0 +1,148 @@
+package com.arecmetafora.getmethere;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of unused bitmaps, whose pixel memory is reused to decode new images (see
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}), instead of allocating a fresh bitmap for each one.
+ *
+ * <p>Bitmaps are grouped by size and configuration, since a decoder can only reuse a bitmap which matches the
+ * image exactly. The pool is bounded in bytes: when it is full, the least recently released bitmaps are recycled.
+ * This class is thread safe.</p>
+ */
+final class BitmapPool {
+
+    /**
+     * Maximum size of the shared pool, in bytes. Enough for a viewport of map tiles, or a few full map images.
+     */
+    private static final int SHARED_POOL_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Pool shared by the offline maps and their views.
+     */
+    static final BitmapPool SHARED = new BitmapPool(SHARED_POOL_SIZE);
+
+    /**
+     * Pooled bitmaps, by size and configuration.
+     */
+    private final HashMap<Long, ArrayDeque<Bitmap>> mBitmaps = new HashMap<>();
+
+    /**
+     * Pooled bitmaps, in release order.
+     */
+    private final ArrayDeque<Bitmap> mReleaseOrder = new ArrayDeque<>();
+
+    /**
+     * Maximum and current size of the pool, in bytes.
+     */
+    private final int mMaxSize;
+    private int mSize;
+
+    // Statistics
+    private int mHits;
+    private int mMisses;
+
+    /**
+     * Creates a new bitmap pool.
+     *
+     * @param maxSize The maximum size of the pool, in bytes.
+     */
+    BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Takes a bitmap out of the pool. Its pixels are left as they were, to be overwritten by a decoder.
+     *
+     * @param width The bitmap width, in pixels.
+     * @param height The bitmap height, in pixels.
+     * @param config The bitmap configuration.
+     * @return A bitmap of the given size and configuration, or null if the pool has none.
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(getKey(width, height, config));
+        Bitmap bitmap = bitmaps != null ? bitmaps.pollLast() : null;
+        if(bitmap == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mReleaseOrder.remove(bitmap);
+        mSize -= bitmap.getByteCount();
+        return bitmap;
+    }
+
+    /**
+     * Releases a bitmap to the pool. The bitmap must not be used afterwards by the caller.
+     * Bitmaps which cannot be reused (immutable or too large for the pool) are recycled.
+     *
+     * @param bitmap The unused bitmap, or null to do nothing.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if(bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        int size = bitmap.getByteCount();
+        if(!bitmap.isMutable() || size > mMaxSize) {
+            bitmap.recycle();
+            return;
+        }
+
+        while (mSize + size > mMaxSize) {
+            Bitmap eldest = mReleaseOrder.pollFirst();
+            mBitmaps.get(getKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+            mSize -= eldest.getByteCount();
+            eldest.recycle();
+        }
+
+        long key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> bitmaps = mBitmaps.get(key);
+        if(bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mBitmaps.put(key, bitmaps);
+        }
+        bitmaps.addLast(bitmap);
+        mReleaseOrder.addLast(bitmap);
+        mSize += size;
+    }
+
+    /**
+     * Recycles all the pooled bitmaps.
+     */
+    synchronized void clear() {
+        for (Bitmap bitmap : mReleaseOrder) {
+            bitmap.recycle();
+        }
+        mReleaseOrder.clear();
+        mBitmaps.clear();
+        mSize = 0;
+    }
+
+    /**
+     * @return The size of the pooled bitmaps, in bytes.
+     */
+    synchronized int getSize() {
+        return mSize;
+    }
+
+    /**
+     * @return How many times a bitmap could be taken out of the pool.
+     */
+    synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /**
+     * @return How many times the pool had no bitmap to give.
+     */
+    synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    private static long getKey(int width, int height, Bitmap.Config config) {
+        return ((long) width << 40) | ((long) height << 16) | (config != null ? config.ordinal() + 1 : 0);
+    }
+}
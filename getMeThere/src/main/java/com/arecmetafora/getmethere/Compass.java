@@ -24,7 +24,7 @@ import java.text.DecimalFormat;
 /**
  * Compass which points to a specific location.
  */
-public class Compass extends View implements CompassSensor.BearingCallback {
+public class Compass extends View implements CompassSensor.BearingCallback, CompassSensor.TimestampCallback {
 
     // Defaults (units in DP)
     private static final int DEFAULT_ARC_COLOR = Color.argb(255, 31, 43, 76);
@@ -89,6 +89,7 @@ public class Compass extends View implements CompassSensor.BearingCallback {
     private RectF mLocationRect;
     private DecimalFormat mNumberFormatter = new DecimalFormat(".##");
     private ValueAnimator mCurrentAnimation;
+    private final FrameLatencyTracker mLatencyTracker = new FrameLatencyTracker(this);
     private ValueAnimator mLoadingAnimation;
     private float mLoadingAngle;
 
@@ -258,12 +259,11 @@ public class Compass extends View implements CompassSensor.BearingCallback {
 
             // Draw the location marker along the compass arc boundaries
 
-            double bearingInRadians = Math.toRadians(mLocationBearing);
-            double locationX = mArcRect.centerX() - mArcRadius * Math.sin(bearingInRadians);
-            double locationY = mArcRect.centerY() - mArcRadius * Math.cos(bearingInRadians);
+            float locationX = mArcRect.centerX() - mArcRadius * Angles.sinDegrees(mLocationBearing);
+            float locationY = mArcRect.centerY() - mArcRadius * Angles.cosDegrees(mLocationBearing);
 
-            float locationLeft = (float) locationX - mLocationBitmap.getWidth() / 2;
-            float locationTop = (float) locationY - mLocationBitmap.getHeight() / 2;
+            float locationLeft = locationX - mLocationBitmap.getWidth() / 2;
+            float locationTop = locationY - mLocationBitmap.getHeight() / 2;
             mLocationRect.set(locationLeft, locationTop, locationLeft + mLocationBitmap.getWidth(),
                     locationTop + mLocationBitmap.getHeight());
 
@@ -281,6 +281,8 @@ public class Compass extends View implements CompassSensor.BearingCallback {
             float yPos = mArcRect.centerY() + 2 * (mArcRect.bottom - mArcRect.centerY()) / 3 - mTextPaint.descent() / 2;
             canvas.drawText(distanceStr, xPos, yPos, mTextPaint);
 
+            mLatencyTracker.onDraw(mCurrentAnimation == null || !mCurrentAnimation.isRunning());
+
         } else {
             // Draw the loading instead of arrow
             float widthScale = mPointerRect.width() / mLoadingBitmap.getWidth();
@@ -301,7 +303,14 @@ public class Compass extends View implements CompassSensor.BearingCallback {
 
     @Override
     public void onNewLocation(Location myLocation) {
-        mDistanceToLocation = myLocation.distanceTo(mLocation);
+        mDistanceToLocation = (float) GeodesicCache.getDefault().solve(
+                myLocation.getLatitude(), myLocation.getLongitude(),
+                mLocation.getLatitude(), mLocation.getLongitude()).getDistance();
+    }
+
+    @Override
+    public void onUpdateTimestamp(long timestamp) {
+        mLatencyTracker.onUpdate(timestamp);
     }
 
     @Override
@@ -315,16 +324,9 @@ public class Compass extends View implements CompassSensor.BearingCallback {
             return;
         }
 
-        float newBearing = bearingToLocation;
+        // Animates through the shortest arc, even from the last quadrant to the first one and vice versa
         float oldBearing = mLocationBearing;
-
-        // Fix animation from last to first quadrant and vice versa
-        if(oldBearing > 270 && newBearing < 90) {
-            newBearing += 360;
-        }
-        if(newBearing > 270 && oldBearing < 90) {
-            oldBearing += 360;
-        }
+        float newBearing = oldBearing + Angles.shortestArc(oldBearing, bearingToLocation);
 
         // Cancels previous animation
         if(mCurrentAnimation != null) {
@@ -336,7 +338,7 @@ public class Compass extends View implements CompassSensor.BearingCallback {
         mCurrentAnimation.setDuration(DEFAULT_ANGLE_ANIMATION_TIME);
         mCurrentAnimation.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
             public void onAnimationUpdate(ValueAnimator animation) {
-                mLocationBearing = (float) animation.getAnimatedValue() % 360f;
+                mLocationBearing = Angles.wrapDegrees((float) animation.getAnimatedValue());
                 invalidate();
             }
         });
@@ -384,6 +386,16 @@ public class Compass extends View implements CompassSensor.BearingCallback {
         initTextPaint();
     }
 
+    /**
+     * Sets the receiver of the motion-to-photon latency reports of this view: the time from the sensor events
+     * to the frames which draw them.
+     *
+     * @param callback The latency callback, or null to stop measuring.
+     */
+    public void setLatencyCallback(@Nullable FrameLatencyTracker.Callback callback) {
+        mLatencyTracker.setCallback(callback);
+    }
+
     /**
      * Sets the location image, draw along the compass arc.
      *
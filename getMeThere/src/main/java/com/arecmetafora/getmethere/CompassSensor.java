@@ -8,25 +8,45 @@ import android.arch.lifecycle.LifecycleOwner;
 import android.arch.lifecycle.OnLifecycleEvent;
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.hardware.GeomagneticField;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
 import android.support.v4.app.ActivityCompat;
+import android.util.Log;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.io.IOException;
 
 /**
  * Location compass sensor, using GPS and device sensors.
+ * <p>
+ * Sensor events and location updates are received and fused on a dedicated background thread, so the
+ * rotation matrix and declination math never competes with drawing. Every fusion result is published as a
+ * {@link CompassSensorSnapshot}, which any thread can read without blocking through {@link #getSnapshot()}.
+ * <p>
+ * Threading of the callbacks:
+ * <ul>
+ *     <li>{@link CompassSensorListener#onTrackingNewLocation(Location)} is called on the thread which binds
+ *     the listener or calls {@link #track(Location)}.</li>
+ *     <li>The other callbacks are called on the main thread by default, or on the looper given to
+ *     {@link #bindTo(CompassSensorListener, Looper)} or {@link #subscribe(CompassSensorListener, Looper)}.
+ *     While a listener is busy, updates are conflated, so it always receives the latest state.</li>
+ * </ul>
+ * Each {@link Subscription} can also limit the rate of its callbacks and ignore small angle changes.
  */
 public final class CompassSensor implements SensorEventListener, LifecycleObserver {
 
@@ -51,7 +71,7 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
         /**
          * Callback trigger when a new user`s location was detected.
          *
-         * @param myLocation The current user location.
+         * @param myLocation The current user location. It is shared by the listeners, so it must not be modified.
          */
         void onNewLocation(Location myLocation);
     }
@@ -78,29 +98,203 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
         /**
          * Callback trigger when the user rotated his device.
          *
-         * @param rotationMatrix The rotation matrix.
+         * @param rotationMatrix The rotation matrix. It is shared by the listeners, so it must not be modified.
          */
         void onNewRotation(float[] rotationMatrix);
     }
 
     /**
-     * Minimum angle change to notify listeners.
+     * Optional callback of listeners which need the source of their updates, such as views measuring their
+     * motion-to-photon latency. It is called right before the bearing and rotation callbacks.
      */
-    private static final int MINIMUM_ANGLE_CHANGE = 5;
+    public interface TimestampCallback {
+
+        /**
+         * Callback trigger before a bearing or rotation update is delivered.
+         *
+         * @param timestamp Timestamp of the sensor event behind the update, in nanoseconds, as in
+         *                  {@link SensorEvent#timestamp}.
+         */
+        void onUpdateTimestamp(long timestamp);
+    }
+
+    /**
+     * Callback to know when the replay of a recording ends.
+     */
+    public interface ReplayCallback {
+
+        /**
+         * Callback trigger when a replay ended, on the fusion thread.
+         *
+         * @param count The number of replayed records.
+         * @param error The error which interrupted the replay, or null if the whole recording was replayed.
+         */
+        void onReplayFinished(int count, @Nullable IOException error);
+    }
 
     /**
-     * Interval between location captures.
+     * Source of the device orientation.
      */
-    private static final int LOCATION_CAPTURE_INTERVAL = 3000;
+    public enum OrientationMode {
+
+        /**
+         * Bearing, pitch and rotation are all derived from a single rotation vector stream, which wakes the CPU
+         * less than separate streams. Falls back to {@link #SEPARATE_SENSORS} if the device has no rotation
+         * vector sensor.
+         */
+        ROTATION_VECTOR,
+
+        /**
+         * Bearing is derived from the gravity (or accelerometer) and magnetometer streams, and rotation from a
+         * separate rotation vector stream.
+         */
+        SEPARATE_SENSORS
+    }
+
+    /**
+     * Subscription of a listener to the compass sensor, which controls how often and on which thread its
+     * callbacks are called.
+     * <p>
+     * Updates are filtered by the maximum rate and the minimum angle change on the fusion thread, before
+     * crossing to the delivery thread, and pending updates are conflated: a listener which is slower than the
+     * sensors always receives the latest state, never a backlog.
+     */
+    public final class Subscription extends SensorDispatcher.Subscriber {
+
+        private final CompassSensorListener mListener;
+
+        private Subscription(CompassSensorListener listener, SensorDispatcher.DeliveryThread deliveryThread) {
+            super(mDispatcher, deliveryThread, CompassSensor.getAcceptedChanges(listener));
+            mListener = listener;
+        }
+
+        /**
+         * Limits how often the listener is called. Updates in between are conflated into the next call.
+         *
+         * @param rate Maximum number of calls per second, or zero for no limit.
+         * @return The same subscription instance.
+         */
+        public Subscription setMaxRate(float rate) {
+            setMaxDeliveryRate(rate);
+            return this;
+        }
+
+        /**
+         * Ignores bearing and rotation updates which are smaller than an angle, compared with the last update
+         * delivered to the listener.
+         *
+         * @param degrees Minimum change of the bearing, azimuth or device rotation, in degrees.
+         * @return The same subscription instance.
+         */
+        public Subscription setMinAngleChange(float degrees) {
+            setMinDeliveryAngleChange(degrees);
+            return this;
+        }
+
+        /**
+         * Cancels this subscription. Callbacks which were already scheduled on its thread may still be called.
+         */
+        public void cancel() {
+            unbind(mListener);
+        }
+
+        /**
+         * Calls the callbacks of the delivered changes. Called on the delivery thread.
+         */
+        @Override
+        void onDelivery(CompassSensorSnapshot snapshot, int changes) {
+            if((changes & (CHANGED_BEARING | CHANGED_ROTATION)) != 0 && mListener instanceof TimestampCallback) {
+                ((TimestampCallback) mListener).onUpdateTimestamp(snapshot.getTimestamp());
+            }
+            if((changes & CHANGED_LOCATION) != 0 && snapshot.getLocation() != null) {
+                ((LocationCallback) mListener).onNewLocation(snapshot.getLocation());
+            }
+            if((changes & CHANGED_BEARING) != 0) {
+                ((BearingCallback) mListener).onNewBearing(snapshot.getBearingToLocation(), snapshot.getAzimuth());
+            }
+            if((changes & CHANGED_ROTATION) != 0 && snapshot.getRotationMatrix() != null) {
+                ((RotationCallback) mListener).onNewRotation(snapshot.getRotationMatrix());
+            }
+        }
+    }
+
+    /**
+     * @return The kinds of changes which a listener is interested in, given the callbacks it implements.
+     */
+    private static int getAcceptedChanges(CompassSensorListener listener) {
+        int acceptedChanges = 0;
+        if(listener instanceof LocationCallback) {
+            acceptedChanges |= CHANGED_LOCATION;
+        }
+        if(listener instanceof BearingCallback) {
+            acceptedChanges |= CHANGED_BEARING;
+        }
+        if(listener instanceof RotationCallback) {
+            acceptedChanges |= CHANGED_ROTATION;
+        }
+        return acceptedChanges;
+    }
+
+    /**
+     * Runs the deliveries of subscriptions on the thread of a handler.
+     */
+    private static final class HandlerDeliveryThread implements SensorDispatcher.DeliveryThread {
+
+        private final Handler mHandler;
+
+        HandlerDeliveryThread(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void post(Runnable delivery, long delayMillis) {
+            if(delayMillis > 0) {
+                mHandler.postDelayed(delivery, delayMillis);
+            } else {
+                mHandler.post(delivery);
+            }
+        }
+    }
+
+    // Kinds of changes published by the fusion
+    private static final int CHANGED_LOCATION = SensorFusion.CHANGED_LOCATION;
+    private static final int CHANGED_BEARING = SensorFusion.CHANGED_BEARING;
+    private static final int CHANGED_ROTATION = SensorFusion.CHANGED_ROTATION;
+
+    private static final String TAG = "CompassSensor";
 
     private Context mContext;
 
+    // Whether the sensors are started, and the kinds of changes of the listeners bound at that time
+    private volatile boolean mStarted;
+    private int mStartedChanges;
+
+    // Fusion core, and the thread where sensor events and location updates are received and fused. The fusion
+    // state (current location, sensor data and accuracy) is only accessed by that thread.
+    private final SensorFusion mFusion = new SensorFusion(new SensorFusion.Callback() {
+        @Override
+        public void onFused(int changes) {
+            mDispatcher.publish(mFusion, changes);
+        }
+
+        @Override
+        public void onLocationFix(Location location) {
+            scheduleLocationUpdates(location);
+        }
+    });
+    private HandlerThread mFusionThread;
+    private Handler mFusionHandler;
+
     // GPS sensor
     private FusedLocationProviderClient mLocationProvider;
-    private LocationRequest locationRequest;
-    private Location mCurrentLocation;
-    private Location mLocationToTrack;
-    private int mMagneticFieldSensorAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+    private final LocationRequest[] mLocationRequests = new LocationRequest[LocationScheduler.Level.values().length];
+    private final LocationScheduler mLocationScheduler = new LocationScheduler();
+    private boolean mHasLastFix;
+    private double mLastFixLatitude;
+    private double mLastFixLongitude;
+    private long mLastFixTime;
+    private float mSpeed;
+    private volatile Location mLocationToTrack;
 
     // Orientation sensors
     private SensorManager mSensorManager;
@@ -112,35 +306,103 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
     private boolean mHasAccelerometerSensor;
     private boolean mHasMagneticFieldSensor;
     private boolean mHasRotationVectorSensor;
-    private final float[] mRotationMatrix = new float[9];
-    private final float[] mRotationMatrixFromVector = new float[16];
-    private final float[] mOrientationData = new float[3];
-    private float[] mGravityData;
-    private float[] mMagneticFieldData;
-    private float[] mRotationVectorData;
-    private float mLastCalculatedBearingToLocation = 0;
-
-    private final Object mMonitor = new Object();
-
-    // Listeners
-    private List<LocationCallback> mLocationListeners;
-    private List<BearingCallback> mBearingListeners;
-    private List<RotationCallback> mRotationListeners;
-
-    // GPS sensor callback
+    private OrientationMode mOrientationMode = OrientationMode.ROTATION_VECTOR;
+
+    // Listeners, and the publication of the fusion results to them
+    private final SensorDispatcher mDispatcher = new SensorDispatcher();
+
+    // Metrics, only recorded while a sink is set
+    private volatile CompassSensorMetrics mMetrics;
+    private volatile CompassSensorMetrics.Sink mMetricsSink = CompassSensorMetrics.NO_OP;
+    private volatile long mMetricsInterval;
+    private final Runnable mMetricsReport = new Runnable() {
+        @Override
+        public void run() {
+            CompassSensorMetrics metrics = mMetrics;
+            Handler fusionHandler = mFusionHandler;
+            if(metrics == null || fusionHandler == null) {
+                return;
+            }
+            metrics.closeWindow(System.nanoTime());
+            mMetricsSink.onReport(metrics);
+            fusionHandler.postDelayed(this, mMetricsInterval);
+        }
+    };
+
+    private Handler mMainHandler;
+    private SensorDispatcher.DeliveryThread mMainDeliveryThread;
+
+    // GPS sensor callback, called on the fusion thread
     // TODO: It seems this variable is leaking (removeLocationUpdates did not seem to remove the reference)
     private com.google.android.gms.location.LocationCallback mLocationCallback =
         new com.google.android.gms.location.LocationCallback() {
             public void onLocationResult(LocationResult result) {
-                synchronized (mMonitor) {
-                    mCurrentLocation = result.getLastLocation();
-                    for(LocationCallback listener : mLocationListeners) {
-                        listener.onNewLocation(mCurrentLocation);
-                        onBearingSensorsChanged();
-                        onRotationSensorChanged();
-                    }
+                SensorRecorder recorder = mRecorder;
+                if(recorder != null) {
+                    recorder.recordLocation(result.getLastLocation());
                 }
+                mFusion.onLocationSample(result.getLastLocation());
+            }
+    };
+
+    // Input recording and replay
+    private volatile SensorRecorder mRecorder;
+    private final SensorReplayer.Target mReplayTarget = new SensorReplayer.Target() {
+        @Override
+        public void onSensorSample(int sensorType, long timestamp, float[] values) {
+            // The orientation source is the one found in the recording
+            if(sensorType == Sensor.TYPE_ROTATION_VECTOR && mOrientationMode == OrientationMode.ROTATION_VECTOR) {
+                mFusion.setBearingFromRotationVector(true);
             }
+
+            // Replayed samples are fused right away, since the whole replay runs in a single task of the
+            // fusion thread
+            mFusion.onSensorSample(sensorType, timestamp, values);
+        }
+
+        @Override
+        public void onSensorAccuracyChanged(int sensorType, int accuracy) {
+            mFusion.onSensorAccuracyChanged(sensorType, accuracy);
+        }
+
+        @Override
+        public void onLocationSample(Location location) {
+            mFusion.onLocationSample(location);
+        }
+    };
+
+    /**
+     * Fuses the bearing sensor samples buffered since the last pass.
+     */
+    private final Runnable mBearingFusion = new Runnable() {
+        @Override
+        public void run() {
+            mBearingFusionScheduled = false;
+            mFusion.fuseBearing();
+        }
+    };
+    private boolean mBearingFusionScheduled;
+
+    /**
+     * Refreshes the registered streams after listeners were unbound.
+     */
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * Resets the fusion state when the sensors are stopped.
+     */
+    private final Runnable mResetFusion = new Runnable() {
+        @Override
+        public void run() {
+            mFusion.reset();
+            mHasLastFix = false;
+            mSpeed = 0;
+        }
     };
 
     /**
@@ -150,22 +412,28 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
      * @param lifecycleOwner Android life cycle controller.
      * @param locationToTrack The location which the user is heading to.
      */
-    private CompassSensor(@NonNull Context context, @NonNull LifecycleOwner lifecycleOwner, Location locationToTrack) {
+    private CompassSensor(@NonNull Context context, @Nullable LifecycleOwner lifecycleOwner, Location locationToTrack) {
         mContext = context;
         mLocationToTrack = locationToTrack;
+        mFusion.setLocationToTrack(locationToTrack);
 
-        mLocationListeners = new LinkedList<>();
-        mBearingListeners = new LinkedList<>();
-        mRotationListeners = new LinkedList<>();
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mMainDeliveryThread = new HandlerDeliveryThread(mMainHandler);
 
-        lifecycleOwner.getLifecycle().addObserver(this);
+        if(lifecycleOwner != null) {
+            lifecycleOwner.getLifecycle().addObserver(this);
+        }
 
         mLocationProvider = LocationServices.getFusedLocationProviderClient(mContext);
 
-        locationRequest = LocationRequest.create()
-                .setInterval(LOCATION_CAPTURE_INTERVAL)
-                .setFastestInterval(LOCATION_CAPTURE_INTERVAL)
-                .setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
+        for(LocationScheduler.Level level : LocationScheduler.Level.values()) {
+            mLocationRequests[level.ordinal()] = LocationRequest.create()
+                    .setInterval(level.mInterval)
+                    .setFastestInterval(level.mInterval)
+                    .setPriority(level.mHighAccuracy
+                            ? LocationRequest.PRIORITY_HIGH_ACCURACY
+                            : LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY);
+        }
 
         mSensorManager = (SensorManager) mContext.getSystemService(Context.SENSOR_SERVICE);
         assert mSensorManager != null;
@@ -186,24 +454,112 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
     }
 
     /**
-     * Binds a compass sensor receiver to this sensor.
+     * Creates a location compass sensor which is not bound to any life cycle, to be shared by the
+     * {@link CompassSensorHub}.
+     *
+     * @param context The application context.
+     */
+    static CompassSensor createShared(@NonNull Context context) {
+        return new CompassSensor(context, null, null);
+    }
+
+    /**
+     * Binds a compass sensor receiver to this sensor. Its callbacks are called on the main thread.
      *
      * @param listener The compass sensor listener.
      * @return The same compass sensor instance.
      */
     public CompassSensor bindTo(CompassSensorListener listener) {
-        if(listener instanceof LocationCallback) {
-            mLocationListeners.add((LocationCallback) listener);
-        }
-        if(listener instanceof BearingCallback) {
-            mBearingListeners.add((BearingCallback) listener);
-        }
-        if(listener instanceof RotationCallback) {
-            mRotationListeners.add((RotationCallback) listener);
+        return bindTo(listener, Looper.getMainLooper());
+    }
+
+    /**
+     * Binds a compass sensor receiver to this sensor, choosing the thread where its callbacks are called.
+     *
+     * @param listener The compass sensor listener.
+     * @param looper Looper of the thread where the callbacks are called, or null to call them straight on the
+     *               fusion thread. The latter gives the lowest latency, but the listener must be thread safe
+     *               and return quickly.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor bindTo(CompassSensorListener listener, @Nullable Looper looper) {
+        subscribe(listener, looper);
+        return this;
+    }
+
+    /**
+     * Subscribes a compass sensor receiver to this sensor, with no limits of rate nor angle change.
+     * Its callbacks are called on the main thread.
+     *
+     * @param listener The compass sensor listener.
+     * @return The subscription, to configure its limits.
+     */
+    public Subscription subscribe(CompassSensorListener listener) {
+        return subscribe(listener, Looper.getMainLooper());
+    }
+
+    /**
+     * Subscribes a compass sensor receiver to this sensor, with no limits of rate nor angle change.
+     *
+     * @param listener The compass sensor listener.
+     * @param looper Looper of the thread where the callbacks are called, or null to call them straight on the
+     *               fusion thread. The latter gives the lowest latency, but the listener must be thread safe
+     *               and return quickly.
+     * @return The subscription, to configure its limits.
+     */
+    public Subscription subscribe(CompassSensorListener listener, @Nullable Looper looper) {
+        SensorDispatcher.DeliveryThread deliveryThread = null;
+        if(looper == Looper.getMainLooper()) {
+            deliveryThread = mMainDeliveryThread;
+        } else if(looper != null) {
+            deliveryThread = new HandlerDeliveryThread(new Handler(looper));
         }
+
+        Subscription subscription = new Subscription(listener, deliveryThread);
+        mDispatcher.add(subscription);
+
         if(this.mLocationToTrack != null) {
             listener.onTrackingNewLocation(this.mLocationToTrack);
         }
+
+        // A running sensor hands its current state to the new listener right away, instead of making it wait
+        // for the next change
+        Handler fusionHandler = mFusionHandler;
+        if(mStarted && fusionHandler != null) {
+            final Subscription newSubscription = subscription;
+            fusionHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDispatcher.postLatest(newSubscription);
+                }
+            });
+        }
+        return subscription;
+    }
+
+    /**
+     * Unbinds a compass sensor receiver from this sensor. Callbacks which were already scheduled on its
+     * thread may still be called.
+     * <p>
+     * The streams which no remaining listener needs are unregistered on the next pass of the main thread, so a
+     * listener which is replaced right away, such as the one of a recreated activity, finds them warm.
+     *
+     * @param listener The compass sensor listener.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor unbind(CompassSensorListener listener) {
+        boolean unbound = false;
+        SensorDispatcher.Subscriber[] subscribers = mDispatcher.getSubscribers();
+        for(int i = 0; i < subscribers.length; i++) {
+            if(((Subscription) subscribers[i]).mListener == listener) {
+                unbound = mDispatcher.remove(subscribers[i]);
+                break;
+            }
+        }
+        if(unbound && mStarted) {
+            mMainHandler.removeCallbacks(mRefresh);
+            mMainHandler.post(mRefresh);
+        }
         return this;
     }
 
@@ -215,18 +571,194 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
      */
     public CompassSensor track(Location locationToTrack) {
         this.mLocationToTrack = locationToTrack;
-        for(CompassSensorListener listener : mLocationListeners) {
-            listener.onTrackingNewLocation(locationToTrack);
+        mFusion.setLocationToTrack(locationToTrack);
+        SensorDispatcher.Subscriber[] subscribers = mDispatcher.getSubscribers();
+        for(int i = 0; i < subscribers.length; i++) {
+            ((Subscription) subscribers[i]).mListener.onTrackingNewLocation(locationToTrack);
         }
-        for(CompassSensorListener listener : mBearingListeners) {
-            listener.onTrackingNewLocation(locationToTrack);
+        return this;
+    }
+
+    /**
+     * Sets the source of the device orientation. The default is {@link OrientationMode#ROTATION_VECTOR}.
+     * It takes effect when the sensors are started.
+     *
+     * @param orientationMode The source of the device orientation.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setOrientationMode(OrientationMode orientationMode) {
+        mOrientationMode = orientationMode;
+        return this;
+    }
+
+    /**
+     * Sets the filter of the azimuth, which smooths the bearing updates. The default is a
+     * {@link KalmanAngleFilter}. Bearing updates are also held back by a dead-band which adapts itself to the
+     * measured azimuth noise, so a still device stops notifying its listeners.
+     *
+     * @param azimuthFilter The azimuth filter, or null to use the raw azimuth.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setAzimuthFilter(@Nullable AngleFilter azimuthFilter) {
+        mFusion.setAzimuthFilter(azimuthFilter);
+        return this;
+    }
+
+    /**
+     * Switches between adaptive and fixed location updates. Adaptive updates, which are the default, pick their
+     * interval and accuracy by the distance to the tracked location, the user speed and stillness. Fixed
+     * updates are always requested with high accuracy every 3 seconds.
+     *
+     * @param adaptive True for adaptive location updates.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setAdaptiveLocationUpdates(boolean adaptive) {
+        synchronized (mLocationScheduler) {
+            LocationScheduler.Level level = mLocationScheduler.getLevel();
+            mLocationScheduler.setAdaptive(adaptive, SystemClock.elapsedRealtime());
+            if(level != mLocationScheduler.getLevel()) {
+                requestLocationUpdates();
+            }
         }
-        for(CompassSensorListener listener : mRotationListeners) {
-            listener.onTrackingNewLocation(locationToTrack);
+        return this;
+    }
+
+    /**
+     * Sets the sink of the pipeline metrics, which is called on the fusion thread at every report interval.
+     * Metrics are only recorded while a sink other than {@link CompassSensorMetrics#NO_OP}, the default, is set.
+     *
+     * @param sink The metrics sink.
+     * @param interval Interval between reports, in milliseconds.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setMetricsSink(@NonNull CompassSensorMetrics.Sink sink, long interval) {
+        Handler fusionHandler = mFusionHandler;
+        if(fusionHandler != null) {
+            fusionHandler.removeCallbacks(mMetricsReport);
         }
+        mMetricsSink = sink;
+        mMetricsInterval = interval;
+        mMetrics = sink != CompassSensorMetrics.NO_OP ? new CompassSensorMetrics(System.nanoTime()) : null;
+        mFusion.setMetrics(mMetrics);
+        mDispatcher.setMetrics(mMetrics);
+        scheduleMetricsReport();
         return this;
     }
 
+    /**
+     * Schedules the periodic metrics report, if there is a sink and the fusion thread is running.
+     */
+    private void scheduleMetricsReport() {
+        Handler fusionHandler = mFusionHandler;
+        if(mMetrics != null && fusionHandler != null) {
+            fusionHandler.postDelayed(mMetricsReport, mMetricsInterval);
+        }
+    }
+
+    /**
+     * Sets the rate of the positions interpolated between location fixes. Between fixes, steps are detected by
+     * the accelerometer and the position is propagated along the device azimuth, so the location listeners
+     * keep moving smoothly even with long location capture intervals. It takes effect when the sensors are
+     * started.
+     *
+     * @param rate Maximum rate of the interpolated positions, in hertz, or 0 to only notify location fixes,
+     *             which is the default.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setPositionInterpolationRate(float rate) {
+        mFusion.setPositionInterpolationRate(rate);
+        return this;
+    }
+
+    /**
+     * Sets the recorder of the sensor inputs: sensor events, accuracy changes and location fixes. The recorder
+     * is called on the fusion thread, before the inputs are fused. Replayed inputs are not recorded again.
+     *
+     * @param recorder The input recorder, or null to stop recording.
+     * @return The same compass sensor instance.
+     */
+    public CompassSensor setRecorder(@Nullable SensorRecorder recorder) {
+        mRecorder = recorder;
+        return this;
+    }
+
+    /**
+     * Replays a recording through the fusion pipeline, as if its inputs came from the sensors, and notifies the
+     * bound listeners. The replay runs on the fusion thread, so the sensor should be stopped to keep live inputs
+     * out of it.
+     *
+     * @param replayer The replay driver of the recording.
+     * @param realTime True to keep the recorded time between inputs, or false to replay them as fast as possible.
+     * @param callback Called on the fusion thread when the replay ends, or null.
+     * @return The same compass sensor instance.
+     * @throws IllegalStateException If there is no location to track.
+     */
+    public CompassSensor replay(final SensorReplayer replayer, final boolean realTime, @Nullable final ReplayCallback callback) {
+        if(mLocationToTrack == null) {
+            throw new IllegalStateException("There is no location to track");
+        }
+        startFusionThread();
+        mFusionHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFusion.setBearingFromRotationVector(false);
+                int count = 0;
+                IOException error = null;
+                try {
+                    count = replayer.replay(mReplayTarget, realTime);
+                } catch (IOException e) {
+                    error = e;
+                }
+                if(callback != null) {
+                    callback.onReplayFinished(count, error);
+                }
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Reads the latest state of the fused sensors, without blocking.
+     * This method can be called from any thread.
+     *
+     * @return The latest published snapshot.
+     */
+    public CompassSensorSnapshot getSnapshot() {
+        return mDispatcher.getSnapshot();
+    }
+
+    /**
+     * Checks whether any bound listener is interested in a kind of change.
+     */
+    private boolean hasListeners(int changes) {
+        return (getListenerChanges() & changes) != 0;
+    }
+
+    /**
+     * @return The kinds of changes which the bound listeners are interested in.
+     */
+    private int getListenerChanges() {
+        return mDispatcher.getAcceptedChanges();
+    }
+
+    /**
+     * @return Whether the sensors are started.
+     */
+    boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Registers the sensor streams needed by the bound listeners, and unregisters the ones which none of them
+     * needs anymore, keeping the fusion state. It does nothing if the kinds of bound listeners did not change
+     * since the sensors were started.
+     */
+    void refresh() {
+        if(mStarted && getListenerChanges() != mStartedChanges) {
+            start();
+        }
+    }
+
     /**
      * Starts the compass sensors.
      */
@@ -242,18 +774,51 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
 
         if(mLocationToTrack != null) {
 
-            if(mLocationListeners.size() > 0) {
-                mLocationProvider.requestLocationUpdates(locationRequest, mLocationCallback, null);
+            // Starting again registers the sensor streams needed by the current listeners. Location updates which
+            // are still needed keep running, with the level they adapted to.
+            if(mStarted) {
+                unregisterSensorStreams();
+            }
+            mStarted = true;
+            mStartedChanges = getListenerChanges();
+
+            startFusionThread();
+
+            boolean hasLocationListeners = hasListeners(CHANGED_LOCATION);
+            synchronized (mLocationScheduler) {
+                if(hasLocationListeners && !mLocationScheduler.isRunning()) {
+                    mLocationScheduler.onStarted(SystemClock.elapsedRealtime());
+                    requestLocationUpdates();
+                } else if(!hasLocationListeners && mLocationScheduler.isRunning()) {
+                    removeLocationUpdates();
+                }
+            }
+
+            // Steps are detected at a higher rate than the one needed by the orientation
+            if(hasLocationListeners && mFusion.getPositionInterpolationRate() > 0) {
+                mHasAccelerometerSensor = mSensorManager.registerListener(this, mAccelerometerSensor, SensorManager.SENSOR_DELAY_GAME, mFusionHandler);
             }
-            if(mBearingListeners.size() > 0) {
-                mHasGravitySensor = mSensorManager.registerListener(this, mGravityFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                mHasMagneticFieldSensor = mSensorManager.registerListener(this, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL);
-                if (!mHasGravitySensor) {
-                    mHasAccelerometerSensor = mSensorManager.registerListener(this, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL);
+            boolean hasBearingListeners = hasListeners(CHANGED_BEARING);
+            boolean hasRotationListeners = hasListeners(CHANGED_ROTATION);
+
+            // A single rotation vector stream feeds both bearing and rotation, when available
+            boolean bearingFromRotationVector = false;
+            if(hasBearingListeners && mOrientationMode == OrientationMode.ROTATION_VECTOR && mRotationVectorSensor != null) {
+                mHasRotationVectorSensor = mSensorManager.registerListener(this, mRotationVectorSensor,
+                        hasRotationListeners ? SensorManager.SENSOR_DELAY_FASTEST : SensorManager.SENSOR_DELAY_NORMAL, mFusionHandler);
+                bearingFromRotationVector = mHasRotationVectorSensor;
+            }
+            mFusion.setBearingFromRotationVector(bearingFromRotationVector);
+
+            if(hasBearingListeners && !bearingFromRotationVector) {
+                mHasGravitySensor = mSensorManager.registerListener(this, mGravityFieldSensor, SensorManager.SENSOR_DELAY_NORMAL, mFusionHandler);
+                mHasMagneticFieldSensor = mSensorManager.registerListener(this, mMagneticFieldSensor, SensorManager.SENSOR_DELAY_NORMAL, mFusionHandler);
+                if (!mHasGravitySensor && !mHasAccelerometerSensor) {
+                    mHasAccelerometerSensor = mSensorManager.registerListener(this, mAccelerometerSensor, SensorManager.SENSOR_DELAY_NORMAL, mFusionHandler);
                 }
             }
-            if(mRotationListeners.size() > 0) {
-                mHasRotationVectorSensor = mSensorManager.registerListener(this, mRotationVectorSensor, SensorManager.SENSOR_DELAY_FASTEST);
+            if(hasRotationListeners && !mHasRotationVectorSensor) {
+                mHasRotationVectorSensor = mSensorManager.registerListener(this, mRotationVectorSensor, SensorManager.SENSOR_DELAY_FASTEST, mFusionHandler);
             }
         }
     }
@@ -261,9 +826,14 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
     @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
     protected void destroy() {
         // Just to make sure nothing gets leaked
-        mLocationListeners.clear();
-        mBearingListeners.clear();
-        mRotationListeners.clear();
+        mDispatcher.clear();
+        mMainHandler.removeCallbacks(mRefresh);
+        if(mFusionThread != null) {
+            mFusionThread.quit();
+            mFusionThread = null;
+            mFusionHandler = null;
+            mDispatcher.setFusionThread(null);
+        }
         mContext = null;
         mSensorManager = null;
         mLocationProvider = null;
@@ -275,8 +845,37 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
      */
     @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
     public void stop() {
+        unregisterStreams();
+        mStarted = false;
+
+        // Events already queued on the fusion thread are processed before the reset
+        if(mFusionHandler != null) {
+            mFusionHandler.post(mResetFusion);
+        }
+    }
+
+    /**
+     * Removes the location updates and unregisters the sensor streams.
+     */
+    private void unregisterStreams() {
+        synchronized (mLocationScheduler) {
+            removeLocationUpdates();
+        }
+        unregisterSensorStreams();
+    }
+
+    /**
+     * Removes the location updates. Must be called holding the scheduler lock.
+     */
+    private void removeLocationUpdates() {
         mLocationProvider.removeLocationUpdates(mLocationCallback);
+        mLocationScheduler.onStopped(SystemClock.elapsedRealtime());
+    }
 
+    /**
+     * Unregisters the sensor streams.
+     */
+    private void unregisterSensorStreams() {
         if(mHasGravitySensor) {
             mSensorManager.unregisterListener(this, mGravityFieldSensor);
         }
@@ -289,88 +888,165 @@ public final class CompassSensor implements SensorEventListener, LifecycleObserv
         if(mHasRotationVectorSensor) {
             mSensorManager.unregisterListener(this, mRotationVectorSensor);
         }
+        mHasGravitySensor = false;
+        mHasAccelerometerSensor = false;
+        mHasMagneticFieldSensor = false;
+        mHasRotationVectorSensor = false;
+    }
 
-        mLastCalculatedBearingToLocation = 0;
-        mCurrentLocation = null;
-        mGravityData = null;
-        mMagneticFieldData = null;
+    /**
+     * Starts the fusion thread, if it is not running yet.
+     */
+    private void startFusionThread() {
+        if(mFusionThread == null) {
+            mFusionThread = new HandlerThread("CompassSensor", Process.THREAD_PRIORITY_DISPLAY);
+            mFusionThread.start();
+            mFusionHandler = new Handler(mFusionThread.getLooper());
+            mDispatcher.setFusionThread(new HandlerDeliveryThread(mFusionHandler));
+            scheduleMetricsReport();
+        }
     }
 
+    /**
+     * Called on the fusion thread.
+     */
     @Override
     public void onSensorChanged(SensorEvent event) {
+        SensorRecorder recorder = mRecorder;
+        if(recorder != null) {
+            recorder.recordSensorEvent(event.sensor.getType(), event.timestamp, event.values);
+        }
+        if(mFusion.addSensorSample(event.sensor.getType(), event.timestamp, event.values)) {
+            scheduleBearingFusion();
+        }
+    }
 
-        synchronized (mMonitor) {
+    /**
+     * Estimates the user speed from a new location fix, and adapts the location updates to it and to the
+     * distance to the tracked location. Called on the fusion thread.
+     *
+     * @param location The location fix.
+     */
+    private void scheduleLocationUpdates(Location location) {
+        float speed;
+        if(location.hasSpeed()) {
+            speed = location.getSpeed();
+        } else if(mHasLastFix && location.getTime() > mLastFixTime) {
+            speed = (float) (Geodesy.flatEarthDistance(mLastFixLatitude, mLastFixLongitude,
+                    location.getLatitude(), location.getLongitude()) * 1000 / (location.getTime() - mLastFixTime));
+        } else {
+            speed = mSpeed;
+        }
+        mHasLastFix = true;
+        mLastFixLatitude = location.getLatitude();
+        mLastFixLongitude = location.getLongitude();
+        mLastFixTime = location.getTime();
 
-            // Ignore low quality data
-            if(mMagneticFieldSensorAccuracy < SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
-                return;
-            }
+        // Steps reveal movement long before the next fix, when the user leaves still
+        mSpeed = Math.max(speed, mFusion.getStepSpeed());
 
-            switch (event.sensor.getType()) {
-                case Sensor.TYPE_GRAVITY:
-                    mGravityData = event.values;
-                    onBearingSensorsChanged();
-                    break;
-                case Sensor.TYPE_ACCELEROMETER:
-                    mGravityData = event.values;
-                    onBearingSensorsChanged();
-                    break;
-                case Sensor.TYPE_MAGNETIC_FIELD:
-                    mMagneticFieldData = event.values;
-                    onBearingSensorsChanged();
-                    break;
-                case Sensor.TYPE_ROTATION_VECTOR:
-                    mRotationVectorData = event.values;
-                    onRotationSensorChanged();
-                    break;
+        Location locationToTrack = mLocationToTrack;
+        if(locationToTrack == null) {
+            return;
+        }
+        double distance = GeodesicCache.getDefault().solve(
+                location.getLatitude(), location.getLongitude(),
+                locationToTrack.getLatitude(), locationToTrack.getLongitude()).getDistance();
+
+        synchronized (mLocationScheduler) {
+            if(mLocationScheduler.update(distance, mSpeed, SystemClock.elapsedRealtime())) {
+                LocationScheduler.Level level = mLocationScheduler.getLevel();
+                Log.d(TAG, "Location updates: " + level + ", every " + level.mInterval + " ms"
+                        + (level.mHighAccuracy ? " with high accuracy" : " with balanced accuracy")
+                        + " (distance " + Math.round(distance) + " m, speed " + mSpeed + " m/s)");
+                requestLocationUpdates();
             }
         }
     }
 
     /**
-     * Whenever any sensor related to bearing and azimuth orientation has changed.
+     * Requests the location updates of the current scheduler level, replacing the previous request.
+     * Must be called holding the scheduler lock, so it does not race with {@link #stop()}.
+     */
+    private void requestLocationUpdates() {
+        if(mLocationScheduler.isRunning()) {
+            mLocationProvider.requestLocationUpdates(mLocationRequests[mLocationScheduler.getLevel().ordinal()],
+                    mLocationCallback, mFusionThread.getLooper());
+        }
+    }
+
+    /**
+     * Schedules a bearing fusion pass after the sensor events which are already queued on the fusion thread,
+     * so a burst of gravity and magnetometer samples delivered in the same wakeup is fused only once.
+     */
+    private void scheduleBearingFusion() {
+        Handler fusionHandler = mFusionHandler;
+        if(!mBearingFusionScheduled && fusionHandler != null) {
+            mBearingFusionScheduled = true;
+            fusionHandler.post(mBearingFusion);
+        }
+    }
+
+    /**
+     * @return The time spent with location updates requested, in milliseconds. It is the GPS time that fixed
+     *         location updates would spend.
      */
-    private void onBearingSensorsChanged() {
-        if (mGravityData != null && mMagneticFieldData != null && mCurrentLocation != null) {
-            SensorManager.getRotationMatrix(mRotationMatrix, null, mGravityData, mMagneticFieldData);
-            SensorManager.getOrientation(mRotationMatrix, mOrientationData);
+    @VisibleForTesting
+    public long getLocationUpdatesTime() {
+        return mLocationScheduler.getUpdatesTime(SystemClock.elapsedRealtime());
+    }
 
-            GeomagneticField geomagneticField = new GeomagneticField(
-                    (float) mCurrentLocation.getLatitude(),
-                    (float) mCurrentLocation.getLongitude(),
-                    (float) mCurrentLocation.getAltitude(), System.currentTimeMillis());
+    /**
+     * @return The time spent with high accuracy location updates requested, in milliseconds.
+     */
+    @VisibleForTesting
+    public long getGpsOnTime() {
+        return mLocationScheduler.getGpsTime(SystemClock.elapsedRealtime());
+    }
 
-            float azimuth = (float) Math.toDegrees(mOrientationData[0]) + geomagneticField.getDeclination();
-            float bearing = mCurrentLocation.bearingTo(mLocationToTrack);
-            float bearingToLocation = (azimuth - bearing + 360) % 360;
-            float northAzimuth = (azimuth + 360) % 360;
+    /**
+     * @return The number of steps detected to interpolate positions between location fixes.
+     */
+    @VisibleForTesting
+    public long getStepCount() {
+        return mFusion.getStepCount();
+    }
 
-            if(Math.abs(mLastCalculatedBearingToLocation - bearingToLocation) > MINIMUM_ANGLE_CHANGE) {
-                mLastCalculatedBearingToLocation = bearingToLocation;
+    /**
+     * @return The number of sensor streams currently registered.
+     */
+    @VisibleForTesting
+    public int getRegisteredSensorCount() {
+        return (mHasGravitySensor ? 1 : 0) + (mHasAccelerometerSensor ? 1 : 0)
+                + (mHasMagneticFieldSensor ? 1 : 0) + (mHasRotationVectorSensor ? 1 : 0);
+    }
 
-                for(BearingCallback listener : mBearingListeners) {
-                    listener.onNewBearing(mLastCalculatedBearingToLocation, northAzimuth);
-                }
-            }
-        }
+    /**
+     * @return The number of sensor events and location fixes received so far.
+     */
+    @VisibleForTesting
+    public long getInputEventCount() {
+        return mFusion.getInputEventCount();
     }
 
     /**
-     * Whenever ANY sensor changes, this method must be called to calculate rotation
+     * @return The number of fusion passes run so far. There is at most one per input event, however many
+     * listeners are bound.
      */
-    private void onRotationSensorChanged() {
-        if(mRotationVectorData != null && mCurrentLocation != null) {
-            SensorManager.getRotationMatrixFromVector(mRotationMatrixFromVector, mRotationVectorData);
-            for (RotationCallback listener : mRotationListeners) {
-                listener.onNewRotation(mRotationMatrixFromVector);
-            }
-        }
+    @VisibleForTesting
+    public long getFusionPassCount() {
+        return mFusion.getFusionPassCount();
     }
 
+    /**
+     * Called on the fusion thread.
+     */
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        if(sensor == mMagneticFieldSensor) {
-            mMagneticFieldSensorAccuracy = accuracy;
+        SensorRecorder recorder = mRecorder;
+        if(recorder != null) {
+            recorder.recordAccuracyChange(sensor.getType(), accuracy);
         }
+        mFusion.onSensorAccuracyChanged(sensor.getType(), accuracy);
     }
 }
@@ -0,0 +1,234 @@
+package com.arecmetafora.getmethere;
+
+import android.arch.lifecycle.Lifecycle;
+import android.arch.lifecycle.LifecycleObserver;
+import android.arch.lifecycle.LifecycleOwner;
+import android.arch.lifecycle.OnLifecycleEvent;
+import android.content.Context;
+import android.location.Location;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Process wide hub of a single {@link CompassSensor}, shared by all of its consumers.
+ * <p>
+ * Every life cycle owner (activity, fragment) registers itself to the hub, and binds its listeners through its
+ * {@link Registration}. The sensors run while any registered owner is started, and are only stopped after a
+ * grace period since the last one stopped. Configuration changes and activity recreations happen within it,
+ * so the new owner finds the location, the orientation and the hardware streams warm, instead of waiting for
+ * the sensors to start up again.
+ * <p>
+ * The hub must be used from the main thread.
+ */
+public final class CompassSensorHub {
+
+    /**
+     * Default time the sensors keep running after the last registered owner stopped, in milliseconds.
+     */
+    public static final long DEFAULT_GRACE_PERIOD = 5000;
+
+    private static CompassSensorHub sInstance;
+
+    private final CompassSensor mSensor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mGracePeriod = DEFAULT_GRACE_PERIOD;
+    private int mStartedCount;
+
+    private final Runnable mStopSensor = new Runnable() {
+        @Override
+        public void run() {
+            mSensor.stop();
+        }
+    };
+
+    /**
+     * Registration of a life cycle owner to the hub. It holds a reference to the shared sensor while its owner
+     * is started, and unbinds the listeners bound through it when its owner is destroyed.
+     */
+    public final class Registration implements LifecycleObserver {
+
+        private final LifecycleOwner mOwner;
+        private final List<CompassSensor.Subscription> mSubscriptions = new ArrayList<>();
+        private boolean mStarted;
+
+        private Registration(LifecycleOwner owner) {
+            mOwner = owner;
+        }
+
+        /**
+         * Binds a compass sensor receiver to the shared sensor. Its callbacks are called on the main thread.
+         *
+         * @param listener The compass sensor listener.
+         * @return The same registration instance.
+         */
+        public Registration bindTo(CompassSensor.CompassSensorListener listener) {
+            subscribe(listener);
+            return this;
+        }
+
+        /**
+         * Subscribes a compass sensor receiver to the shared sensor, with no limits of rate nor angle change.
+         * Its callbacks are called on the main thread.
+         *
+         * @param listener The compass sensor listener.
+         * @return The subscription, to configure its limits.
+         */
+        public CompassSensor.Subscription subscribe(CompassSensor.CompassSensorListener listener) {
+            return subscribe(listener, Looper.getMainLooper());
+        }
+
+        /**
+         * Subscribes a compass sensor receiver to the shared sensor, with no limits of rate nor angle change.
+         *
+         * @param listener The compass sensor listener.
+         * @param looper Looper of the thread where the callbacks are called, or null to call them straight on
+         *               the fusion thread.
+         * @return The subscription, to configure its limits.
+         */
+        public CompassSensor.Subscription subscribe(CompassSensor.CompassSensorListener listener, @Nullable Looper looper) {
+            CompassSensor.Subscription subscription = mSensor.subscribe(listener, looper);
+            mSubscriptions.add(subscription);
+            if(mStarted) {
+                mSensor.refresh();
+            }
+            return subscription;
+        }
+
+        /**
+         * Sets the location to be tracked by the shared sensor, for all of its consumers.
+         *
+         * @param locationToTrack The location which the user is heading to.
+         * @return The same registration instance.
+         */
+        public Registration track(Location locationToTrack) {
+            mSensor.track(locationToTrack);
+            if(mStarted && !mSensor.isStarted()) {
+                // The sensors do not start before there is a location to track
+                mSensor.start();
+            }
+            return this;
+        }
+
+        /**
+         * Starts the shared sensor again, if its owner is started. It must be called when the location
+         * permissions are granted.
+         */
+        public void restart() {
+            if(mStarted) {
+                mSensor.start();
+            }
+        }
+
+        /**
+         * @return The shared compass sensor.
+         */
+        public CompassSensor getSensor() {
+            return mSensor;
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_START)
+        void onStart() {
+            if(!mStarted) {
+                mStarted = true;
+                retain();
+            }
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_STOP)
+        void onStop() {
+            if(mStarted) {
+                mStarted = false;
+                release();
+            }
+        }
+
+        @OnLifecycleEvent(Lifecycle.Event.ON_DESTROY)
+        void onDestroy() {
+            onStop();
+            for(int i = 0; i < mSubscriptions.size(); i++) {
+                mSubscriptions.get(i).cancel();
+            }
+            mSubscriptions.clear();
+            mOwner.getLifecycle().removeObserver(this);
+        }
+    }
+
+    private CompassSensorHub(Context context) {
+        mSensor = CompassSensor.createShared(context);
+    }
+
+    /**
+     * Gets the hub of the process, creating it on the first call.
+     *
+     * @param context Any context. The hub only keeps the application context.
+     * @return The hub of the process.
+     */
+    public static CompassSensorHub get(@NonNull Context context) {
+        if(sInstance == null) {
+            sInstance = new CompassSensorHub(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Registers a life cycle owner to the hub. The shared sensor runs while the owner is started, and the
+     * listeners bound through the registration are unbound when the owner is destroyed.
+     *
+     * @param lifecycleOwner Android life cycle controller.
+     * @return The registration of the owner.
+     */
+    public Registration register(@NonNull LifecycleOwner lifecycleOwner) {
+        Registration registration = new Registration(lifecycleOwner);
+        lifecycleOwner.getLifecycle().addObserver(registration);
+        return registration;
+    }
+
+    /**
+     * Sets the time the sensors keep running after the last registered owner stopped.
+     *
+     * @param gracePeriod The grace period, in milliseconds. The default is {@value #DEFAULT_GRACE_PERIOD}.
+     * @return The same hub instance.
+     */
+    public CompassSensorHub setGracePeriod(long gracePeriod) {
+        mGracePeriod = gracePeriod;
+        return this;
+    }
+
+    /**
+     * @return The shared compass sensor.
+     */
+    public CompassSensor getSensor() {
+        return mSensor;
+    }
+
+    /**
+     * @return The number of registered owners which are started.
+     */
+    public int getStartedCount() {
+        return mStartedCount;
+    }
+
+    private void retain() {
+        if(mStartedCount++ == 0) {
+            mMainHandler.removeCallbacks(mStopSensor);
+        }
+        if(!mSensor.isStarted()) {
+            mSensor.start();
+        } else {
+            // Already running for another owner, or still warm from a previous one, maybe with fewer streams
+            // than the new one needs
+            mSensor.refresh();
+        }
+    }
+
+    private void release() {
+        if(--mStartedCount == 0) {
+            mMainHandler.postDelayed(mStopSensor, mGracePeriod);
+        }
+    }
+}
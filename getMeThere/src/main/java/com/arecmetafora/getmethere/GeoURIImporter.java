@@ -0,0 +1,160 @@
+package com.arecmetafora.getmethere;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Streaming importer of geo URIs, one per line, into primitive coordinate arrays.
+ * <p>
+ * Lines are parsed straight from a reusable character buffer, so no string or {@link GeoURI} is created
+ * per line. Blank lines and lines starting with {@code #} are skipped, and invalid URIs are counted as
+ * rejected. The imported coordinates can be fed to {@link PointsOfInterest}, for instance.
+ * <p>
+ * This class is not thread safe.
+ */
+public class GeoURIImporter {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private final GeoURIParser mParser = new GeoURIParser();
+
+    // Buffer with the characters read from the stream, and a char sequence view of it
+    private char[] mBuffer = new char[READ_BUFFER_SIZE];
+    private CharBuffer mBufferView = CharBuffer.wrap(mBuffer);
+
+    private double[] mLatitudes = new double[INITIAL_CAPACITY];
+    private double[] mLongitudes = new double[INITIAL_CAPACITY];
+    private double[] mAltitudes = new double[INITIAL_CAPACITY];
+    private double[] mUncertainties = new double[INITIAL_CAPACITY];
+    private int mSize;
+    private int mRejected;
+
+    /**
+     * Imports all the geo URIs from a stream, appending them to the already imported ones.
+     *
+     * @param reader The stream with one geo URI per line. It is not closed by this method.
+     * @return The number of imported coordinates.
+     * @throws IOException If the stream could not be read.
+     */
+    public int importFrom(Reader reader) throws IOException {
+        int sizeBefore = mSize;
+        int length = 0;
+
+        while (true) {
+            if (length == mBuffer.length) {
+                // A line longer than the buffer
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+                mBufferView = CharBuffer.wrap(mBuffer);
+            }
+
+            int read = reader.read(mBuffer, length, mBuffer.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+
+            // Parses every complete line, and moves the incomplete remaining to the buffer`s start
+            int lineStart = 0;
+            for (int i = length - read; i < length; i++) {
+                if (mBuffer[i] == '\n') {
+                    importLine(lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            length -= lineStart;
+            System.arraycopy(mBuffer, lineStart, mBuffer, 0, length);
+        }
+
+        importLine(0, length);
+        return mSize - sizeBefore;
+    }
+
+    /**
+     * Imports a single line of the buffer.
+     */
+    private void importLine(int start, int end) {
+        // Trims the line, including the carriage return of CRLF files
+        while (start < end && mBuffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && mBuffer[end - 1] <= ' ') {
+            end--;
+        }
+        if (start == end || mBuffer[start] == '#') {
+            return;
+        }
+
+        if (!mParser.parse(mBufferView, start, end)) {
+            mRejected++;
+            return;
+        }
+
+        if (mSize == mLatitudes.length) {
+            int capacity = mSize * 2;
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mAltitudes = Arrays.copyOf(mAltitudes, capacity);
+            mUncertainties = Arrays.copyOf(mUncertainties, capacity);
+        }
+
+        mLatitudes[mSize] = mParser.getLatitude();
+        mLongitudes[mSize] = mParser.getLongitude();
+        mAltitudes[mSize] = mParser.getAltitude();
+        mUncertainties[mSize] = mParser.getUncertainty();
+        mSize++;
+    }
+
+    /**
+     * Discards the imported coordinates, keeping the allocated arrays.
+     */
+    public void clear() {
+        mSize = 0;
+        mRejected = 0;
+    }
+
+    /**
+     * @return The number of imported coordinates.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return The number of lines which were not valid geo URIs.
+     */
+    public int getRejectedCount() {
+        return mRejected;
+    }
+
+    /**
+     * @return The latitudes of the imported coordinates, in degrees. Only the first {@link #size()}
+     * values are valid, and the array is replaced when the importer grows.
+     */
+    public double[] getLatitudes() {
+        return mLatitudes;
+    }
+
+    /**
+     * @return The longitudes of the imported coordinates, in degrees.
+     */
+    public double[] getLongitudes() {
+        return mLongitudes;
+    }
+
+    /**
+     * @return The altitudes of the imported coordinates, in meters, or NaN where the URI has no altitude.
+     */
+    public double[] getAltitudes() {
+        return mAltitudes;
+    }
+
+    /**
+     * @return The uncertainties of the imported coordinates, in meters, or NaN where the URI has none.
+     */
+    public double[] getUncertainties() {
+        return mUncertainties;
+    }
+}
@@ -0,0 +1,294 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Single pass parser of geo URIs (<a href="https://tools.ietf.org/html/rfc5870">RFC 5870</a>), which works
+ * straight over a {@link CharSequence}, without regular expressions or intermediate strings.
+ * <p>
+ * Besides the RFC syntax ({@code geo:lat,lon[,alt][;crs=wgs84][;u=uncertainty][;param=value]}), the Android
+ * query form ({@code geo:0,0?q=lat,lon(label)}) is supported, whose coordinates take precedence.
+ * <p>
+ * Instances keep the parsing state, so they can be reused but must not be shared between threads.
+ */
+final class GeoURIParser {
+
+    private static final String SCHEME = "geo:";
+    private static final String PARAMETER_CRS = "crs";
+    private static final String PARAMETER_UNCERTAINTY = "u";
+    private static final String CRS_WGS84 = "wgs84";
+    private static final String QUERY_PARAMETER = "q=";
+
+    /**
+     * Number of significant digits which fit in a long mantissa.
+     */
+    private static final int MAX_SIGNIFICANT_DIGITS = 18;
+
+    /**
+     * Powers of ten which are exactly representable as double.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    private CharSequence mText;
+    private int mPosition;
+    private int mEnd;
+
+    // Results of the last parsing
+    private double mLatitude;
+    private double mLongitude;
+    private double mAltitude;
+    private double mUncertainty;
+
+    /**
+     * Parses a geo URI.
+     *
+     * @param text The text containing the URI.
+     * @param start The position where the URI starts.
+     * @param end The position after the last character of the URI.
+     * @return True if the URI is valid. In this case, the coordinates are available through the getters.
+     */
+    boolean parse(CharSequence text, int start, int end) {
+        mText = text;
+        mPosition = start;
+        mEnd = end;
+        mAltitude = Double.NaN;
+        mUncertainty = Double.NaN;
+
+        try {
+            if (!consumeIgnoreCase(SCHEME)) {
+                return false;
+            }
+
+            // Coordinates
+            mLatitude = parseNumber();
+            if (!consume(',')) {
+                return false;
+            }
+            mLongitude = parseNumber();
+            if (consume(',')) {
+                mAltitude = parseNumber();
+                if (Double.isNaN(mAltitude)) {
+                    return false;
+                }
+            }
+            if (!isValidCoordinate(mLatitude, mLongitude)) {
+                return false;
+            }
+
+            // Parameters
+            while (consume(';')) {
+                if (consumeParameterName(PARAMETER_CRS)) {
+                    if (!consumeIgnoreCase(CRS_WGS84) || !isParameterEnd()) {
+                        return false;
+                    }
+                } else if (consumeParameterName(PARAMETER_UNCERTAINTY)) {
+                    mUncertainty = parseNumber();
+                    if (!(mUncertainty >= 0) || !isParameterEnd()) {
+                        return false;
+                    }
+                } else {
+                    while (!isParameterEnd()) {
+                        mPosition++;
+                    }
+                }
+            }
+
+            // Query
+            if (consume('?')) {
+                parseQuery();
+            }
+
+            return mPosition == mEnd;
+
+        } finally {
+            mText = null;
+        }
+    }
+
+    /**
+     * Parses the query of a geo URI, looking for coordinates in the {@code q} parameter.
+     * A query without coordinates (for instance, an address) is ignored.
+     */
+    private void parseQuery() {
+        while (mPosition < mEnd) {
+            int parameterEnd = indexOf('&');
+
+            if (consumeIgnoreCase(QUERY_PARAMETER)) {
+                int savedEnd = mEnd;
+                mEnd = parameterEnd;
+
+                double latitude = parseNumber();
+                double longitude = consume(',') ? parseNumber() : Double.NaN;
+                double altitude = consume(',') ? parseNumber() : Double.NaN;
+
+                // Remaining is the label, between parenthesis
+                if (isValidCoordinate(latitude, longitude) && (mPosition == mEnd || mText.charAt(mPosition) == '(')) {
+                    mLatitude = latitude;
+                    mLongitude = longitude;
+                    if (!Double.isNaN(altitude)) {
+                        mAltitude = altitude;
+                    }
+                }
+                mEnd = savedEnd;
+            }
+
+            mPosition = parameterEnd < mEnd ? parameterEnd + 1 : mEnd;
+        }
+    }
+
+    /**
+     * Parses a decimal number, without allocating.
+     * Results are correctly rounded up to 15 significant digits, and within one ulp otherwise.
+     *
+     * @return The parsed number, or NaN if there is no number at the current position.
+     */
+    private double parseNumber() {
+        int i = mPosition;
+        boolean negative = false;
+
+        if (i < mEnd && (mText.charAt(i) == '-' || mText.charAt(i) == '+')) {
+            negative = mText.charAt(i) == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        int droppedIntegerDigits = 0;
+        boolean hasDigits = false;
+        boolean hasDot = false;
+
+        for (; i < mEnd; i++) {
+            char c = mText.charAt(i);
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+                if (significantDigits < MAX_SIGNIFICANT_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa != 0) {
+                        significantDigits++;
+                    }
+                    if (hasDot) {
+                        fractionDigits++;
+                    }
+                } else if (!hasDot) {
+                    droppedIntegerDigits++;
+                }
+            } else if (c == '.' && !hasDot) {
+                hasDot = true;
+            } else {
+                break;
+            }
+        }
+
+        if (!hasDigits) {
+            return Double.NaN;
+        }
+        mPosition = i;
+
+        double value = mantissa;
+        if (droppedIntegerDigits > 0) {
+            value *= Math.pow(10, droppedIntegerDigits);
+        }
+        if (fractionDigits > 0) {
+            value /= fractionDigits < POWERS_OF_TEN.length ? POWERS_OF_TEN[fractionDigits] : Math.pow(10, fractionDigits);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Consumes a parameter name followed by the equals sign.
+     */
+    private boolean consumeParameterName(String name) {
+        int start = mPosition;
+        if (consumeIgnoreCase(name) && consume('=')) {
+            return true;
+        }
+        mPosition = start;
+        return false;
+    }
+
+    /**
+     * Consumes a token, ignoring case.
+     */
+    private boolean consumeIgnoreCase(String token) {
+        int length = token.length();
+        if (mEnd - mPosition < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (Character.toLowerCase(mText.charAt(mPosition + i)) != token.charAt(i)) {
+                return false;
+            }
+        }
+        mPosition += length;
+        return true;
+    }
+
+    /**
+     * Consumes a single character.
+     */
+    private boolean consume(char c) {
+        if (mPosition < mEnd && mText.charAt(mPosition) == c) {
+            mPosition++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the current position ends a URI parameter.
+     */
+    private boolean isParameterEnd() {
+        if (mPosition == mEnd) {
+            return true;
+        }
+        char c = mText.charAt(mPosition);
+        return c == ';' || c == '?';
+    }
+
+    /**
+     * Finds a character from the current position.
+     *
+     * @return Its position, or the end position if it was not found.
+     */
+    private int indexOf(char c) {
+        for (int i = mPosition; i < mEnd; i++) {
+            if (mText.charAt(i) == c) {
+                return i;
+            }
+        }
+        return mEnd;
+    }
+
+    private static boolean isValidCoordinate(double latitude, double longitude) {
+        return latitude >= -90.0 && latitude <= 90.0 && longitude >= -180.0 && longitude <= 180.0;
+    }
+
+    /**
+     * @return The latitude of the last parsed URI, in degrees.
+     */
+    double getLatitude() {
+        return mLatitude;
+    }
+
+    /**
+     * @return The longitude of the last parsed URI, in degrees.
+     */
+    double getLongitude() {
+        return mLongitude;
+    }
+
+    /**
+     * @return The altitude of the last parsed URI, in meters, or NaN if not present.
+     */
+    double getAltitude() {
+        return mAltitude;
+    }
+
+    /**
+     * @return The uncertainty of the last parsed URI, in meters, or NaN if not present.
+     */
+    double getUncertainty() {
+        return mUncertainty;
+    }
+}
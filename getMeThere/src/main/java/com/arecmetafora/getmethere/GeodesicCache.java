@@ -0,0 +1,44 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Cache of the last geodesic solution, shared by the compass sensor and its views, so the distance and bearing
+ * between the user and the tracked location are computed once per GPS fix, instead of once per frame per view.
+ * <p>
+ * The cache is keyed by the coordinates themselves, so any caller asking for the same pair gets the same solution.
+ * It is safe to be used from any thread.
+ */
+public final class GeodesicCache {
+
+    private static final GeodesicCache sDefault = new GeodesicCache();
+
+    /**
+     * Last computed solution. Solutions are immutable, so they can be published without locking.
+     */
+    private volatile Geodesy.Solution mLastSolution;
+
+    /**
+     * @return The cache shared by the whole library.
+     */
+    public static GeodesicCache getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Gets the distance and initial bearing between two coordinates, computing it only if they changed since
+     * the last call.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The geodesic solution.
+     */
+    public Geodesy.Solution solve(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        Geodesy.Solution solution = mLastSolution;
+        if(solution == null || !solution.isFor(fromLatitude, fromLongitude, toLatitude, toLongitude)) {
+            solution = Geodesy.solve(fromLatitude, fromLongitude, toLatitude, toLongitude);
+            mLastSolution = solution;
+        }
+        return solution;
+    }
+}
@@ -0,0 +1,313 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Geodesic computations (distance and bearing between two coordinates), free of Android dependencies.
+ * <p>
+ * Three solvers are available, trading accuracy for speed:
+ * <ul>
+ *     <li>{@link #vincenty}: iterative solution on the WGS84 ellipsoid, the same used by
+ *     {@code Location.distanceTo}. Accurate to a fraction of a millimeter, except for nearly antipodal
+ *     points, where it may not converge.</li>
+ *     <li>{@link #haversineDistance} and {@link #sphericalBearing}: closed formulas on a sphere of the mean
+ *     Earth radius. Distance error is below 0.6% and bearing error below 0.2 degree.</li>
+ *     <li>{@link #flatEarthDistance} and {@link #flatEarthBearing}: local tangent plane using the WGS84 radii of
+ *     curvature at the mean latitude. Within 10 km, distance error is below 2 centimeters and bearing error
+ *     below 0.2 degree (0.02 degree within 1 km), below 70 degrees of latitude.</li>
+ * </ul>
+ * Bearings are in degrees east of true north, in the range (-180, 180], as {@code Location.bearingTo}.
+ */
+public final class Geodesy {
+
+    private static final double WGS84_A = 6378137.0;               // semi-major axis, in meters
+    private static final double WGS84_B = 6356752.3142;            // semi-minor axis, in meters
+    private static final double WGS84_F = (WGS84_A - WGS84_B) / WGS84_A;
+    private static final double WGS84_E2 = 0.00669437999014;       // square of eccentricity
+    private static final double MEAN_EARTH_RADIUS = 6371008.8;     // in meters
+
+    private static final int VINCENTY_MAX_ITERATIONS = 20;
+    private static final double VINCENTY_TOLERANCE = 1.0e-12;
+
+    /**
+     * Maximum distance where the flat earth solver is preferred by {@link #solve}, in meters.
+     */
+    public static final double FLAT_EARTH_MAX_DISTANCE = 10000;
+
+    /**
+     * Maximum latitude where the flat earth solver is preferred by {@link #solve}, in degrees. Closer to the
+     * poles, the meridians converge too fast for a single tangent plane over {@link #FLAT_EARTH_MAX_DISTANCE}.
+     */
+    public static final double FLAT_EARTH_MAX_LATITUDE = 70;
+
+    /**
+     * Result of a geodesic computation between two coordinates.
+     */
+    public static final class Solution {
+        private final double mFromLatitude;
+        private final double mFromLongitude;
+        private final double mToLatitude;
+        private final double mToLongitude;
+        private final double mDistance;
+        private final double mInitialBearing;
+
+        Solution(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude,
+                 double distance, double initialBearing) {
+            mFromLatitude = fromLatitude;
+            mFromLongitude = fromLongitude;
+            mToLatitude = toLatitude;
+            mToLongitude = toLongitude;
+            mDistance = distance;
+            mInitialBearing = initialBearing;
+        }
+
+        /**
+         * Checks whether this solution was computed for the given coordinates.
+         */
+        boolean isFor(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+            return mFromLatitude == fromLatitude && mFromLongitude == fromLongitude
+                    && mToLatitude == toLatitude && mToLongitude == toLongitude;
+        }
+
+        /**
+         * @return The distance between the coordinates, in meters.
+         */
+        public double getDistance() {
+            return mDistance;
+        }
+
+        /**
+         * @return The initial bearing from the first coordinate to the second one, in degrees.
+         */
+        public double getInitialBearing() {
+            return mInitialBearing;
+        }
+    }
+
+    private Geodesy() {
+    }
+
+    /**
+     * Computes the distance and initial bearing between two coordinates, picking the flat earth solver for
+     * nearby coordinates and Vincenty otherwise.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The solution.
+     */
+    public static Solution solve(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double distance = flatEarthDistance(fromLatitude, fromLongitude, toLatitude, toLongitude);
+        double bearing;
+
+        if(distance <= FLAT_EARTH_MAX_DISTANCE && Math.abs(fromLatitude) < FLAT_EARTH_MAX_LATITUDE
+                && Math.abs(toLatitude) < FLAT_EARTH_MAX_LATITUDE) {
+            bearing = flatEarthBearing(fromLatitude, fromLongitude, toLatitude, toLongitude);
+        } else {
+            double[] results = new double[2];
+            vincenty(fromLatitude, fromLongitude, toLatitude, toLongitude, results);
+            distance = results[0];
+            bearing = results[1];
+        }
+
+        return new Solution(fromLatitude, fromLongitude, toLatitude, toLongitude, distance, bearing);
+    }
+
+    /**
+     * Computes the distance and initial bearing between two coordinates on the WGS84 ellipsoid,
+     * using Vincenty's inverse formula.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @param results Buffer where the distance (in meters) and the initial bearing (in degrees) will be
+     *                written. If it has room for a third value, the final bearing is written as well.
+     * @return False if the iteration did not converge (nearly antipodal points), true otherwise.
+     */
+    public static boolean vincenty(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude,
+                                   double[] results) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double lon1 = Math.toRadians(fromLongitude);
+        double lon2 = Math.toRadians(toLongitude);
+
+        double l = lon2 - lon1;
+        double aSqMinusBSqOverBSq = (WGS84_A * WGS84_A - WGS84_B * WGS84_B) / (WGS84_B * WGS84_B);
+
+        double u1 = Math.atan((1.0 - WGS84_F) * Math.tan(lat1));
+        double u2 = Math.atan((1.0 - WGS84_F) * Math.tan(lat2));
+
+        double cosU1 = Math.cos(u1);
+        double cosU2 = Math.cos(u2);
+        double sinU1 = Math.sin(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU1cosU2 = cosU1 * cosU2;
+        double sinU1sinU2 = sinU1 * sinU2;
+
+        double sigma = 0.0;
+        double deltaSigma = 0.0;
+        double cosSqAlpha;
+        double cos2SM;
+        double cosSigma;
+        double sinSigma;
+        double cosLambda = 0.0;
+        double sinLambda = 0.0;
+
+        double lambda = l;
+        boolean converged = false;
+        for (int iteration = 0; iteration < VINCENTY_MAX_ITERATIONS; iteration++) {
+            double lambdaOrig = lambda;
+            cosLambda = Math.cos(lambda);
+            sinLambda = Math.sin(lambda);
+            double t1 = cosU2 * sinLambda;
+            double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            double sinSqSigma = t1 * t1 + t2 * t2;
+            sinSigma = Math.sqrt(sinSqSigma);
+            cosSigma = sinU1sinU2 + cosU1cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = (sinSigma == 0) ? 0.0 : cosU1cosU2 * sinLambda / sinSigma;
+            cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            cos2SM = (cosSqAlpha == 0) ? 0.0 : cosSigma - 2.0 * sinU1sinU2 / cosSqAlpha;
+
+            double uSquared = cosSqAlpha * aSqMinusBSqOverBSq;
+            double a = 1 + (uSquared / 16384.0) * (4096.0 + uSquared * (-768 + uSquared * (320.0 - 175.0 * uSquared)));
+            double b = (uSquared / 1024.0) * (256.0 + uSquared * (-128.0 + uSquared * (74.0 - 47.0 * uSquared)));
+            double c = (WGS84_F / 16.0) * cosSqAlpha * (4.0 + WGS84_F * (4.0 - 3.0 * cosSqAlpha));
+            double cos2SMSq = cos2SM * cos2SM;
+            deltaSigma = b * sinSigma * (cos2SM + (b / 4.0) * (cosSigma * (-1.0 + 2.0 * cos2SMSq)
+                    - (b / 6.0) * cos2SM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SMSq)));
+
+            lambda = l + (1.0 - c) * WGS84_F * sinAlpha
+                    * (sigma + c * sinSigma * (cos2SM + c * cosSigma * (-1.0 + 2.0 * cos2SM * cos2SM)));
+
+            if (Math.abs((lambda - lambdaOrig) / lambda) < VINCENTY_TOLERANCE) {
+                converged = true;
+                results[0] = WGS84_B * a * (sigma - deltaSigma);
+                break;
+            }
+            results[0] = WGS84_B * a * (sigma - deltaSigma);
+        }
+
+        results[1] = Math.toDegrees(Math.atan2(cosU2 * sinLambda, cosU1 * sinU2 - sinU1 * cosU2 * cosLambda));
+        if (results.length > 2) {
+            results[2] = Math.toDegrees(Math.atan2(cosU1 * sinLambda, -sinU1 * cosU2 + cosU1 * sinU2 * cosLambda));
+        }
+
+        // Coincident points converge at the first iteration with a 0/0 relative change
+        return converged || lambda == 0;
+    }
+
+    /**
+     * Computes the great circle distance between two coordinates, on a sphere of the mean Earth radius.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The distance, in meters.
+     */
+    public static double haversineDistance(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double sinHalfDLat = Math.sin((lat2 - lat1) / 2);
+        double sinHalfDLon = Math.sin(Math.toRadians(toLongitude - fromLongitude) / 2);
+        double h = sinHalfDLat * sinHalfDLat + Math.cos(lat1) * Math.cos(lat2) * sinHalfDLon * sinHalfDLon;
+        return 2 * MEAN_EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(h)));
+    }
+
+    /**
+     * Computes the initial bearing of the great circle between two coordinates, on a sphere.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The initial bearing, in degrees.
+     */
+    public static double sphericalBearing(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double lat1 = Math.toRadians(fromLatitude);
+        double lat2 = Math.toRadians(toLatitude);
+        double dLon = Math.toRadians(toLongitude - fromLongitude);
+        double y = Math.sin(dLon) * Math.cos(lat2);
+        double x = Math.cos(lat1) * Math.sin(lat2) - Math.sin(lat1) * Math.cos(lat2) * Math.cos(dLon);
+        return Math.toDegrees(Math.atan2(y, x));
+    }
+
+    /**
+     * Computes the distance between two nearby coordinates, on the plane tangent to the WGS84 ellipsoid
+     * at their mean latitude.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The distance, in meters.
+     */
+    public static double flatEarthDistance(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double meanLatitude = Math.toRadians((fromLatitude + toLatitude) / 2);
+        double sinLat = Math.sin(meanLatitude);
+        double w = 1 - WGS84_E2 * sinLat * sinLat;
+        double primeVerticalRadius = WGS84_A / Math.sqrt(w);
+        double meridionalRadius = primeVerticalRadius * (1 - WGS84_E2) / w;
+
+        double north = Math.toRadians(toLatitude - fromLatitude) * meridionalRadius;
+        double east = Math.toRadians(wrapLongitude(toLongitude - fromLongitude)) * primeVerticalRadius * Math.cos(meanLatitude);
+        return Math.sqrt(north * north + east * east);
+    }
+
+    /**
+     * Computes the bearing between two nearby coordinates, on the plane tangent to the WGS84 ellipsoid
+     * at their mean latitude.
+     *
+     * @param fromLatitude The latitude of the starting coordinate, in degrees.
+     * @param fromLongitude The longitude of the starting coordinate, in degrees.
+     * @param toLatitude The latitude of the destination coordinate, in degrees.
+     * @param toLongitude The longitude of the destination coordinate, in degrees.
+     * @return The bearing, in degrees.
+     */
+    public static double flatEarthBearing(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        double meanLatitude = Math.toRadians((fromLatitude + toLatitude) / 2);
+        double sinLat = Math.sin(meanLatitude);
+        double w = 1 - WGS84_E2 * sinLat * sinLat;
+
+        // Ratio between the meridional radius and the prime vertical radius of curvature
+        double north = Math.toRadians(toLatitude - fromLatitude) * (1 - WGS84_E2) / w;
+        double east = Math.toRadians(wrapLongitude(toLongitude - fromLongitude)) * Math.cos(meanLatitude);
+        return Math.toDegrees(Math.atan2(east, north));
+    }
+
+    /**
+     * Moves a coordinate by a small displacement, on the plane tangent to the WGS84 ellipsoid at the
+     * coordinate. It is the inverse of {@link #flatEarthDistance} and {@link #flatEarthBearing}, with the same
+     * accuracy.
+     *
+     * @param latitude The latitude of the coordinate, in degrees.
+     * @param longitude The longitude of the coordinate, in degrees.
+     * @param east The displacement to the east, in meters.
+     * @param north The displacement to the north, in meters.
+     * @param results Buffer where the latitude and the longitude of the moved coordinate will be written,
+     *                in degrees.
+     */
+    public static void flatEarthOffset(double latitude, double longitude, double east, double north,
+                                       double[] results) {
+        double sinLat = Math.sin(Math.toRadians(latitude));
+        double w = 1 - WGS84_E2 * sinLat * sinLat;
+        double primeVerticalRadius = WGS84_A / Math.sqrt(w);
+        double meridionalRadius = primeVerticalRadius * (1 - WGS84_E2) / w;
+
+        results[0] = latitude + Math.toDegrees(north / meridionalRadius);
+        results[1] = longitude + Math.toDegrees(east / (primeVerticalRadius * Math.cos(Math.toRadians(latitude))));
+    }
+
+    /**
+     * Wraps a longitude difference to the range [-180, 180].
+     */
+    private static double wrapLongitude(double longitude) {
+        if (longitude > 180) {
+            return longitude - 360;
+        } else if (longitude < -180) {
+            return longitude + 360;
+        }
+        return longitude;
+    }
+}
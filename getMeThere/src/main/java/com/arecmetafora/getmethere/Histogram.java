@@ -0,0 +1,116 @@
+package com.arecmetafora.getmethere;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations with fixed log-linear buckets, which can be recorded from any thread without locks
+ * nor allocations.
+ * <p>
+ * The first {@link #SUB_BUCKET_COUNT} buckets are 1 microsecond wide. Past them, every octave of microseconds,
+ * from 2^n up to 2^(n+1), is split into {@link #SUB_BUCKET_COUNT} buckets of the same width. The last bucket
+ * also counts every longer duration. Percentiles are reported as the upper bound of their bucket, so they are
+ * accurate within 1 microsecond, or within 12.5% for longer durations.
+ */
+public final class Histogram {
+
+    /**
+     * Number of buckets per octave, as a power of 2.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of buckets per octave.
+     */
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Number of buckets, for 24 octaves. The last regular one ends at 15 * 2^22 microseconds, about a minute.
+     */
+    public static final int BUCKET_COUNT = 24 * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos The duration, in nanoseconds.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket;
+        if(micros < SUB_BUCKET_COUNT) {
+            bucket = (int) micros;
+        } else {
+            // The octave, then the sub-bucket given by the bits which follow the highest one
+            int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+            bucket = (int) Math.min(shift * SUB_BUCKET_COUNT + (micros >> shift), BUCKET_COUNT - 1);
+        }
+        mBuckets.incrementAndGet(bucket);
+    }
+
+    /**
+     * @param bucket Index of the bucket.
+     * @return The number of durations recorded in the bucket.
+     */
+    public long getBucketCount(int bucket) {
+        return mBuckets.get(bucket);
+    }
+
+    /**
+     * @param bucket Index of the bucket.
+     * @return The upper bound of the durations of the bucket, in nanoseconds, or {@link Long#MAX_VALUE} for the
+     *         last one.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        if(bucket == BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        if(bucket < SUB_BUCKET_COUNT) {
+            return (bucket + 1) * 1000L;
+        }
+        int shift = bucket / SUB_BUCKET_COUNT - 1;
+        return ((long) (bucket % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT + 1) << shift) * 1000;
+    }
+
+    /**
+     * @return The number of recorded durations.
+     */
+    public long getCount() {
+        long count = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            count += mBuckets.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recorded durations. Concurrent recordings may or may not be taken into account.
+     *
+     * @param percentile The percentile, in the [0, 100] range.
+     * @return The upper bound of the bucket of the percentile, in nanoseconds, or 0 if nothing was recorded.
+     */
+    public long getPercentile(float percentile) {
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if(seen >= rank) {
+                return getBucketUpperBound(i);
+            }
+        }
+        return getBucketUpperBound(BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Forgets all recorded durations.
+     */
+    public void clear() {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+    }
+}
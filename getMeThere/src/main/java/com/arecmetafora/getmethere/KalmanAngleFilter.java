@@ -0,0 +1,52 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * One dimensional Kalman filter of angles, modelling the angle as a random walk.
+ * <p>
+ * The gain adapts itself: right after a turn the estimate follows the measurements closely, and while the
+ * device is still the measurements weigh less and less, down to the balance between both noises.
+ */
+public final class KalmanAngleFilter implements AngleFilter {
+
+    private final float mProcessNoise;
+    private final float mMeasurementNoise;
+
+    private float mAngle;
+    private float mVariance;
+    private long mTimestamp;
+    private boolean mInitialized;
+
+    /**
+     * Creates a Kalman angle filter.
+     *
+     * @param processNoise How fast the true angle is expected to wander, as a variance rate, in squared degrees
+     *                     per second.
+     * @param measurementNoise Variance of the measurements, in squared degrees.
+     */
+    public KalmanAngleFilter(float processNoise, float measurementNoise) {
+        mProcessNoise = processNoise;
+        mMeasurementNoise = measurementNoise;
+    }
+
+    @Override
+    public float filter(float degrees, long timestamp) {
+        if(!mInitialized) {
+            mInitialized = true;
+            mAngle = Angles.wrapDegrees(degrees);
+            mVariance = mMeasurementNoise;
+        } else {
+            float dt = Math.max(0, (timestamp - mTimestamp) * 1e-9f);
+            float variance = mVariance + mProcessNoise * dt;
+            float gain = variance / (variance + mMeasurementNoise);
+            mAngle = Angles.wrapDegrees(mAngle + gain * Angles.shortestArc(mAngle, degrees));
+            mVariance = (1 - gain) * variance;
+        }
+        mTimestamp = timestamp;
+        return mAngle;
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+    }
+}
@@ -0,0 +1,247 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Policy of location updates, which picks their interval and accuracy by the distance to the tracked location,
+ * the user speed and stillness.
+ * <p>
+ * Precise and frequent updates are only needed when the user is close to the tracked location, or getting
+ * there fast. Far away, a coarse position is enough to point the right way, and a still user does not need
+ * updates at all. To avoid thrashing between levels, the thresholds have hysteresis margins, and the policy is
+ * only relaxed after the new level held for {@link #MINIMUM_RELAX_DWELL} (it is tightened right away).
+ * <p>
+ * The scheduler also accounts for the time spent with location updates on, and with the GPS on (high
+ * accuracy levels), so its energy use can be compared with a fixed policy. It is thread safe.
+ */
+final class LocationScheduler {
+
+    /**
+     * Levels of location updates.
+     */
+    enum Level {
+        /**
+         * Close to the tracked location, or getting there fast.
+         */
+        NEAR(2000, true),
+
+        /**
+         * On the way to the tracked location. It is the starting level, and the fixed policy.
+         */
+        APPROACHING(3000, true),
+
+        /**
+         * Far away from the tracked location, where a coarse position is enough.
+         */
+        FAR(15000, false),
+
+        /**
+         * The user is not moving.
+         */
+        STILL(30000, false);
+
+        final long mInterval;
+        final boolean mHighAccuracy;
+
+        Level(long interval, boolean highAccuracy) {
+            mInterval = interval;
+            mHighAccuracy = highAccuracy;
+        }
+    }
+
+    // Distance and time to the tracked location which make it near or far, in meters and seconds
+    private static final double NEAR_DISTANCE = 250;
+    private static final double NEAR_TIME = 120;
+    private static final double FAR_DISTANCE = 2000;
+    private static final double FAR_TIME = 600;
+
+    /**
+     * Margin of the near and far thresholds, applied against leaving the current level.
+     */
+    private static final double HYSTERESIS = 1.2;
+
+    // Speeds under which the user is considered still, and above which they are moving again, in m/s
+    private static final float STILL_SPEED = 0.3f;
+    private static final float MOVING_SPEED = 0.6f;
+
+    /**
+     * Time the user must stay under the still speed to be considered still, in milliseconds.
+     */
+    private static final long STILL_TIME = 30000;
+
+    /**
+     * Time a relaxed level must hold before it is applied, in milliseconds.
+     */
+    static final long MINIMUM_RELAX_DWELL = 15000;
+
+    /**
+     * Slowest speed assumed to estimate the time to the tracked location, in m/s.
+     */
+    private static final float MINIMUM_SPEED = 0.5f;
+
+    private boolean mAdaptive = true;
+    private Level mLevel = Level.APPROACHING;
+    private Level mCandidate;
+    private long mCandidateSince;
+    private long mSlowSince = -1;
+
+    // Energy accounting
+    private boolean mRunning;
+    private long mLevelSince;
+    private long mUpdatesTime;
+    private long mGpsTime;
+    private int mLevelChanges;
+
+    /**
+     * Switches between the adaptive policy and the fixed one, which always uses {@link Level#APPROACHING}.
+     *
+     * @param adaptive True for the adaptive policy.
+     * @param now Current time, in milliseconds.
+     */
+    synchronized void setAdaptive(boolean adaptive, long now) {
+        mAdaptive = adaptive;
+        if(!adaptive) {
+            setLevel(Level.APPROACHING, now);
+        }
+    }
+
+    /**
+     * Evaluates the policy with a new estimate of the user state.
+     *
+     * @param distance Distance to the tracked location, in meters.
+     * @param speed Speed of the user, in m/s.
+     * @param now Current time, in milliseconds.
+     * @return True if the level changed, so the location updates must be requested again.
+     */
+    synchronized boolean update(double distance, float speed, long now) {
+        if(!mAdaptive || !mRunning) {
+            return false;
+        }
+
+        Level target = evaluate(distance, speed, now);
+        if(target == mLevel) {
+            mCandidate = null;
+            return false;
+        }
+
+        // Tightening is applied right away, relaxing only after it holds for a while
+        if(target.mInterval > mLevel.mInterval) {
+            if(target != mCandidate) {
+                mCandidate = target;
+                mCandidateSince = now;
+                return false;
+            }
+            if(now - mCandidateSince < MINIMUM_RELAX_DWELL) {
+                return false;
+            }
+        }
+        setLevel(target, now);
+        return true;
+    }
+
+    private Level evaluate(double distance, float speed, long now) {
+        // Stillness
+        if(speed < (mLevel == Level.STILL ? MOVING_SPEED : STILL_SPEED)) {
+            if(mSlowSince < 0) {
+                mSlowSince = now;
+            }
+            if(mLevel == Level.STILL || now - mSlowSince >= STILL_TIME) {
+                return Level.STILL;
+            }
+        } else {
+            mSlowSince = -1;
+        }
+
+        // Distance and time to the tracked location, with margins against leaving the current level
+        double time = distance / Math.max(speed, MINIMUM_SPEED);
+        double nearMargin = mLevel == Level.NEAR ? HYSTERESIS : 1;
+        if(distance < NEAR_DISTANCE * nearMargin || time < NEAR_TIME * nearMargin) {
+            return Level.NEAR;
+        }
+        double farMargin = mLevel == Level.FAR ? HYSTERESIS : 1;
+        if(distance * farMargin > FAR_DISTANCE && time * farMargin > FAR_TIME) {
+            return Level.FAR;
+        }
+        return Level.APPROACHING;
+    }
+
+    private void setLevel(Level level, long now) {
+        if(level != mLevel) {
+            account(now);
+            mLevel = level;
+            mLevelChanges++;
+        }
+        mCandidate = null;
+    }
+
+    private void account(long now) {
+        if(mRunning) {
+            long elapsed = now - mLevelSince;
+            mUpdatesTime += elapsed;
+            if(mLevel.mHighAccuracy) {
+                mGpsTime += elapsed;
+            }
+        }
+        mLevelSince = now;
+    }
+
+    /**
+     * Called when the location updates are requested. The updates start over from {@link Level#APPROACHING},
+     * since the level picked before they were stopped may no longer fit the user.
+     *
+     * @param now Current time, in milliseconds.
+     */
+    synchronized void onStarted(long now) {
+        account(now);
+        setLevel(Level.APPROACHING, now);
+        mRunning = true;
+    }
+
+    /**
+     * Called when the location updates are removed.
+     *
+     * @param now Current time, in milliseconds.
+     */
+    synchronized void onStopped(long now) {
+        account(now);
+        mRunning = false;
+        mSlowSince = -1;
+        mCandidate = null;
+    }
+
+    /**
+     * @return Whether the location updates are requested.
+     */
+    synchronized boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * @return The current level of the location updates.
+     */
+    synchronized Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @param now Current time, in milliseconds.
+     * @return The time spent with location updates requested, in milliseconds. It is the GPS time of the fixed
+     *         policy.
+     */
+    synchronized long getUpdatesTime(long now) {
+        return mUpdatesTime + (mRunning ? now - mLevelSince : 0);
+    }
+
+    /**
+     * @param now Current time, in milliseconds.
+     * @return The time spent with high accuracy location updates requested, in milliseconds.
+     */
+    synchronized long getGpsTime(long now) {
+        return mGpsTime + (mRunning && mLevel.mHighAccuracy ? now - mLevelSince : 0);
+    }
+
+    /**
+     * @return The number of level changes.
+     */
+    synchronized int getLevelChanges() {
+        return mLevelChanges;
+    }
+}
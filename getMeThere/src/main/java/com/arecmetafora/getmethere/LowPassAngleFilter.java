@@ -0,0 +1,42 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * First order low-pass filter of angles. It is the cheapest filter, but it lags behind fast turns.
+ */
+public final class LowPassAngleFilter implements AngleFilter {
+
+    private final float mTimeConstant;
+
+    private float mAngle;
+    private long mTimestamp;
+    private boolean mInitialized;
+
+    /**
+     * Creates a low-pass angle filter.
+     *
+     * @param timeConstant Time constant of the filter, in seconds. Changes faster than it are smoothed out.
+     */
+    public LowPassAngleFilter(float timeConstant) {
+        mTimeConstant = timeConstant;
+    }
+
+    @Override
+    public float filter(float degrees, long timestamp) {
+        if(!mInitialized) {
+            mInitialized = true;
+        } else {
+            // The smoothing factor depends on the time step, so irregular sensor rates are filtered alike
+            float dt = Math.max(0, (timestamp - mTimestamp) * 1e-9f);
+            float alpha = dt / (mTimeConstant + dt);
+            degrees = mAngle + alpha * Angles.shortestArc(mAngle, degrees);
+        }
+        mAngle = Angles.wrapDegrees(degrees);
+        mTimestamp = timestamp;
+        return mAngle;
+    }
+
+    @Override
+    public void reset() {
+        mInitialized = false;
+    }
+}
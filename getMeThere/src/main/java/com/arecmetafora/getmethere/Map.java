@@ -6,9 +6,11 @@ import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PointF;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -24,20 +26,53 @@ import com.otaliastudios.zoom.ZoomImageView;
 /**
  * Offline map of a location`s neighborhood.
  */
-public class Map extends ZoomImageView implements CompassSensor.BearingCallback {
+public class Map extends ZoomImageView implements CompassSensor.BearingCallback, CompassSensor.TimestampCallback {
 
     /**
-     * Drawable for this view
+     * Drawable for this view. Maps decoded by regions are drawn from tiles, at the resolution of the current zoom.
      */
-    private class MapDrawable extends BitmapDrawable {
-        MapDrawable(Bitmap bitmap) {
-            super(Map.this.getResources(), bitmap);
+    private class MapDrawable extends Drawable {
+        private final OfflineMap mMap;
+
+        MapDrawable(OfflineMap offlineMap) {
+            mMap = offlineMap;
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas) {
+            float zoomScale = getEngine().getRealZoom();
+            Bitmap mapBitmap = mMap.getMapBitmap();
+            if(mapBitmap != null) {
+                mMapRect.set(0, 0, mMap.getWidth(), mMap.getHeight());
+                canvas.drawBitmap(mapBitmap, null, mMapRect, mMapPaint);
+            } else {
+                mTileRenderer.draw(canvas, zoomScale);
+            }
+            drawMapOverlay(canvas, mMap.getWidth(), mMap.getHeight(), zoomScale);
+            mLatencyTracker.onDraw(mCurrentSensorAnimation == null || !mCurrentSensorAnimation.isRunning());
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return mMap.getWidth();
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return mMap.getHeight();
         }
 
         @Override
-        public void draw(Canvas canvas) {
-            super.draw(canvas);
-            drawMapOverlay(canvas, this.getBitmap().getWidth(), this.getBitmap().getHeight(), getEngine().getRealZoom());
+        public void setAlpha(int alpha) {
+        }
+
+        @Override
+        public void setColorFilter(@Nullable ColorFilter colorFilter) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.OPAQUE;
         }
     }
 
@@ -82,9 +117,15 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
     private RectF mMyLocationBearingRect;
     private Paint mAccuracyRadiusFill;
     private Paint mImagePaint = new Paint(Paint.DITHER_FLAG);
+    private Paint mMapPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private Rect mMapRect = new Rect();
     private Matrix mLocationMatrix;
+    private Matrix mInverseZoomMatrix = new Matrix();
+    private float[] mTouchPoint = new float[2];
     private ValueAnimator mCurrentSensorAnimation;
     private ValueAnimator mCurrentAccuracyAnimation;
+    private final FrameLatencyTracker mLatencyTracker = new FrameLatencyTracker(this);
+    private final MapTileRenderer mTileRenderer = new MapTileRenderer(this);
     private float mMyLocationIconSize;
 
     /**
@@ -144,10 +185,10 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
         getViewTreeObserver().addOnGlobalLayoutListener(new ViewTreeObserver.OnGlobalLayoutListener() {
             @Override
             public void onGlobalLayout() {
-                if(mOfflineMap != null && mOfflineMap.getMapBitmap() != null) {
+                if(mOfflineMap != null) {
                     float minZoom = Math.min(
-                            (float) getMeasuredWidth() / mOfflineMap.getMapBitmap().getWidth(),
-                            (float) getMeasuredHeight() / mOfflineMap.getMapBitmap().getHeight());
+                            (float) getMeasuredWidth() / mOfflineMap.getWidth(),
+                            (float) getMeasuredHeight() / mOfflineMap.getHeight());
                     getEngine().setMinZoom(minZoom, ZoomEngine.TYPE_REAL_ZOOM);
                     getEngine().zoomTo(getEngine().getZoom() / getEngine().getRealZoom(), true);
                 }
@@ -183,20 +224,24 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
     }
 
     @Override
-    public void onNewBearing(float bearingToLocation, float azimuth) {
-        mAzimuth = azimuth;
+    public void onUpdateTimestamp(long timestamp) {
+        mLatencyTracker.onUpdate(timestamp);
+    }
 
-        float newAzimuth = azimuth;
-        float oldAzimuth= mAzimuth;
+    @Override
+    public void onNewBearing(float bearingToLocation, float azimuth) {
 
-        // Fix animation from last to first quadrant and vice versa
-        if(oldAzimuth > 270 && newAzimuth < 90) {
-            newAzimuth += 360;
-        }
-        if(newAzimuth > 270 && oldAzimuth < 90) {
-            oldAzimuth += 360;
+        // First update
+        if(mAzimuth == Integer.MIN_VALUE) {
+            mAzimuth = azimuth;
+            invalidate();
+            return;
         }
 
+        // Animates through the shortest arc, even from the last quadrant to the first one and vice versa
+        float oldAzimuth = mAzimuth;
+        float newAzimuth = oldAzimuth + Angles.shortestArc(oldAzimuth, azimuth);
+
         // Cancels previous animation
         if(mCurrentSensorAnimation != null) {
             mCurrentSensorAnimation.cancel();
@@ -206,7 +251,7 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
         mCurrentSensorAnimation.setDuration(DEFAULT_ANGLE_ANIMATION_TIME);
         mCurrentSensorAnimation.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
             public void onAnimationUpdate(ValueAnimator animation) {
-                mAzimuth = (float) animation.getAnimatedValue() % 360f;
+                mAzimuth = Angles.wrapDegrees((float) animation.getAnimatedValue());
                 invalidate();
             }
         });
@@ -225,12 +270,12 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
 
         if(mMyLocation != null) {
 
-            PointF myLocationXY = mOfflineMap.projectToPixel(mMyLocation);
+            OfflineMap.ProjectedLocation myLocationXY = mOfflineMap.projectLocation(mMyLocation, mCurrentAccuracy);
 
             // Accuracy radius for my location
-            float radius = mOfflineMap.projectDistanceFromCenter(mCurrentAccuracy);
+            float radius = myLocationXY.getAccuracyRadius();
             if (radius > mMyLocationRect.width()/4) {
-                canvas.drawCircle(myLocationXY.x, myLocationXY.y, radius, mAccuracyRadiusFill);
+                canvas.drawCircle(myLocationXY.getX(), myLocationXY.getY(), radius, mAccuracyRadiusFill);
             }
 
             Bitmap myLocationBitmap;
@@ -250,7 +295,7 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
                     mLocationMatrix.postScale(widthScale, heightScale);
                     mLocationMatrix.postTranslate(-mMyLocationBearingRect.width() / 2, -mMyLocationBearingRect.height() / 2);
                     mLocationMatrix.postRotate(mAzimuth);
-                    mLocationMatrix.postTranslate(myLocationXY.x, myLocationXY.y);
+                    mLocationMatrix.postTranslate(myLocationXY.getX(), myLocationXY.getY());
                     canvas.drawBitmap(mMyLocationBearingBitmap, mLocationMatrix, mImagePaint);
                 }
             }
@@ -259,8 +304,8 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
             float size = mMyLocationIconSize / zoomScale;
             mMyLocationRect.set(0, 0, size, size);
             mMyLocationRect.offsetTo(
-                    myLocationXY.x - mMyLocationRect.width()/2f,
-                    myLocationXY.y - mMyLocationRect.width()/2f);
+                    myLocationXY.getX() - mMyLocationRect.width()/2f,
+                    myLocationXY.getY() - mMyLocationRect.width()/2f);
             canvas.drawBitmap(myLocationBitmap, null, mMyLocationRect, mImagePaint);
         }
 
@@ -272,18 +317,71 @@ public class Map extends ZoomImageView implements CompassSensor.BearingCallback
         canvas.drawBitmap(mLocationBitmap, null, mLocationRect, mImagePaint);
     }
 
+    /**
+     * Gets the geographic coordinate shown at a point of this view (for instance, a touch event position).
+     *
+     * @param x The horizontal position, relative to this view.
+     * @param y The vertical position, relative to this view.
+     * @return The geographic coordinate at the given point, or null if there is no offline map.
+     */
+    public Location getLocationAt(float x, float y) {
+        Location location = new Location("");
+        return getLocationAt(x, y, location) ? location : null;
+    }
+
+    /**
+     * Gets the geographic coordinate shown at a point of this view (for instance, a touch event position),
+     * without allocating. Cheap enough to be called on every touch move event.
+     *
+     * @param x The horizontal position, relative to this view.
+     * @param y The vertical position, relative to this view.
+     * @param location Location where the geographic coordinate will be written.
+     * @return Whether the coordinate could be computed (false if there is no offline map).
+     */
+    public boolean getLocationAt(float x, float y, Location location) {
+        if(mOfflineMap == null || !getEngine().getMatrix().invert(mInverseZoomMatrix)) {
+            return false;
+        }
+
+        mTouchPoint[0] = x;
+        mTouchPoint[1] = y;
+        mInverseZoomMatrix.mapPoints(mTouchPoint);
+        mOfflineMap.projectToGeographic(mTouchPoint[0], mTouchPoint[1], location);
+        return true;
+    }
+
     /**
      * Sets the offline map to be used by this view.
+     * <p>
+     * The caller keeps owning the map: once it is replaced by another one, or once this view is not drawn
+     * anymore, the caller should {@link OfflineMap#recycle() recycle} it, so its pixels can be reused.
      *
-     * @param offlineMap The offline map data.
+     * @param offlineMap The offline map data. Null is ignored, keeping the current map.
      */
     public void setOfflineMap(OfflineMap offlineMap) {
         if(offlineMap != null) {
             mOfflineMap = offlineMap;
-            this.setImageDrawable(new MapDrawable(offlineMap.getMapBitmap()));
+            mTileRenderer.setOfflineMap(offlineMap.getMapBitmap() == null ? offlineMap : null);
+            this.setImageDrawable(new MapDrawable(offlineMap));
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mTileRenderer.release();
+    }
+
+    /**
+     * Sets the receiver of the motion-to-photon latency reports of this view: the time from the sensor events
+     * to the frames which draw them.
+     *
+     * @param callback The latency callback, or null to stop measuring.
+     */
+    public void setLatencyCallback(@Nullable FrameLatencyTracker.Callback callback) {
+        mLatencyTracker.setCallback(callback);
+    }
+
     /**
      * Sets the location image, draw into the offline map.
      *
@@ -17,6 +17,18 @@ public interface MapProjection {
      */
     PointF toCartesian(Location geographicLocation);
 
+    /**
+     * Converts a batch of geographic coordinates to cartesian coordinate system, without allocating
+     * any object. Useful to project many markers (or a trail of positions) on every drawing frame.
+     *
+     * @param latitudes The latitudes of the geographic coordinates, in degrees.
+     * @param longitudes The longitudes of the geographic coordinates, in degrees.
+     * @param cartesianPoints Buffer where the cartesian projections will be written, as interleaved
+     *                        x and y pairs. Must have room for at least {@code 2 * count} values.
+     * @param count The number of coordinates to be converted.
+     */
+    void toCartesian(double[] latitudes, double[] longitudes, float[] cartesianPoints, int count);
+
     /**
      * Converts a cartesian coordinate to geographic coordinate system.
      *
@@ -25,4 +37,15 @@ public interface MapProjection {
      * @return The geographic projection of cartesian coordinate
      */
     Location toGeographic(PointF cartesianPoint);
+
+    /**
+     * Converts a batch of cartesian coordinates to geographic coordinate system, without allocating
+     * any object.
+     *
+     * @param cartesianPoints The cartesian coordinates, as interleaved x and y pairs.
+     * @param latitudes Buffer where the latitudes will be written, in degrees.
+     * @param longitudes Buffer where the longitudes will be written, in degrees.
+     * @param count The number of coordinates to be converted.
+     */
+    void toGeographic(float[] cartesianPoints, double[] latitudes, double[] longitudes, int count);
 }
@@ -0,0 +1,387 @@
+package com.arecmetafora.getmethere;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.view.View;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Draws an offline map from a pyramid of tiles, decoded by regions in background.
+ *
+ * <p>Each level of the pyramid halves the resolution of the previous one (sample sizes 1, 2, 4...), and every tile
+ * has about {@link #TILE_SIZE} pixels per side once decoded. Only the tiles visible in the view are decoded, at the
+ * level which matches the current zoom, so the memory used is bounded by the size of the view instead of the size
+ * of the map. The level where the whole map fits in the view is kept as a background, drawn under the tiles which
+ * are still being decoded.</p>
+ *
+ * <p>All methods but the decoding itself must be called from the UI thread.</p>
+ */
+class MapTileRenderer {
+
+    /**
+     * Size of the decoded tiles, in pixels.
+     */
+    static final int TILE_SIZE = 256;
+
+    /**
+     * Coarsest level of the pyramid (sample size of 128).
+     */
+    private static final int MAX_LEVEL = 7;
+
+    /**
+     * How many viewports of tiles are cached at the current level, so panning back does not decode them again.
+     */
+    private static final int CACHED_VIEWPORTS = 2;
+
+    /**
+     * Decoded tile, waiting to be picked up by the UI thread.
+     */
+    private static class DecodedTile {
+        final OfflineMap mMap;
+        final long mKey;
+        final Bitmap mBitmap;
+
+        DecodedTile(OfflineMap map, long key, Bitmap bitmap) {
+            mMap = map;
+            mKey = key;
+            mBitmap = bitmap;
+        }
+    }
+
+    /**
+     * View where the map is drawn.
+     */
+    private final View mView;
+
+    /**
+     * Map being drawn.
+     */
+    private OfflineMap mOfflineMap;
+
+    /**
+     * Tiles of the background level, where the whole map fits in the view.
+     */
+    private final HashMap<Long, Bitmap> mBackgroundTiles = new HashMap<>();
+    private int mBackgroundLevel = -1;
+
+    /**
+     * Tiles of the other levels, in least recently drawn order.
+     */
+    private final LinkedHashMap<Long, Bitmap> mTiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Tiles to decode, in drawing order, shared with the decoding thread.
+     */
+    private final ArrayDeque<Long> mDecodeQueue = new ArrayDeque<>();
+    private OfflineMap mDecodeQueueMap;
+
+    /**
+     * Tiles decoded in background, not drawn yet, shared with the decoding thread.
+     */
+    private final List<DecodedTile> mDecodedTiles = new ArrayList<>();
+
+    // Decoding thread
+    private HandlerThread mDecodingThread;
+    private Handler mDecodingHandler;
+    private boolean mDecodingPosted;
+
+    // Drawing utils
+    private final Paint mTilePaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
+    private final Rect mClip = new Rect();
+    private final Rect mTileRect = new Rect();
+
+    // Decoding utils, only used by the decoding thread
+    private final Rect mDecodeRect = new Rect();
+    private final BitmapFactory.Options mDecodeOptions = new BitmapFactory.Options();
+
+    /**
+     * Decodes the queued tiles, one at a time, in the order they were requested by the last drawing.
+     */
+    private final Runnable mDecodeTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                OfflineMap map;
+                long key;
+                synchronized (mDecodeQueue) {
+                    if(mDecodeQueue.isEmpty()) {
+                        mDecodingPosted = false;
+                        return;
+                    }
+                    map = mDecodeQueueMap;
+                    key = mDecodeQueue.pollFirst();
+                }
+
+                getTileRect(map, key, mDecodeRect);
+                Bitmap tile = decodeTile(map, mDecodeRect, getLevel(key));
+
+                synchronized (mDecodedTiles) {
+                    mDecodedTiles.add(new DecodedTile(map, key, tile));
+                }
+                mView.postInvalidate();
+            }
+        }
+    };
+
+    /**
+     * Decodes a tile into pooled pixel memory, when possible. Only full tiles reuse bitmaps, since the tiles at the
+     * edges of the map are smaller.
+     */
+    private Bitmap decodeTile(OfflineMap map, Rect region, int level) {
+        mDecodeOptions.inSampleSize = 1 << level;
+        mDecodeOptions.inPreferredConfig = OfflineGoogleMaps.MAP_BITMAP_CONFIG;
+        mDecodeOptions.inMutable = true;
+        int tileSize = TILE_SIZE << level;
+        mDecodeOptions.inBitmap = region.width() == tileSize && region.height() == tileSize
+                ? BitmapPool.SHARED.get(TILE_SIZE, TILE_SIZE, OfflineGoogleMaps.MAP_BITMAP_CONFIG) : null;
+
+        try {
+            return map.decodeRegion(region, mDecodeOptions);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused, and would be rejected again if pooled, so it is recycled
+            if(mDecodeOptions.inBitmap != null) {
+                mDecodeOptions.inBitmap.recycle();
+            }
+            mDecodeOptions.inBitmap = null;
+            return map.decodeRegion(region, mDecodeOptions);
+        } finally {
+            mDecodeOptions.inBitmap = null;
+        }
+    }
+
+    /**
+     * Creates a new tile renderer.
+     *
+     * @param view The view where the map is drawn.
+     */
+    MapTileRenderer(View view) {
+        mView = view;
+    }
+
+    /**
+     * Sets the map to be drawn, dropping the tiles of the previous one.
+     *
+     * @param offlineMap The offline map, decoded by regions.
+     */
+    void setOfflineMap(OfflineMap offlineMap) {
+        if(offlineMap != mOfflineMap) {
+            clear();
+            mOfflineMap = offlineMap;
+        }
+    }
+
+    /**
+     * Draws the visible tiles of the map, requesting the missing ones to be decoded.
+     *
+     * @param canvas The canvas to draw on, in pixels of the map image.
+     * @param zoomScale The current map zoom scale (view pixels per map pixel).
+     */
+    void draw(Canvas canvas, float zoomScale) {
+        if(mOfflineMap == null || !canvas.getClipBounds(mClip)
+                || !mClip.intersect(0, 0, mOfflineMap.getWidth(), mOfflineMap.getHeight())) {
+            return;
+        }
+
+        collectDecodedTiles();
+
+        int backgroundLevel = getLevel(Math.min(
+                (float) mView.getWidth() / mOfflineMap.getWidth(),
+                (float) mView.getHeight() / mOfflineMap.getHeight()));
+        if(backgroundLevel != mBackgroundLevel) {
+            recycle(mBackgroundTiles);
+            mBackgroundLevel = backgroundLevel;
+        }
+        int level = Math.min(getLevel(zoomScale), backgroundLevel);
+
+        synchronized (mDecodeQueue) {
+            mDecodeQueue.clear();
+            mDecodeQueueMap = mOfflineMap;
+
+            // The background goes first, so there is always something to show
+            int missing = drawLevel(canvas, backgroundLevel, mBackgroundTiles);
+            if(level != backgroundLevel && missing == 0) {
+                drawLevel(canvas, level, mTiles);
+            }
+
+            if(!mDecodeQueue.isEmpty() && !mDecodingPosted) {
+                startDecodingThread();
+                mDecodingPosted = mDecodingHandler.post(mDecodeTask);
+            }
+        }
+        trimTiles();
+    }
+
+    /**
+     * Draws the visible tiles of a level, queuing the missing ones to be decoded.
+     *
+     * @return The number of missing tiles.
+     */
+    private int drawLevel(Canvas canvas, int level, java.util.Map<Long, Bitmap> tiles) {
+        int tileSize = TILE_SIZE << level;
+        int missing = 0;
+        for (int row = mClip.top / tileSize, lastRow = (mClip.bottom - 1) / tileSize; row <= lastRow; row++) {
+            for (int column = mClip.left / tileSize, lastColumn = (mClip.right - 1) / tileSize; column <= lastColumn; column++) {
+                long key = getKey(level, column, row);
+                Bitmap tile = tiles.get(key);
+                if(tile != null) {
+                    getTileRect(mOfflineMap, key, mTileRect);
+                    canvas.drawBitmap(tile, null, mTileRect, mTilePaint);
+                } else if(!tiles.containsKey(key)) {
+                    mDecodeQueue.add(key);
+                    missing++;
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Moves the tiles decoded in background to the caches.
+     */
+    private void collectDecodedTiles() {
+        synchronized (mDecodedTiles) {
+            for (int i = 0; i < mDecodedTiles.size(); i++) {
+                DecodedTile decoded = mDecodedTiles.get(i);
+                if(decoded.mMap != mOfflineMap) {
+                    if(decoded.mBitmap != null) {
+                        BitmapPool.SHARED.put(decoded.mBitmap);
+                    }
+                } else if(getLevel(decoded.mKey) == mBackgroundLevel) {
+                    mBackgroundTiles.put(decoded.mKey, decoded.mBitmap);
+                } else {
+                    // Failed decodings are cached as null, so they are not retried
+                    mTiles.put(decoded.mKey, decoded.mBitmap);
+                }
+            }
+            mDecodedTiles.clear();
+        }
+    }
+
+    /**
+     * Evicts the least recently drawn tiles which do not fit in the cache.
+     */
+    private void trimTiles() {
+        int capacity = CACHED_VIEWPORTS * getViewportTiles();
+        Iterator<Bitmap> tiles = mTiles.values().iterator();
+        while (mTiles.size() > capacity && tiles.hasNext()) {
+            Bitmap tile = tiles.next();
+            if(tile != null) {
+                BitmapPool.SHARED.put(tile);
+            }
+            tiles.remove();
+        }
+    }
+
+    /**
+     * Gets how many tiles cover the view at most. A level is used while it is magnified at least by half, so its
+     * tiles take at least half of {@link #TILE_SIZE} on the screen.
+     *
+     * @return The maximum number of visible tiles.
+     */
+    private int getViewportTiles() {
+        int halfTile = TILE_SIZE / 2;
+        return (mView.getWidth() / halfTile + 2) * (mView.getHeight() / halfTile + 2);
+    }
+
+    /**
+     * Drops all the tiles and stops the decoding thread. Tiles are decoded again on the next drawing.
+     */
+    void release() {
+        clear();
+        if(mDecodingThread != null) {
+            mDecodingThread.quit();
+            mDecodingThread = null;
+            mDecodingHandler = null;
+        }
+    }
+
+    /**
+     * Drops all the tiles, including the pending ones.
+     */
+    private void clear() {
+        synchronized (mDecodeQueue) {
+            mDecodeQueue.clear();
+        }
+        collectDecodedTiles();
+        recycle(mBackgroundTiles);
+        recycle(mTiles);
+        mBackgroundLevel = -1;
+    }
+
+    /**
+     * Starts the decoding thread, if it is not running yet.
+     */
+    private void startDecodingThread() {
+        if(mDecodingThread == null) {
+            mDecodingThread = new HandlerThread("MapTileRenderer", Process.THREAD_PRIORITY_BACKGROUND);
+            mDecodingThread.start();
+            mDecodingHandler = new Handler(mDecodingThread.getLooper());
+            mDecodingPosted = false;
+        }
+    }
+
+    /**
+     * @return The number of tiles held in memory, for all levels.
+     */
+    @VisibleForTesting
+    int getTileCount() {
+        return mBackgroundTiles.size() + mTiles.size();
+    }
+
+    /**
+     * Gives the pixel memory of the tiles back to the pool, to be reused by the next decoded tiles or maps.
+     */
+    private static void recycle(java.util.Map<Long, Bitmap> tiles) {
+        for (Bitmap tile : tiles.values()) {
+            if(tile != null) {
+                BitmapPool.SHARED.put(tile);
+            }
+        }
+        tiles.clear();
+    }
+
+    /**
+     * Gets the level of the pyramid to draw a map at a zoom scale: the coarsest one which is not magnified.
+     *
+     * @param zoomScale The map zoom scale (view pixels per map pixel).
+     * @return The level, whose sample size is {@code 1 << level}.
+     */
+    static int getLevel(float zoomScale) {
+        int level = 0;
+        while (level < MAX_LEVEL && (2 << level) * zoomScale <= 1) {
+            level++;
+        }
+        return level;
+    }
+
+    private static long getKey(int level, int column, int row) {
+        return ((long) level << 48) | ((long) column << 24) | row;
+    }
+
+    private static int getLevel(long key) {
+        return (int) (key >>> 48);
+    }
+
+    /**
+     * Gets the region covered by a tile, in pixels of the map image.
+     */
+    private static void getTileRect(OfflineMap map, long key, Rect rect) {
+        int tileSize = TILE_SIZE << getLevel(key);
+        int left = (int) ((key >>> 24) & 0xFFFFFF) * tileSize;
+        int top = (int) (key & 0xFFFFFF) * tileSize;
+        rect.set(left, top, Math.min(left + tileSize, map.getWidth()), Math.min(top + tileSize, map.getHeight()));
+    }
+}
@@ -8,6 +8,13 @@ import android.location.Location;
  */
 public class MercatorProjection implements MapProjection {
 
+    /**
+     * Sine of the maximum latitude which can be projected.
+     * Truncating to 0.9999 effectively limits latitude to 89.189. This is
+     * about a third of a tile past the edge of the world tile.
+     */
+    private static final double MAX_SIN_LATITUDE = 0.9999;
+
     /**
      * Size of a map tile.
      */
@@ -18,6 +25,19 @@ public class MercatorProjection implements MapProjection {
      */
     private int mZoom;
 
+    // Projection constants, computed once for the zoom level and tile size
+    private final double mHalfWorldSize;
+    private final double mPixelsPerDegree;
+    private final double mPixelsPerRadian;
+
+    /**
+     * Origin of the cartesian coordinate system, in world pixels.
+     * Keeping the coordinates relative to a nearby origin preserves sub-pixel precision in float,
+     * since the absolute world coordinates reach millions of pixels at street level zoom.
+     */
+    private final double mOriginX;
+    private final double mOriginY;
+
     /**
      * Creates a new Mercator projection
      *
@@ -25,32 +45,105 @@ public class MercatorProjection implements MapProjection {
      * @param tileSize Size of a map tile.
      */
     public MercatorProjection(int zoom, int tileSize) {
+        this(zoom, tileSize, null);
+    }
+
+    /**
+     * Creates a new Mercator projection, whose cartesian coordinates are relative to an origin.
+     *
+     * @param zoom Zoom level applied for this map.
+     * @param tileSize Size of a map tile.
+     * @param origin Geographic coordinate which will be projected to (0, 0), or null to use the world origin.
+     */
+    public MercatorProjection(int zoom, int tileSize, Location origin) {
         this.mZoom = zoom;
         this.mTileSize = tileSize;
+
+        double worldSize = (double) mTileSize * (1 << mZoom);
+        mHalfWorldSize = worldSize / 2;
+        mPixelsPerDegree = worldSize / 360;
+        mPixelsPerRadian = worldSize / (2 * Math.PI);
+
+        if(origin != null) {
+            mOriginX = worldX(origin.getLongitude());
+            mOriginY = worldY(origin.getLatitude());
+        } else {
+            mOriginX = 0;
+            mOriginY = 0;
+        }
     }
 
     @Override
     public PointF toCartesian(Location geographicLocation) {
+        return new PointF(
+                (float) (worldX(geographicLocation.getLongitude()) - mOriginX),
+                (float) (worldY(geographicLocation.getLatitude()) - mOriginY));
+    }
 
-        double siny = Math.sin(Math.toRadians(geographicLocation.getLatitude()));
+    @Override
+    public void toCartesian(double[] latitudes, double[] longitudes, float[] cartesianPoints, int count) {
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            cartesianPoints[j] = (float) (worldX(longitudes[i]) - mOriginX);
+            cartesianPoints[j + 1] = (float) (worldY(latitudes[i]) - mOriginY);
+        }
+    }
 
-        // Truncating to 0.9999 effectively limits latitude to 89.189. This is
-        // about a third of a tile past the edge of the world tile.
-        siny = Math.min(Math.max(siny, -0.9999), 0.9999);
+    @Override
+    public Location toGeographic(PointF cartesianPoint) {
+        Location location = new Location("");
+        location.setLatitude(latitude(cartesianPoint.y + mOriginY));
+        location.setLongitude(longitude(cartesianPoint.x + mOriginX));
+        return location;
+    }
 
-        int scale = 1 << mZoom;
+    @Override
+    public void toGeographic(float[] cartesianPoints, double[] latitudes, double[] longitudes, int count) {
+        for (int i = 0, j = 0; i < count; i++, j += 2) {
+            longitudes[i] = longitude(cartesianPoints[j] + mOriginX);
+            latitudes[i] = latitude(cartesianPoints[j + 1] + mOriginY);
+        }
+    }
 
-        PointF worldCoordinate = new PointF(
-                (float) (mTileSize * (0.5 + geographicLocation.getLongitude() / 360)),
-                (float) (mTileSize * (0.5 - Math.log((1 + siny) / (1 - siny)) / (4 * Math.PI))));
+    /**
+     * Projects a longitude to the horizontal axis of the world map.
+     *
+     * @param longitude The longitude, in degrees.
+     * @return The x world coordinate, in pixels.
+     */
+    private double worldX(double longitude) {
+        return mHalfWorldSize + longitude * mPixelsPerDegree;
+    }
 
-        return new PointF(
-                (float) Math.floor(worldCoordinate.x * scale),
-                (float) Math.floor(worldCoordinate.y * scale));
+    /**
+     * Projects a latitude to the vertical axis of the world map.
+     *
+     * @param latitude The latitude, in degrees.
+     * @return The y world coordinate, in pixels.
+     */
+    private double worldY(double latitude) {
+        double siny = Math.sin(Math.toRadians(latitude));
+        siny = Math.min(Math.max(siny, -MAX_SIN_LATITUDE), MAX_SIN_LATITUDE);
+        return mHalfWorldSize - 0.5 * Math.log((1 + siny) / (1 - siny)) * mPixelsPerRadian;
     }
 
-    @Override
-    public Location toGeographic(PointF cartesianPoint) {
-        throw new UnsupportedOperationException("Not implemented");
+    /**
+     * Inverse of {@link #worldX(double)}.
+     *
+     * @param worldX The x world coordinate, in pixels.
+     * @return The longitude, in degrees.
+     */
+    private double longitude(double worldX) {
+        return (worldX - mHalfWorldSize) / mPixelsPerDegree;
+    }
+
+    /**
+     * Inverse of {@link #worldY(double)}.
+     *
+     * @param worldY The y world coordinate, in pixels.
+     * @return The latitude, in degrees.
+     */
+    private double latitude(double worldY) {
+        double mercatorY = (mHalfWorldSize - worldY) / mPixelsPerRadian;
+        return Math.toDegrees(2 * Math.atan(Math.exp(mercatorY)) - Math.PI / 2);
     }
 }
@@ -3,13 +3,22 @@ package com.arecmetafora.getmethere;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.location.Location;
+import android.os.Build;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -27,6 +36,13 @@ public class OfflineGoogleMaps extends OfflineMap {
     private static final int DEFAULT_MAP_WIDTH = 600;
     private static final int DEFAULT_MAP_HEIGHT = 400;
     private static final int DEFAULT_MAP_SCALE = 2; // 1, 2 or 4* (*only available for Google API Premium)
+    private static final String INDEX_DIRECTORY = "offline_maps";
+    private static final String INDEX_FILE_NAME = "maps.index";
+
+    /**
+     * Spatial index of the cached maps, loaded on first use.
+     */
+    private static OfflineMapIndex sIndex;
 
     /**
      * Types of pre-defined GoogleMaps scales.
@@ -42,6 +58,11 @@ public class OfflineGoogleMaps extends OfflineMap {
         }
     }
 
+    /**
+     * Configuration of the decoded map images. Maps are opaque, so they do not need an alpha channel.
+     */
+    static final Bitmap.Config MAP_BITMAP_CONFIG = Bitmap.Config.RGB_565;
+
     /**
      * Size of a GoogleMaps tile.
      */
@@ -56,15 +77,41 @@ public class OfflineGoogleMaps extends OfflineMap {
      * @param scale Scale of this map.
      */
     public OfflineGoogleMaps(Bitmap mapBitmap, Location centerCoordinate, int zoom, Scale scale) {
-        super(mapBitmap, scale.value, centerCoordinate, new MercatorProjection(zoom, TILE_SIZE));
+        super(mapBitmap, scale.value, centerCoordinate, new MercatorProjection(zoom, TILE_SIZE, centerCoordinate));
+    }
+
+    /**
+     * Creates a new offline map from an image decoded at a lower resolution than the map.
+     *
+     * @param mapBitmap Bitmap which represents this offline map, stretched to the map size.
+     * @param width The width of the map, in pixels.
+     * @param height The height of the map, in pixels.
+     * @param centerCoordinate Center of this offline map in geographic coordinate system.
+     */
+    private OfflineGoogleMaps(Bitmap mapBitmap, int width, int height, Location centerCoordinate) {
+        super(mapBitmap, width, height, Scale.ENHANCED.value, centerCoordinate,
+                new MercatorProjection(DEFAULT_ZOOM_LEVEL, TILE_SIZE, centerCoordinate));
+    }
+
+    /**
+     * Creates a new offline map, decoded by regions.
+     *
+     * @param regionDecoder Decoder of the image which represents this offline map.
+     * @param centerCoordinate Center of this offline map in geographic coordinate system.
+     * @param zoom Zoom level applied for this map.
+     * @param scale Scale of this map.
+     */
+    public OfflineGoogleMaps(BitmapRegionDecoder regionDecoder, Location centerCoordinate, int zoom, Scale scale) {
+        super(regionDecoder, scale.value, centerCoordinate, new MercatorProjection(zoom, TILE_SIZE, centerCoordinate));
     }
 
     /**
-     * Loads an Offline map from a file.
+     * Loads an Offline map from a file. The map image is not decoded at once: only the regions which are shown
+     * get decoded, at the resolution they are shown.
      *
      * @param file The file containing the offline map.
      *
-     * @return The offline map.
+     * @return The offline map, or null if the file is not an offline map or could not be read.
      */
     public static OfflineMap fromFile(File file) {
         Matcher m = CACHE_NAME_PATTERN.matcher(file.getName());
@@ -74,9 +121,14 @@ public class OfflineGoogleMaps extends OfflineMap {
             centerLocation.setLatitude(Double.parseDouble(m.group(1)));
             centerLocation.setLongitude(Double.parseDouble(m.group(2)));
 
-            Bitmap mapImage = BitmapFactory.decodeFile(file.getAbsolutePath());
+            BitmapRegionDecoder mapDecoder;
+            try {
+                mapDecoder = BitmapRegionDecoder.newInstance(file.getAbsolutePath(), false);
+            } catch (IOException e) {
+                return null;
+            }
 
-            return new OfflineGoogleMaps(mapImage, centerLocation, DEFAULT_ZOOM_LEVEL, OfflineGoogleMaps.Scale.ENHANCED);
+            return new OfflineGoogleMaps(mapDecoder, centerLocation, DEFAULT_ZOOM_LEVEL, OfflineGoogleMaps.Scale.ENHANCED);
 
         } else {
             return null;
@@ -84,20 +136,121 @@ public class OfflineGoogleMaps extends OfflineMap {
     }
 
     /**
-     * Loads an Offline map from a location.
+     * Loads an Offline map from a file, decoding the whole map image at once, at the lowest resolution which still
+     * covers a target size (for instance, the size of the view which shows it). Pixel memory of recycled maps
+     * (see {@link OfflineMap#recycle()}) is reused, so switching between maps does not allocate new images.
+     *
+     * @param file The file containing the offline map.
+     * @param targetWidth The width in which the map will be shown, in pixels.
+     * @param targetHeight The height in which the map will be shown, in pixels.
+     *
+     * @return The offline map, or null if the file is not an offline map or could not be decoded.
+     */
+    public static OfflineMap fromFile(File file, int targetWidth, int targetHeight) {
+        Matcher m = CACHE_NAME_PATTERN.matcher(file.getName());
+
+        if(m.matches()) {
+            Location centerLocation = new Location("");
+            centerLocation.setLatitude(Double.parseDouble(m.group(1)));
+            centerLocation.setLongitude(Double.parseDouble(m.group(2)));
+
+            String pathName = file.getAbsolutePath();
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(pathName, bounds);
+            if(bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                return null;
+            }
+
+            Bitmap mapImage = decodeMapImage(pathName, bounds.outWidth, bounds.outHeight, targetWidth, targetHeight);
+            if(mapImage == null) {
+                return null;
+            }
+
+            // The map keeps the size of the full resolution image, so the projection does not change
+            return new OfflineGoogleMaps(mapImage, bounds.outWidth, bounds.outHeight, centerLocation);
+
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes a map image at the lowest resolution which still covers a target size, into pooled pixel memory
+     * when possible.
+     *
+     * @param pathName The path of the map image.
+     * @param width The width of the map image, in pixels.
+     * @param height The height of the map image, in pixels.
+     * @param targetWidth The width in which the map will be shown, in pixels.
+     * @param targetHeight The height in which the map will be shown, in pixels.
+     * @return The decoded image, or null if it could not be decoded.
+     */
+    static Bitmap decodeMapImage(String pathName, int width, int height, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getSampleSize(width, height, targetWidth, targetHeight);
+        options.inPreferredConfig = MAP_BITMAP_CONFIG;
+        options.inMutable = true;
+
+        // Before KitKat, only images decoded at full resolution can reuse a bitmap
+        if(options.inSampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            options.inBitmap = BitmapPool.SHARED.get(
+                    width / options.inSampleSize, height / options.inSampleSize, MAP_BITMAP_CONFIG);
+        }
+
+        try {
+            return BitmapFactory.decodeFile(pathName, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused, and would be rejected again if pooled, so it is recycled
+            if(options.inBitmap != null) {
+                options.inBitmap.recycle();
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(pathName, options);
+        }
+    }
+
+    /**
+     * Gets the largest power of two sample size which keeps an image at least as large as a target size.
+     *
+     * @param width The image width, in pixels.
+     * @param height The image height, in pixels.
+     * @param targetWidth The target width, in pixels.
+     * @param targetHeight The target height, in pixels.
+     * @return The sample size, 1 if the image must be decoded at full resolution.
+     */
+    static int getSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if(targetWidth > 0 && targetHeight > 0) {
+            while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+                sampleSize *= 2;
+            }
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Loads an Offline map from a location. A cached map which covers the location is preferred, even if it was
+     * downloaded for another location nearby. Otherwise, the cached map centered the nearest to it is loaded.
      *
      * @param context The application context.
      * @param location The location to open the map.
      *
-     * @return The offline map.
+     * @return The offline map, or null if no map was downloaded yet.
      */
     public static OfflineMap fromLocation(Context context, Location location) {
-        String cacheFileName = String.format(Locale.US, CACHE_NAME_TEMPLATE,
-                location.getLatitude(), location.getLongitude(), DEFAULT_ZOOM_LEVEL, "")
-                .replace(".png", "");
+        OfflineMapIndex index = getIndex(context);
+        for(OfflineMapIndex.Entry entry : index.findCovering(location.getLatitude(), location.getLongitude())) {
+            File mapFile = getIndexedFile(context, entry);
+            if(mapFile != null) {
+                return fromFile(mapFile);
+            }
+        }
 
-        for(File mapFile : context.getFilesDir().listFiles()) {
-            if(mapFile.getName().startsWith(cacheFileName)) {
+        OfflineMapIndex.Entry nearest = index.findNearest(location.getLatitude(), location.getLongitude());
+        if(nearest != null) {
+            File mapFile = getIndexedFile(context, nearest);
+            if(mapFile != null) {
                 return fromFile(mapFile);
             }
         }
@@ -105,6 +258,181 @@ public class OfflineGoogleMaps extends OfflineMap {
         return null;
     }
 
+    /**
+     * Finds every cached map which covers a location.
+     *
+     * @param context The application context.
+     * @param location The location to be covered.
+     *
+     * @return The files of the cached maps covering the location.
+     */
+    public static List<File> findMapsCovering(Context context, Location location) {
+        List<File> mapFiles = new ArrayList<>();
+        for(OfflineMapIndex.Entry entry : getIndex(context).findCovering(location.getLatitude(), location.getLongitude())) {
+            File mapFile = getIndexedFile(context, entry);
+            if(mapFile != null) {
+                mapFiles.add(mapFile);
+            }
+        }
+        return mapFiles;
+    }
+
+    /**
+     * Finds the cached map whose center is the nearest to a location.
+     *
+     * @param context The application context.
+     * @param location The location.
+     *
+     * @return The file of the nearest cached map, or null if there is no cached map.
+     */
+    public static File findNearestMap(Context context, Location location) {
+        OfflineMapIndex.Entry nearest;
+        while((nearest = getIndex(context).findNearest(location.getLatitude(), location.getLongitude())) != null) {
+            File mapFile = getIndexedFile(context, nearest);
+            if(mapFile != null) {
+                return mapFile;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the spatial index of the cached maps, restoring it from disk or rebuilding it when stale.
+     *
+     * @param context The application context.
+     *
+     * @return The index of cached maps.
+     */
+    public static synchronized OfflineMapIndex getIndex(Context context) {
+        if(sIndex == null) {
+            File mapsDirectory = context.getFilesDir();
+            File indexFile = new File(context.getDir(INDEX_DIRECTORY, Context.MODE_PRIVATE), INDEX_FILE_NAME);
+
+            // Adding or removing a map touches the directory, which invalidates the persisted index
+            long stamp = mapsDirectory.lastModified();
+            sIndex = readIndex(indexFile, stamp);
+
+            if(sIndex == null) {
+                sIndex = new OfflineMapIndex();
+                File[] mapFiles = mapsDirectory.listFiles();
+                if(mapFiles != null) {
+                    for (File mapFile : mapFiles) {
+                        OfflineMapIndex.Entry entry = createIndexEntry(mapFile.getName());
+                        if (entry != null) {
+                            sIndex.add(entry);
+                        }
+                    }
+                }
+                writeIndex(sIndex, indexFile, stamp);
+            }
+        }
+        return sIndex;
+    }
+
+    /**
+     * Gets the file of an indexed map, dropping it from the index if it was deleted.
+     *
+     * @param context The application context.
+     * @param entry The index entry.
+     *
+     * @return The map file, or null if it does not exist anymore.
+     */
+    private static File getIndexedFile(Context context, OfflineMapIndex.Entry entry) {
+        File mapFile = new File(context.getFilesDir(), entry.getName());
+        if(mapFile.exists()) {
+            return mapFile;
+        }
+        getIndex(context).remove(entry.getName());
+        return null;
+    }
+
+    /**
+     * Creates an index entry for a cached map, computing its bounds from its file name.
+     *
+     * @param fileName The name of the cached map file.
+     *
+     * @return The index entry, or null if it is not a cached map.
+     */
+    private static OfflineMapIndex.Entry createIndexEntry(String fileName) {
+        Matcher m = CACHE_NAME_PATTERN.matcher(fileName);
+        if(!m.matches()) {
+            return null;
+        }
+
+        Location center = new Location("");
+        center.setLatitude(Double.parseDouble(m.group(1)));
+        center.setLongitude(Double.parseDouble(m.group(2)));
+        int zoom = m.group(3).isEmpty() ? DEFAULT_ZOOM_LEVEL : Integer.parseInt(m.group(3));
+
+        // Map corners, relative to its center, in pixels of the zoom level (not affected by the scale)
+        float[] corners = new float[] {
+                -DEFAULT_MAP_WIDTH / 2f, -DEFAULT_MAP_HEIGHT / 2f,
+                DEFAULT_MAP_WIDTH / 2f, DEFAULT_MAP_HEIGHT / 2f };
+        double[] latitudes = new double[2];
+        double[] longitudes = new double[2];
+        new MercatorProjection(zoom, TILE_SIZE, center).toGeographic(corners, latitudes, longitudes, 2);
+
+        return new OfflineMapIndex.Entry(fileName, center.getLatitude(), center.getLongitude(),
+                latitudes[1], longitudes[0], latitudes[0], longitudes[1]);
+    }
+
+    /**
+     * Reads the persisted index of cached maps.
+     *
+     * @param indexFile The index file.
+     * @param stamp The expected stamp of the index.
+     *
+     * @return The index, or null if it does not exist or is stale.
+     */
+    private static OfflineMapIndex readIndex(File indexFile, long stamp) {
+        if(!indexFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            return OfflineMapIndex.readFrom(in, stamp);
+
+        } catch (Exception e) {
+            return null;
+
+        } finally {
+            try {
+                if (in != null) {
+                    in.close();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    /**
+     * Persists the index of cached maps.
+     *
+     * @param index The index.
+     * @param indexFile The index file.
+     * @param stamp The stamp which validates the index.
+     */
+    private static void writeIndex(OfflineMapIndex index, File indexFile, long stamp) {
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+            index.writeTo(out, stamp);
+
+        } catch (Exception ignored) {
+            // Index will be rebuilt on the next run
+
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
     /**
      * Gets a sample image of a GoogleMaps map.
      *
@@ -176,6 +504,18 @@ public class OfflineGoogleMaps extends OfflineMap {
             while ((readBytes = in.read(buf)) > 0) {
                 out.write(buf, 0, readBytes);
             }
+            out.close();
+            out = null;
+
+            synchronized (OfflineGoogleMaps.class) {
+                OfflineMapIndex index = getIndex(context);
+                OfflineMapIndex.Entry entry = createIndexEntry(cacheFileName);
+                if(entry != null) {
+                    index.add(entry);
+                }
+                writeIndex(index, new File(context.getDir(INDEX_DIRECTORY, Context.MODE_PRIVATE), INDEX_FILE_NAME),
+                        context.getFilesDir().lastModified());
+            }
         } finally {
             try {
                 if (out != null) {
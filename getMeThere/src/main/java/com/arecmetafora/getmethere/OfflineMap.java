@@ -1,7 +1,10 @@
 package com.arecmetafora.getmethere;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.PointF;
+import android.graphics.Rect;
 import android.location.Location;
 
 /**
@@ -10,12 +13,59 @@ import android.location.Location;
 public abstract class OfflineMap {
 
     private static final double EARTH_RADIUS = 6378100.0;
+    private static final double METERS_PER_DEGREE_AT_EQUATOR = EARTH_RADIUS * Math.PI / 180;
 
     /**
-     * Bitmap which represents this offline map.
+     * Projection of a location and its accuracy radius into the map`s surface.
+     * Instances are reused by {@link #projectLocation(Location, float)}, so they must not be retained.
+     */
+    public static final class ProjectedLocation {
+        private double mLatitude = Double.NaN;
+        private double mLongitude = Double.NaN;
+        private float mAccuracy = Float.NaN;
+        private float mPixelsPerMeter;
+        private float mX;
+        private float mY;
+        private float mAccuracyRadius;
+
+        /**
+         * @return The horizontal pixel position of the location in the map`s surface.
+         */
+        public float getX() {
+            return mX;
+        }
+
+        /**
+         * @return The vertical pixel position of the location in the map`s surface.
+         */
+        public float getY() {
+            return mY;
+        }
+
+        /**
+         * @return The accuracy radius of the location, in pixels.
+         */
+        public float getAccuracyRadius() {
+            return mAccuracyRadius;
+        }
+    }
+
+    /**
+     * Bitmap which represents this offline map, if it is fully decoded.
      */
     private Bitmap mMapBitmap;
 
+    /**
+     * Decoder of the map image regions, if the map is decoded on demand.
+     */
+    private BitmapRegionDecoder mRegionDecoder;
+
+    /**
+     * Size of the map image, in pixels.
+     */
+    private int mWidth;
+    private int mHeight;
+
     /**
      * Map drawing scale (like dpi)
      */
@@ -34,7 +84,35 @@ public abstract class OfflineMap {
     /**
      * Center of this offline map in cartesian coordinate system (pixels).
      */
-    private PointF mCenterXYCoordinate;
+    private float mCenterX;
+    private float mCenterY;
+
+    /**
+     * Center of the map bitmap, in pixels.
+     */
+    private int mHalfWidth;
+    private int mHalfHeight;
+
+    /**
+     * Scale of the map at the equator, in pixels per meter.
+     * Mercator stretches it by the secant of the latitude.
+     */
+    private double mPixelsPerMeterAtEquator;
+
+    /**
+     * Scale of the map at its center latitude, in meters per pixel.
+     */
+    private double mMetersPerPixel;
+
+    /**
+     * Last location projected by {@link #projectLocation(Location, float)}.
+     */
+    private final ProjectedLocation mProjectedLocation = new ProjectedLocation();
+
+    // Buffers used to project single coordinates through the batch projection
+    private final double[] mSingleLatitude = new double[1];
+    private final double[] mSingleLongitude = new double[1];
+    private final float[] mSinglePixel = new float[2];
 
     /**
      * Creates a new offline map.
@@ -45,11 +123,61 @@ public abstract class OfflineMap {
      * @param mapProjection Center of this offline map in cartesian coordinate system.
      */
     protected OfflineMap(Bitmap mapBitmap, int scale, Location centerGeoCoordinate, MapProjection mapProjection) {
+        this(mapBitmap.getWidth(), mapBitmap.getHeight(), scale, centerGeoCoordinate, mapProjection);
         mMapBitmap = mapBitmap;
+    }
+
+    /**
+     * Creates a new offline map from an image decoded at a lower resolution than the map. The image is stretched
+     * to the map size when drawn, so the projection still works in pixels of the full resolution map.
+     *
+     * @param mapBitmap Image which represents this offline map.
+     * @param width The width of the map, in pixels.
+     * @param height The height of the map, in pixels.
+     * @param scale Map drawing scale.
+     * @param centerGeoCoordinate Center of this offline map in geographic coordinate system.
+     * @param mapProjection Center of this offline map in cartesian coordinate system.
+     */
+    protected OfflineMap(Bitmap mapBitmap, int width, int height, int scale, Location centerGeoCoordinate,
+                         MapProjection mapProjection) {
+        this(width, height, scale, centerGeoCoordinate, mapProjection);
+        mMapBitmap = mapBitmap;
+    }
+
+    /**
+     * Creates a new offline map whose image is decoded by regions, on demand. Only the visible parts of the map
+     * are kept in memory, at the resolution they are shown, so the map image may be much larger than the screen.
+     *
+     * @param regionDecoder Decoder of the image which represents this offline map.
+     * @param scale Map drawing scale.
+     * @param centerGeoCoordinate Center of this offline map in geographic coordinate system.
+     * @param mapProjection Center of this offline map in cartesian coordinate system.
+     */
+    protected OfflineMap(BitmapRegionDecoder regionDecoder, int scale, Location centerGeoCoordinate,
+                         MapProjection mapProjection) {
+        this(regionDecoder.getWidth(), regionDecoder.getHeight(), scale, centerGeoCoordinate, mapProjection);
+        mRegionDecoder = regionDecoder;
+    }
+
+    private OfflineMap(int width, int height, int scale, Location centerGeoCoordinate, MapProjection mapProjection) {
+        mWidth = width;
+        mHeight = height;
         mScale = scale;
         mCenterGeoCoordinate = centerGeoCoordinate;
         mMapProjection = mapProjection;
-        mCenterXYCoordinate = mapProjection.toCartesian(mCenterGeoCoordinate);
+        mHalfWidth = width / 2;
+        mHalfHeight = height / 2;
+
+        PointF centerXYCoordinate = mapProjection.toCartesian(mCenterGeoCoordinate);
+        mCenterX = centerXYCoordinate.x;
+        mCenterY = centerXYCoordinate.y;
+
+        // Horizontal scale does not depend on latitude, so one degree of longitude at the center is enough
+        mSingleLatitude[0] = mCenterGeoCoordinate.getLatitude();
+        mSingleLongitude[0] = mCenterGeoCoordinate.getLongitude() + 1;
+        projectToPixel(mSingleLatitude, mSingleLongitude, mSinglePixel, 1);
+        mPixelsPerMeterAtEquator = Math.abs(mSinglePixel[0] - mHalfWidth) / METERS_PER_DEGREE_AT_EQUATOR;
+        mMetersPerPixel = Math.cos(Math.toRadians(mCenterGeoCoordinate.getLatitude())) / mPixelsPerMeterAtEquator;
     }
 
     /**
@@ -59,10 +187,106 @@ public abstract class OfflineMap {
      * @return The pixel position of the projected geographic coordinate in the map`s surface.
      */
     public PointF projectToPixel(Location geoCoordinate) {
-        PointF cartesianCoordinate = mMapProjection.toCartesian(geoCoordinate);
-        return new PointF(
-                mMapBitmap.getWidth()/2  + (cartesianCoordinate.x - mCenterXYCoordinate.x) * mScale,
-                mMapBitmap.getHeight()/2 + (cartesianCoordinate.y - mCenterXYCoordinate.y) * mScale);
+        PointF pixel = new PointF();
+        projectToPixel(geoCoordinate, pixel);
+        return pixel;
+    }
+
+    /**
+     * Projects a geographic coordinate to pixel position (cartesian coordinate), without allocating.
+     * This method is not thread safe and is meant to be called from the drawing thread.
+     *
+     * @param geoCoordinate The geographic coordinate to be projected.
+     * @param pixel Point where the pixel position in the map`s surface will be written.
+     */
+    public void projectToPixel(Location geoCoordinate, PointF pixel) {
+        mSingleLatitude[0] = geoCoordinate.getLatitude();
+        mSingleLongitude[0] = geoCoordinate.getLongitude();
+        projectToPixel(mSingleLatitude, mSingleLongitude, mSinglePixel, 1);
+        pixel.set(mSinglePixel[0], mSinglePixel[1]);
+    }
+
+    /**
+     * Projects a batch of geographic coordinates to pixel positions (cartesian coordinates), without allocating.
+     *
+     * @param latitudes The latitudes of the geographic coordinates, in degrees.
+     * @param longitudes The longitudes of the geographic coordinates, in degrees.
+     * @param pixels Buffer where the pixel positions in the map`s surface will be written, as interleaved
+     *               x and y pairs. Must have room for at least {@code 2 * count} values.
+     * @param count The number of coordinates to be projected.
+     */
+    public void projectToPixel(double[] latitudes, double[] longitudes, float[] pixels, int count) {
+        mMapProjection.toCartesian(latitudes, longitudes, pixels, count);
+        for (int i = 0, length = 2 * count; i < length; i += 2) {
+            pixels[i] = mHalfWidth + (pixels[i] - mCenterX) * mScale;
+            pixels[i + 1] = mHalfHeight + (pixels[i + 1] - mCenterY) * mScale;
+        }
+    }
+
+    /**
+     * Projects a pixel position in the map`s surface back to a geographic coordinate.
+     *
+     * @param x The horizontal pixel position.
+     * @param y The vertical pixel position.
+     * @return The geographic coordinate of the pixel.
+     */
+    public Location projectToGeographic(float x, float y) {
+        Location geoCoordinate = new Location("");
+        projectToGeographic(x, y, geoCoordinate);
+        return geoCoordinate;
+    }
+
+    /**
+     * Projects a pixel position in the map`s surface back to a geographic coordinate, without allocating.
+     * This method is not thread safe and is meant to be called from the UI thread.
+     *
+     * @param x The horizontal pixel position.
+     * @param y The vertical pixel position.
+     * @param geoCoordinate Location where the geographic coordinate of the pixel will be written.
+     */
+    public void projectToGeographic(float x, float y, Location geoCoordinate) {
+        mSinglePixel[0] = mCenterX + (x - mHalfWidth) / (float) mScale;
+        mSinglePixel[1] = mCenterY + (y - mHalfHeight) / (float) mScale;
+        mMapProjection.toGeographic(mSinglePixel, mSingleLatitude, mSingleLongitude, 1);
+        geoCoordinate.setLatitude(mSingleLatitude[0]);
+        geoCoordinate.setLongitude(mSingleLongitude[0]);
+    }
+
+    /**
+     * Projects a location and its accuracy radius to the map`s surface.
+     * The result is memoized: while the location does not move, no geodesy is computed again, and a new
+     * accuracy only costs a multiplication. This method is not thread safe and is meant to be called
+     * from the drawing thread.
+     *
+     * @param location The location to be projected.
+     * @param accuracy The accuracy radius of the location, in meters.
+     *
+     * @return The projected location. This instance is reused by the next call.
+     */
+    public ProjectedLocation projectLocation(Location location, float accuracy) {
+        ProjectedLocation projection = mProjectedLocation;
+
+        if(location.getLatitude() != projection.mLatitude || location.getLongitude() != projection.mLongitude) {
+            projection.mLatitude = location.getLatitude();
+            projection.mLongitude = location.getLongitude();
+
+            mSingleLatitude[0] = projection.mLatitude;
+            mSingleLongitude[0] = projection.mLongitude;
+            projectToPixel(mSingleLatitude, mSingleLongitude, mSinglePixel, 1);
+            projection.mX = mSinglePixel[0];
+            projection.mY = mSinglePixel[1];
+
+            // Accuracy is measured around the user, so the scale of its own latitude is used
+            projection.mPixelsPerMeter = (float) (mPixelsPerMeterAtEquator / Math.cos(Math.toRadians(projection.mLatitude)));
+            projection.mAccuracy = Float.NaN;
+        }
+
+        if(accuracy != projection.mAccuracy) {
+            projection.mAccuracy = accuracy;
+            projection.mAccuracyRadius = accuracy * projection.mPixelsPerMeter;
+        }
+
+        return projection;
     }
 
     /**
@@ -73,17 +297,14 @@ public abstract class OfflineMap {
      * @return The radius in pixel distance.
      */
     public float projectDistanceFromCenter(float radius) {
-        Location l1 = new Location("");
-        Location l2 = new Location("");
-        l1.setLatitude(radius / EARTH_RADIUS);
-        l1.setLongitude(radius / (EARTH_RADIUS * Math.cos(Math.toRadians(mCenterGeoCoordinate.getLatitude()))));
-
-        l2.setLatitude(mCenterGeoCoordinate.getLatitude() + Math.toDegrees(l1.getLatitude()));
-        l2.setLongitude(mCenterGeoCoordinate.getLongitude() + Math.toDegrees(l1.getLongitude()));
-
-        PointF p = projectToPixel(l2);
+        return (float) (radius / mMetersPerPixel);
+    }
 
-        return Math.abs(mMapBitmap.getWidth()/2 - p.x) * mScale;
+    /**
+     * @return Scale of this offline map at its center, in meters per pixel.
+     */
+    public double getMetersPerPixel() {
+        return mMetersPerPixel;
     }
 
     /**
@@ -94,9 +315,53 @@ public abstract class OfflineMap {
     }
 
     /**
-     * @return Bitmap which represents this offline map.
+     * @return Bitmap which represents this offline map, or null if the map is decoded by regions
+     *         (see {@link #decodeRegion(Rect, BitmapFactory.Options)}) or was recycled. The bitmap may be smaller
+     *         than the map, if it was decoded at a lower resolution.
      */
     public Bitmap getMapBitmap() {
         return mMapBitmap;
     }
+
+    /**
+     * @return The width of the map image, in pixels.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The height of the map image, in pixels.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Decodes a region of the map image. This method is thread safe, so regions can be decoded in background.
+     *
+     * @param region The region to decode, in pixels of the map image.
+     * @param options Decoding options, such as the sample size (resolution) of the region.
+     * @return The region bitmap, or null if the map is not decoded by regions or the region could not be decoded.
+     */
+    public synchronized Bitmap decodeRegion(Rect region, BitmapFactory.Options options) {
+        if(mRegionDecoder == null || mRegionDecoder.isRecycled()) {
+            return null;
+        }
+        return mRegionDecoder.decodeRegion(region, options);
+    }
+
+    /**
+     * Releases the memory of the map image. The pixels of a decoded map are given back to be reused by the next
+     * decoded maps, so this map must not be drawn anymore, only projected.
+     */
+    public synchronized void recycle() {
+        if(mMapBitmap != null) {
+            BitmapPool.SHARED.put(mMapBitmap);
+            mMapBitmap = null;
+        }
+        if(mRegionDecoder != null) {
+            mRegionDecoder.recycle();
+        }
+    }
 }
@@ -0,0 +1,361 @@
+package com.arecmetafora.getmethere;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Spatial index of the bounds of offline maps, backed by a uniform grid of geographic cells.
+ * <p>
+ * Each map is registered in every cell its bounds overlap, so finding the maps which cover a coordinate
+ * only inspects a single cell, independent of the number of maps. Finding the nearest map searches rings of
+ * cells around the coordinate, and falls back to scanning every map once the rings would inspect more cells
+ * than there are maps (for instance, when the coordinate is far from all of them), so it never costs more
+ * than a linear scan. Bounds crossing the anti-meridian are not supported.
+ * <p>
+ * The index can be persisted with {@link #writeTo(DataOutputStream, long)} and restored with
+ * {@link #readFrom(DataInputStream, long)}, to avoid scanning every cached map on startup.
+ */
+public final class OfflineMapIndex {
+
+    private static final int FILE_MAGIC = 0x474d5449; // GMTI
+    private static final int FILE_VERSION = 1;
+
+    /**
+     * Size of a grid cell, in degrees (about 5.5 km at the equator, a couple of maps at street zoom level).
+     */
+    private static final double CELL_SIZE = 0.05;
+
+    /**
+     * Offline map registered in the index.
+     */
+    public static final class Entry {
+        private final String mName;
+        private final double mCenterLatitude;
+        private final double mCenterLongitude;
+        private final double mMinLatitude;
+        private final double mMinLongitude;
+        private final double mMaxLatitude;
+        private final double mMaxLongitude;
+
+        /**
+         * Creates a new index entry.
+         *
+         * @param name The name of the map (for instance, its file name).
+         * @param centerLatitude The latitude of the map center, in degrees.
+         * @param centerLongitude The longitude of the map center, in degrees.
+         * @param minLatitude The southern bound of the map, in degrees.
+         * @param minLongitude The western bound of the map, in degrees.
+         * @param maxLatitude The northern bound of the map, in degrees.
+         * @param maxLongitude The eastern bound of the map, in degrees.
+         */
+        public Entry(String name, double centerLatitude, double centerLongitude,
+                     double minLatitude, double minLongitude, double maxLatitude, double maxLongitude) {
+            mName = name;
+            mCenterLatitude = centerLatitude;
+            mCenterLongitude = centerLongitude;
+            mMinLatitude = minLatitude;
+            mMinLongitude = minLongitude;
+            mMaxLatitude = maxLatitude;
+            mMaxLongitude = maxLongitude;
+        }
+
+        /**
+         * Checks whether a coordinate is inside the bounds of this map.
+         *
+         * @param latitude The latitude, in degrees.
+         * @param longitude The longitude, in degrees.
+         * @return True if the coordinate is covered by this map.
+         */
+        public boolean contains(double latitude, double longitude) {
+            return latitude >= mMinLatitude && latitude <= mMaxLatitude
+                    && longitude >= mMinLongitude && longitude <= mMaxLongitude;
+        }
+
+        /**
+         * @return The name of the map.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return The latitude of the map center, in degrees.
+         */
+        public double getCenterLatitude() {
+            return mCenterLatitude;
+        }
+
+        /**
+         * @return The longitude of the map center, in degrees.
+         */
+        public double getCenterLongitude() {
+            return mCenterLongitude;
+        }
+    }
+
+    /**
+     * Entries of each grid cell, keyed by the packed cell coordinates.
+     */
+    private final HashMap<Long, Entry[]> mCells = new HashMap<>();
+
+    /**
+     * All entries, keyed by name.
+     */
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    // Extent of the occupied cells, to bound the nearest neighbour search
+    private int mMinRow = Integer.MAX_VALUE;
+    private int mMaxRow = Integer.MIN_VALUE;
+    private int mMinColumn = Integer.MAX_VALUE;
+    private int mMaxColumn = Integer.MIN_VALUE;
+
+    /**
+     * Adds a map to this index, replacing any map with the same name.
+     *
+     * @param entry The map entry.
+     */
+    public synchronized void add(Entry entry) {
+        remove(entry.mName);
+        mEntries.put(entry.mName, entry);
+
+        int minRow = row(entry.mMinLatitude);
+        int maxRow = row(entry.mMaxLatitude);
+        int minColumn = column(entry.mMinLongitude);
+        int maxColumn = column(entry.mMaxLongitude);
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                Long key = key(row, column);
+                Entry[] cell = mCells.get(key);
+                if (cell == null) {
+                    cell = new Entry[] { entry };
+                } else {
+                    cell = Arrays.copyOf(cell, cell.length + 1);
+                    cell[cell.length - 1] = entry;
+                }
+                mCells.put(key, cell);
+            }
+        }
+
+        mMinRow = Math.min(mMinRow, minRow);
+        mMaxRow = Math.max(mMaxRow, maxRow);
+        mMinColumn = Math.min(mMinColumn, minColumn);
+        mMaxColumn = Math.max(mMaxColumn, maxColumn);
+    }
+
+    /**
+     * Removes a map from this index.
+     *
+     * @param name The name of the map.
+     * @return True if the map was indexed.
+     */
+    public synchronized boolean remove(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry == null) {
+            return false;
+        }
+
+        for (int row = row(entry.mMinLatitude); row <= row(entry.mMaxLatitude); row++) {
+            for (int column = column(entry.mMinLongitude); column <= column(entry.mMaxLongitude); column++) {
+                Long key = key(row, column);
+                Entry[] cell = mCells.get(key);
+                if (cell == null) {
+                    continue;
+                }
+                Entry[] remaining = new Entry[cell.length - 1];
+                for (int i = 0, j = 0; i < cell.length; i++) {
+                    if (cell[i] != entry && j < remaining.length) {
+                        remaining[j++] = cell[i];
+                    }
+                }
+                if (remaining.length == 0) {
+                    mCells.remove(key);
+                } else {
+                    mCells.put(key, remaining);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets a map by its name.
+     *
+     * @param name The name of the map.
+     * @return The map entry, or null if not indexed.
+     */
+    public synchronized Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    /**
+     * @return The number of indexed maps.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Finds every map which covers a coordinate.
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @return The maps whose bounds contain the coordinate.
+     */
+    public synchronized List<Entry> findCovering(double latitude, double longitude) {
+        List<Entry> covering = new ArrayList<>();
+        Entry[] cell = mCells.get(key(row(latitude), column(longitude)));
+        if (cell != null) {
+            for (Entry entry : cell) {
+                if (entry.contains(latitude, longitude)) {
+                    covering.add(entry);
+                }
+            }
+        }
+        return covering;
+    }
+
+    /**
+     * Finds the map whose center is the nearest to a coordinate.
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @return The nearest map, or null if the index is empty.
+     */
+    public synchronized Entry findNearest(double latitude, double longitude) {
+        if (mEntries.isEmpty()) {
+            return null;
+        }
+
+        // Longitude degrees shrink with latitude. Distances are compared in latitude degrees.
+        double longitudeScale = Math.cos(Math.toRadians(latitude));
+
+        int centerRow = row(latitude);
+        int centerColumn = column(longitude);
+        int maxRadius = Math.max(
+                Math.max(Math.abs(centerRow - mMinRow), Math.abs(centerRow - mMaxRow)),
+                Math.max(Math.abs(centerColumn - mMinColumn), Math.abs(centerColumn - mMaxColumn)));
+
+        Entry nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        int visitedCells = 0;
+
+        for (int radius = 0; radius <= maxRadius; radius++) {
+
+            // Cells of this ring are at least (radius - 1) cells away from the coordinate
+            double ringDistance = (radius - 1) * CELL_SIZE * Math.min(1, longitudeScale);
+            if (nearest != null && ringDistance * ringDistance > nearestDistance) {
+                break;
+            }
+
+            // Sparse neighbourhoods are cheaper to scan entry by entry
+            int ringCells = radius == 0 ? 1 : 8 * radius;
+            visitedCells += ringCells;
+            if (visitedCells > mEntries.size()) {
+                return findNearestByScan(latitude, longitude, longitudeScale);
+            }
+
+            for (int row = centerRow - radius; row <= centerRow + radius; row++) {
+                boolean edgeRow = row == centerRow - radius || row == centerRow + radius;
+                int step = edgeRow ? 1 : 2 * radius;
+                for (int column = centerColumn - radius; column <= centerColumn + radius; column += Math.max(step, 1)) {
+                    Entry[] cell = mCells.get(key(row, column));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (Entry entry : cell) {
+                        double dLat = entry.mCenterLatitude - latitude;
+                        double dLon = (entry.mCenterLongitude - longitude) * longitudeScale;
+                        double distance = dLat * dLat + dLon * dLon;
+                        if (distance < nearestDistance) {
+                            nearestDistance = distance;
+                            nearest = entry;
+                        }
+                    }
+                }
+            }
+        }
+
+        return nearest;
+    }
+
+    /**
+     * Finds the map whose center is the nearest to a coordinate, comparing every map.
+     */
+    private Entry findNearestByScan(double latitude, double longitude, double longitudeScale) {
+        Entry nearest = null;
+        double nearestDistance = Double.MAX_VALUE;
+        for (Entry entry : mEntries.values()) {
+            double dLat = entry.mCenterLatitude - latitude;
+            double dLon = (entry.mCenterLongitude - longitude) * longitudeScale;
+            double distance = dLat * dLat + dLon * dLon;
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = entry;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Writes this index to a stream.
+     *
+     * @param out The output stream.
+     * @param stamp A value to validate the index when it is read back (for instance, the modification
+     *              time of the maps directory).
+     */
+    public synchronized void writeTo(DataOutputStream out, long stamp) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeLong(stamp);
+        out.writeInt(mEntries.size());
+        for (Entry entry : mEntries.values()) {
+            out.writeUTF(entry.mName);
+            out.writeDouble(entry.mCenterLatitude);
+            out.writeDouble(entry.mCenterLongitude);
+            out.writeDouble(entry.mMinLatitude);
+            out.writeDouble(entry.mMinLongitude);
+            out.writeDouble(entry.mMaxLatitude);
+            out.writeDouble(entry.mMaxLongitude);
+        }
+    }
+
+    /**
+     * Reads an index from a stream.
+     *
+     * @param in The input stream.
+     * @param stamp The expected stamp, written by {@link #writeTo(DataOutputStream, long)}.
+     * @return The index, or null if the stream does not contain an index or it is stale.
+     */
+    public static OfflineMapIndex readFrom(DataInputStream in, long stamp) throws IOException {
+        if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readLong() != stamp) {
+            return null;
+        }
+
+        OfflineMapIndex index = new OfflineMapIndex();
+        for (int i = in.readInt(); i > 0; i--) {
+            index.add(new Entry(in.readUTF(),
+                    in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readDouble(),
+                    in.readDouble(), in.readDouble()));
+        }
+        return index;
+    }
+
+    private static int row(double latitude) {
+        return (int) Math.floor(latitude / CELL_SIZE);
+    }
+
+    private static int column(double longitude) {
+        return (int) Math.floor(longitude / CELL_SIZE);
+    }
+
+    private static Long key(int row, int column) {
+        return ((long) row << 32) | (column & 0xffffffffL);
+    }
+}
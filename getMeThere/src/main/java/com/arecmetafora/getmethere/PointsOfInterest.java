@@ -0,0 +1,172 @@
+package com.arecmetafora.getmethere;
+
+import java.util.Arrays;
+
+/**
+ * Store of points of interest, laid out as a structure of arrays, to place hundreds of locations
+ * around the user at sensor rates.
+ * <p>
+ * Each point keeps its geographic coordinate and its precomputed ECEF coordinate at sea level together
+ * with the local up vector, so it can be lifted to any altitude without trigonometry. Conversions to
+ * ENU and the camera transform work over packed float buffers and do not allocate.
+ */
+public final class PointsOfInterest {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize;
+    private double[] mLatitudes;
+    private double[] mLongitudes;
+    private double[] mAltitudes;
+
+    // ECEF coordinate at sea level (x, y, z) and up vector (x, y, z) of each point
+    private double[] mEcef;
+
+    /**
+     * Creates an empty store of points of interest.
+     */
+    public PointsOfInterest() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates an empty store of points of interest.
+     *
+     * @param capacity The initial number of points the store can hold before growing.
+     */
+    public PointsOfInterest(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mAltitudes = new double[capacity];
+        mEcef = new double[6 * capacity];
+    }
+
+    /**
+     * Adds a point of interest.
+     *
+     * @param latitude The latitude, in degrees.
+     * @param longitude The longitude, in degrees.
+     * @param altitude The altitude, in meters, or {@link Double#NaN} to place the point at the same altitude
+     *                 of the observer.
+     * @return The index of the new point.
+     */
+    public int add(double latitude, double longitude, double altitude) {
+        if(mSize == mLatitudes.length) {
+            int capacity = 2 * mSize;
+            mLatitudes = Arrays.copyOf(mLatitudes, capacity);
+            mLongitudes = Arrays.copyOf(mLongitudes, capacity);
+            mAltitudes = Arrays.copyOf(mAltitudes, capacity);
+            mEcef = Arrays.copyOf(mEcef, 6 * capacity);
+        }
+
+        int index = mSize++;
+        mLatitudes[index] = latitude;
+        mLongitudes[index] = longitude;
+        mAltitudes[index] = altitude;
+
+        double radLat = Math.toRadians(latitude);
+        double radLon = Math.toRadians(longitude);
+        double clat = Math.cos(radLat);
+        double slat = Math.sin(radLat);
+        double clon = Math.cos(radLon);
+        double slon = Math.sin(radLon);
+        double n = EnuFrame.WGS84_A / Math.sqrt(1.0 - EnuFrame.WGS84_E2 * slat * slat);
+
+        int offset = 6 * index;
+        mEcef[offset] = n * clat * clon;
+        mEcef[offset + 1] = n * clat * slon;
+        mEcef[offset + 2] = n * (1.0 - EnuFrame.WGS84_E2) * slat;
+        mEcef[offset + 3] = clat * clon;
+        mEcef[offset + 4] = clat * slon;
+        mEcef[offset + 5] = slat;
+
+        return index;
+    }
+
+    /**
+     * Removes all points of interest, keeping the allocated capacity.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of points of interest.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param index The index of the point.
+     * @return The latitude of the point, in degrees.
+     */
+    public double getLatitude(int index) {
+        return mLatitudes[index];
+    }
+
+    /**
+     * @param index The index of the point.
+     * @return The longitude of the point, in degrees.
+     */
+    public double getLongitude(int index) {
+        return mLongitudes[index];
+    }
+
+    /**
+     * @param index The index of the point.
+     * @return The altitude of the point, in meters, or {@link Double#NaN} if it follows the observer.
+     */
+    public double getAltitude(int index) {
+        return mAltitudes[index];
+    }
+
+    /**
+     * Converts every point of interest to a Navigation frame.
+     *
+     * @param frame The observer frame.
+     * @param enu Buffer where East, North, Up and a homogeneous 1 of each point will be written.
+     *            Must have room for at least {@code 4 * size()} values.
+     */
+    public void toENU(EnuFrame frame, float[] enu) {
+        double[] ecef = mEcef;
+        double observerAltitude = frame.getAltitude();
+        for (int i = 0; i < mSize; i++) {
+            double altitude = Double.isNaN(mAltitudes[i]) ? observerAltitude : mAltitudes[i];
+            int offset = 6 * i;
+            frame.ecefToENU(
+                    ecef[offset] + altitude * ecef[offset + 3],
+                    ecef[offset + 1] + altitude * ecef[offset + 4],
+                    ecef[offset + 2] + altitude * ecef[offset + 5],
+                    enu, 4 * i);
+        }
+    }
+
+    /**
+     * Multiplies a 4x4 matrix by a batch of packed 4 element vectors, with the same layout and semantics of
+     * {@code android.opengl.Matrix.multiplyMV}, in a single pass.
+     *
+     * @param matrix The 4x4 matrix, in column-major order.
+     * @param vectors The input vectors, packed every 4 values.
+     * @param result Buffer where the transformed vectors will be written. Must not be the input buffer.
+     * @param count The number of vectors to transform.
+     */
+    public static void multiplyMV(float[] matrix, float[] vectors, float[] result, int count) {
+        float m0 = matrix[0], m1 = matrix[1], m2 = matrix[2], m3 = matrix[3];
+        float m4 = matrix[4], m5 = matrix[5], m6 = matrix[6], m7 = matrix[7];
+        float m8 = matrix[8], m9 = matrix[9], m10 = matrix[10], m11 = matrix[11];
+        float m12 = matrix[12], m13 = matrix[13], m14 = matrix[14], m15 = matrix[15];
+
+        for (int i = 0, length = 4 * count; i < length; i += 4) {
+            float x = vectors[i];
+            float y = vectors[i + 1];
+            float z = vectors[i + 2];
+            float w = vectors[i + 3];
+            result[i] = m0 * x + m4 * y + m8 * z + m12 * w;
+            result[i + 1] = m1 * x + m5 * y + m9 * z + m13 * w;
+            result[i + 2] = m2 * x + m6 * y + m10 * z + m14 * w;
+            result[i + 3] = m3 * x + m7 * y + m11 * z + m15 * w;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.arecmetafora.getmethere;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Registry of the subscribers of a {@link CompassSensor}, which publishes the results of its fusion core to them.
+ * <p>
+ * Every fusion pass publishes a single {@link CompassSensorSnapshot}, and hands it to each subscriber, which
+ * filters it and schedules its own delivery. The subscribers are kept in an array which is copied on write, so
+ * they are dispatched without locks nor iterators, and no subscriber can make the fusion run again.
+ * <p>
+ * Deliveries run on {@link DeliveryThread}s, so this class has no Android dependency, and can be checked on a
+ * plain JVM with real subscribers.
+ */
+final class SensorDispatcher {
+
+    /**
+     * Thread where the deliveries of a subscriber run.
+     */
+    interface DeliveryThread {
+
+        /**
+         * Runs a delivery on this thread.
+         *
+         * @param delivery The delivery.
+         * @param delayMillis Delay before the delivery runs, in milliseconds, or zero to run it as soon as
+         *                    possible.
+         */
+        void post(Runnable delivery, long delayMillis);
+    }
+
+    /**
+     * Subscriber to the published snapshots, which controls how often and on which thread its deliveries run.
+     * <p>
+     * Snapshots are filtered by the maximum rate and the minimum angle change on the fusion thread, before
+     * crossing to the delivery thread, and pending changes are conflated: a subscriber which is slower than the
+     * sensors always receives the latest state, never a backlog.
+     */
+    abstract static class Subscriber {
+
+        private final SensorDispatcher mDispatcher;
+
+        /**
+         * Thread of the deliveries, or null to deliver straight on the fusion thread.
+         */
+        private final DeliveryThread mDeliveryThread;
+
+        /**
+         * Changes which this subscriber is interested in.
+         */
+        private final int mAcceptedChanges;
+
+        /**
+         * Changes which were not delivered yet.
+         */
+        private final AtomicInteger mPendingChanges = new AtomicInteger();
+
+        /**
+         * Time when the pending delivery is due, in nanoseconds, to measure the dispatch latency.
+         */
+        private volatile long mDueTime;
+
+        // Delivery options
+        private volatile long mMinimumInterval;
+        private volatile float mMinimumAngleChange;
+        private volatile float mMinimumRotationCosine = 1;
+
+        // Last accepted values, only accessed by the fusion thread
+        private float mLastBearingToLocation = Float.NaN;
+        private float mLastAzimuth = Float.NaN;
+        private final float[] mLastRotationMatrix = new float[16];
+        private boolean mHasLastRotation;
+
+        /**
+         * Time of the last delivery, in nanoseconds, or zero if nothing was delivered yet.
+         */
+        private volatile long mLastDeliveryTime;
+
+        /**
+         * Delivery of the pending changes, posted to the delivery thread. It is kept private, so the deliveries
+         * cannot be triggered from outside of the dispatcher.
+         */
+        private final Runnable mDelivery = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        /**
+         * Creates a subscriber. It receives nothing until it is added to its dispatcher.
+         *
+         * @param dispatcher The dispatcher of the snapshots.
+         * @param deliveryThread Thread of the deliveries, or null to deliver straight on the fusion thread.
+         * @param acceptedChanges The kinds of changes which this subscriber is interested in.
+         */
+        Subscriber(SensorDispatcher dispatcher, DeliveryThread deliveryThread, int acceptedChanges) {
+            mDispatcher = dispatcher;
+            mDeliveryThread = deliveryThread;
+            mAcceptedChanges = acceptedChanges;
+        }
+
+        /**
+         * Delivers changes. Called on the delivery thread.
+         *
+         * @param snapshot The latest published snapshot.
+         * @param changes The kinds of changes since the last delivery.
+         */
+        abstract void onDelivery(CompassSensorSnapshot snapshot, int changes);
+
+        /**
+         * @return The kinds of changes which this subscriber is interested in.
+         */
+        final int getAcceptedChanges() {
+            return mAcceptedChanges;
+        }
+
+        /**
+         * Limits how often the deliveries run. Changes in between are conflated into the next delivery.
+         *
+         * @param rate Maximum number of deliveries per second, or zero for no limit.
+         */
+        final void setMaxDeliveryRate(float rate) {
+            mMinimumInterval = rate > 0 ? (long) (1000000000L / rate) : 0;
+        }
+
+        /**
+         * Ignores bearing and rotation changes which are smaller than an angle, compared with the last ones
+         * delivered.
+         *
+         * @param degrees Minimum change of the bearing, azimuth or device rotation, in degrees.
+         */
+        final void setMinDeliveryAngleChange(float degrees) {
+            mMinimumAngleChange = degrees;
+            mMinimumRotationCosine = Angles.cosDegrees(degrees);
+        }
+
+        /**
+         * Filters the published changes and schedules their delivery, unless a delivery is already pending.
+         * Called on the fusion thread.
+         *
+         * @param published The snapshot which was just published.
+         * @param changes The kinds of changes which were published.
+         */
+        private void post(CompassSensorSnapshot published, int changes) {
+            changes &= mAcceptedChanges;
+            CompassSensorMetrics metrics = mDispatcher.mMetrics;
+            if((changes & SensorFusion.CHANGED_BEARING) != 0 && !acceptBearing(published)) {
+                changes &= ~SensorFusion.CHANGED_BEARING;
+                if(metrics != null) {
+                    metrics.onAngleChangeSuppression();
+                }
+            }
+            if((changes & SensorFusion.CHANGED_ROTATION) != 0 && !acceptRotation(published)) {
+                changes &= ~SensorFusion.CHANGED_ROTATION;
+                if(metrics != null) {
+                    metrics.onAngleChangeSuppression();
+                }
+            }
+            if(changes == 0) {
+                return;
+            }
+
+            int pendingChanges;
+            do {
+                pendingChanges = mPendingChanges.get();
+            } while(!mPendingChanges.compareAndSet(pendingChanges, pendingChanges | changes));
+
+            if(pendingChanges != 0) {
+                // Conflated into the delivery which is already scheduled
+                return;
+            }
+
+            long now = System.nanoTime();
+            long lastDeliveryTime = mLastDeliveryTime;
+            long delay = lastDeliveryTime != 0 ? lastDeliveryTime + mMinimumInterval - now : 0;
+            mDueTime = now + Math.max(0, delay);
+            long delayMillis = (delay + 999999) / 1000000;
+            DeliveryThread deliveryThread = mDeliveryThread != null ? mDeliveryThread : mDispatcher.mFusionThread;
+            if(delayMillis > 0 && deliveryThread != null) {
+                deliveryThread.post(mDelivery, delayMillis);
+            } else if(mDeliveryThread == null) {
+                deliver();
+            } else {
+                mDeliveryThread.post(mDelivery, 0);
+            }
+        }
+
+        private boolean acceptBearing(CompassSensorSnapshot published) {
+            float minimumAngleChange = mMinimumAngleChange;
+            if(minimumAngleChange > 0 && !Float.isNaN(mLastBearingToLocation)
+                    && Math.abs(Angles.shortestArc(mLastBearingToLocation, published.getBearingToLocation())) < minimumAngleChange
+                    && Math.abs(Angles.shortestArc(mLastAzimuth, published.getAzimuth())) < minimumAngleChange) {
+                return false;
+            }
+            mLastBearingToLocation = published.getBearingToLocation();
+            mLastAzimuth = published.getAzimuth();
+            return true;
+        }
+
+        private boolean acceptRotation(CompassSensorSnapshot published) {
+            float[] last = mLastRotationMatrix;
+            float[] current = published.getRotationMatrix();
+            if(current == null) {
+                return false;
+            }
+            if(mMinimumAngleChange > 0 && mHasLastRotation) {
+                // The trace of the relative rotation between both matrices is 1 + 2 * cos(angle)
+                float trace = last[0] * current[0] + last[1] * current[1] + last[2] * current[2]
+                        + last[4] * current[4] + last[5] * current[5] + last[6] * current[6]
+                        + last[8] * current[8] + last[9] * current[9] + last[10] * current[10];
+                if((trace - 1) / 2 > mMinimumRotationCosine) {
+                    return false;
+                }
+            }
+            System.arraycopy(current, 0, last, 0, last.length);
+            mHasLastRotation = true;
+            return true;
+        }
+
+        /**
+         * Delivers the pending changes. Called on the delivery thread.
+         */
+        private void deliver() {
+            long now = System.nanoTime();
+            CompassSensorMetrics metrics = mDispatcher.mMetrics;
+            if(metrics != null) {
+                metrics.onDispatch(now - mDueTime);
+            }
+            mLastDeliveryTime = now;
+            int changes = mPendingChanges.getAndSet(0);
+            if(changes != 0) {
+                onDelivery(mDispatcher.getSnapshot(), changes);
+            }
+        }
+    }
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    // Subscribers. The array is copied on write, so it is dispatched without locks nor iterators.
+    private volatile Subscriber[] mSubscribers = NO_SUBSCRIBERS;
+
+    // Published state
+    private final AtomicReference<CompassSensorSnapshot> mSnapshot =
+            new AtomicReference<>(CompassSensorSnapshot.EMPTY);
+    private long mPublishCount;
+
+    /**
+     * Thread of the fusion, where subscribers without a delivery thread wait for their next delivery.
+     */
+    private volatile DeliveryThread mFusionThread;
+
+    // Metrics, only recorded while set
+    private volatile CompassSensorMetrics mMetrics;
+
+    /**
+     * Sets the thread of the fusion.
+     *
+     * @param fusionThread The thread of the fusion, or null while it is not running.
+     */
+    void setFusionThread(DeliveryThread fusionThread) {
+        mFusionThread = fusionThread;
+    }
+
+    /**
+     * Sets the metrics which record the dispatch latency and the suppressed changes.
+     *
+     * @param metrics The metrics, or null to record nothing.
+     */
+    void setMetrics(CompassSensorMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Adds a subscriber.
+     *
+     * @param subscriber The subscriber, which must have been created for this dispatcher.
+     */
+    synchronized void add(Subscriber subscriber) {
+        Subscriber[] subscribers = Arrays.copyOf(mSubscribers, mSubscribers.length + 1);
+        subscribers[subscribers.length - 1] = subscriber;
+        mSubscribers = subscribers;
+    }
+
+    /**
+     * Removes a subscriber. Deliveries which were already scheduled on its thread may still run.
+     *
+     * @param subscriber The subscriber.
+     * @return Whether the subscriber was found.
+     */
+    synchronized boolean remove(Subscriber subscriber) {
+        Subscriber[] subscribers = mSubscribers;
+        for(int i = 0; i < subscribers.length; i++) {
+            if(subscribers[i] == subscriber) {
+                Subscriber[] newSubscribers = new Subscriber[subscribers.length - 1];
+                System.arraycopy(subscribers, 0, newSubscribers, 0, i);
+                System.arraycopy(subscribers, i + 1, newSubscribers, i, newSubscribers.length - i);
+                mSubscribers = newSubscribers;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes every subscriber.
+     */
+    synchronized void clear() {
+        mSubscribers = NO_SUBSCRIBERS;
+    }
+
+    /**
+     * @return The current subscribers. The array must not be modified.
+     */
+    Subscriber[] getSubscribers() {
+        return mSubscribers;
+    }
+
+    /**
+     * @return The kinds of changes which the subscribers are interested in.
+     */
+    int getAcceptedChanges() {
+        int changes = 0;
+        Subscriber[] subscribers = mSubscribers;
+        for(int i = 0; i < subscribers.length; i++) {
+            changes |= subscribers[i].mAcceptedChanges;
+        }
+        return changes;
+    }
+
+    /**
+     * Publishes the results of a fusion pass, and hands them to the subscribers interested in the changes.
+     * Must be called on the fusion thread.
+     *
+     * @param fusion The fusion core.
+     * @param changes The kinds of changes which were fused.
+     */
+    void publish(SensorFusion fusion, int changes) {
+        CompassSensorSnapshot snapshot = CompassSensorSnapshot.of(fusion);
+        mSnapshot.set(snapshot);
+        mPublishCount++;
+
+        Subscriber[] subscribers = mSubscribers;
+        for(int i = 0; i < subscribers.length; i++) {
+            subscribers[i].post(snapshot, changes);
+        }
+    }
+
+    /**
+     * Hands the latest published state to a subscriber, so it does not wait for the next change.
+     * Must be called on the fusion thread.
+     *
+     * @param subscriber The subscriber.
+     */
+    void postLatest(Subscriber subscriber) {
+        CompassSensorSnapshot published = mSnapshot.get();
+        int changes = (published.getLocation() != null ? SensorFusion.CHANGED_LOCATION : 0)
+                | (!Float.isNaN(published.getBearingToLocation()) ? SensorFusion.CHANGED_BEARING : 0)
+                | (published.getRotationMatrix() != null ? SensorFusion.CHANGED_ROTATION : 0);
+        if(changes != 0) {
+            subscriber.post(published, changes);
+        }
+    }
+
+    /**
+     * Reads the latest published state, without blocking. This method can be called from any thread.
+     *
+     * @return The latest published snapshot.
+     */
+    CompassSensorSnapshot getSnapshot() {
+        return mSnapshot.get();
+    }
+
+    /**
+     * @return The number of published snapshots, one per fusion pass which changed anything. Only read it on the
+     *         fusion thread.
+     */
+    long getPublishCount() {
+        return mPublishCount;
+    }
+}
@@ -0,0 +1,604 @@
+package com.arecmetafora.getmethere;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.location.Location;
+
+/**
+ * Fusion core of the {@link CompassSensor}: turns sensor samples and location fixes into the bearing to the
+ * tracked location, the azimuth, the pitch and the device rotation.
+ * <p>
+ * It owns no thread, no sensor registration and no listener, so the very same pipeline fuses the live inputs
+ * of the compass sensor, replayed recordings and, since it only needs the math of the framework, inputs fed by
+ * tests and benchmarks on a plain JVM. As a {@link SensorReplayer.Target}, every input is fused right away.
+ * <p>
+ * Except for its setters, it must be used by a single thread.
+ */
+public final class SensorFusion implements SensorReplayer.Target {
+
+    /**
+     * Receiver of the fusion results.
+     */
+    interface Callback {
+
+        /**
+         * Called at the end of every fusion pass which changed something.
+         *
+         * @param changes The kinds of changes which were fused.
+         */
+        void onFused(int changes);
+
+        /**
+         * Called after a location fix was fused.
+         *
+         * @param location The location fix, which may be reused by the caller.
+         */
+        void onLocationFix(Location location);
+    }
+
+    private static final Callback NO_CALLBACK = new Callback() {
+        @Override
+        public void onFused(int changes) {
+        }
+
+        @Override
+        public void onLocationFix(Location location) {
+        }
+    };
+
+    // Kinds of changes of a fusion pass
+    static final int CHANGED_LOCATION = 1;
+    static final int CHANGED_BEARING = 1 << 1;
+    static final int CHANGED_ROTATION = 1 << 2;
+
+    /**
+     * Bounds of the bearing dead-band, in degrees. Within them, its width follows the measured azimuth noise.
+     */
+    private static final float MINIMUM_DEAD_BAND = 0.5f;
+    private static final float MAXIMUM_DEAD_BAND = 5;
+
+    /**
+     * Width of the bearing dead-band, in multiples of the measured azimuth noise.
+     */
+    private static final float DEAD_BAND_NOISE_MULTIPLIER = 3;
+
+    /**
+     * Minimum time between the bearing passes of rotation vector samples, in nanoseconds. The rotation vector
+     * is delivered as fast as possible to the rotation listeners, but the bearing keeps the rate of the
+     * gravity and magnetometer streams (a sample every 200 ms), less a margin for the event jitter.
+     */
+    private static final long MINIMUM_BEARING_INTERVAL = 180000000L;
+
+    /**
+     * Number of samples kept of each sensor stream, to align them in time.
+     */
+    private static final int SENSOR_SAMPLE_CAPACITY = 8;
+
+    private final Callback mCallback;
+
+    // Location
+    private Location mCurrentLocation;
+    private final Location mLocationBuffer = new Location("");
+    private volatile Location mLocationToTrack;
+    private int mMagneticFieldSensorAccuracy = SensorManager.SENSOR_STATUS_ACCURACY_HIGH;
+
+    // Orientation sensors
+    private volatile boolean mBearingFromRotationVector;
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mRotationMatrixFromVector = new float[16];
+    private final float[] mOrientationData = new float[3];
+    private boolean mGravityFromAccelerometer = true;
+    private final SensorSampleBuffer mGravitySamples = new SensorSampleBuffer(3, SENSOR_SAMPLE_CAPACITY);
+    private final SensorSampleBuffer mMagneticFieldSamples = new SensorSampleBuffer(3, SENSOR_SAMPLE_CAPACITY);
+    private final float[] mGravityData = new float[3];
+    private final float[] mMagneticFieldData = new float[3];
+    private float[] mRotationVectorData;
+    private long mRotationVectorTimestamp;
+    private long mNextBearingTimestamp;
+
+    // Position interpolation between location fixes
+    private volatile float mPositionInterpolationRate;
+    private final DeadReckoning mDeadReckoning = new DeadReckoning();
+    private long mLastInterpolationTimestamp;
+
+    // Orientation filter stage
+    private volatile AngleFilter mAzimuthFilter = new KalmanAngleFilter(30, 4);
+    private AngleFilter mCurrentAzimuthFilter;
+    private boolean mHasFilteredAzimuth;
+    private long mFilteredTimestamp;
+    private final AdaptiveDeadBand mBearingDeadBand =
+            new AdaptiveDeadBand(DEAD_BAND_NOISE_MULTIPLIER, MINIMUM_DEAD_BAND, MAXIMUM_DEAD_BAND);
+    private float mTargetBearing = Float.NaN;
+
+    // Fusion results
+    private float mBearingToLocation = Float.NaN;
+    private float mAzimuth = Float.NaN;
+    private float mPitch = Float.NaN;
+    private boolean mHasRotation;
+    private long mOrientationTimestamp;
+    private int mChanges;
+
+    // Metrics, only recorded while set
+    private volatile CompassSensorMetrics mMetrics;
+
+    // Counters of the fusion work, written only by the fusing thread
+    private volatile long mInputEventCount;
+    private volatile long mFusionPassCount;
+    private volatile long mBearingPassCount;
+
+    /**
+     * Creates a fusion core whose results are only read through its getters.
+     */
+    public SensorFusion() {
+        this(NO_CALLBACK);
+    }
+
+    /**
+     * Creates a fusion core.
+     *
+     * @param callback Receiver of the fusion results.
+     */
+    SensorFusion(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Sets the location to track. This method can be called from any thread.
+     *
+     * @param locationToTrack The location which the bearing is calculated to, or null to fuse no bearing.
+     */
+    public void setLocationToTrack(Location locationToTrack) {
+        mLocationToTrack = locationToTrack;
+    }
+
+    /**
+     * Sets the filter of the azimuth. This method can be called from any thread.
+     *
+     * @param azimuthFilter The azimuth filter, or null to use the raw azimuth.
+     */
+    public void setAzimuthFilter(AngleFilter azimuthFilter) {
+        mAzimuthFilter = azimuthFilter;
+    }
+
+    /**
+     * Sets whether the bearing is derived from the rotation vector, instead of the gravity and magnetometer
+     * streams. This method can be called from any thread.
+     */
+    void setBearingFromRotationVector(boolean bearingFromRotationVector) {
+        mBearingFromRotationVector = bearingFromRotationVector;
+    }
+
+    /**
+     * Sets the rate of the positions interpolated between location fixes. This method can be called from any
+     * thread.
+     *
+     * @param rate Maximum rate of the interpolated positions, in hertz, or 0 to only fuse location fixes.
+     */
+    void setPositionInterpolationRate(float rate) {
+        mPositionInterpolationRate = rate;
+    }
+
+    /**
+     * @return The rate of the positions interpolated between location fixes, in hertz.
+     */
+    float getPositionInterpolationRate() {
+        return mPositionInterpolationRate;
+    }
+
+    /**
+     * Sets the metrics where the inputs and the fusion passes are recorded. This method can be called from any
+     * thread.
+     *
+     * @param metrics The metrics, or null to record nothing.
+     */
+    void setMetrics(CompassSensorMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Resets the fusion state, as if no input was ever received. The counters are kept.
+     */
+    public void reset() {
+        mCurrentLocation = null;
+        mGravitySamples.clear();
+        mMagneticFieldSamples.clear();
+        mRotationVectorData = null;
+        mNextBearingTimestamp = 0;
+        mGravityFromAccelerometer = true;
+        mDeadReckoning.reset();
+        mLastInterpolationTimestamp = 0;
+        mCurrentAzimuthFilter = null;
+        mHasFilteredAzimuth = false;
+        mBearingDeadBand.reset();
+        mTargetBearing = Float.NaN;
+        mBearingToLocation = Float.NaN;
+        mAzimuth = Float.NaN;
+        mPitch = Float.NaN;
+        mHasRotation = false;
+        mOrientationTimestamp = 0;
+        mChanges = 0;
+    }
+
+    /**
+     * Fuses a sensor sample right away.
+     */
+    @Override
+    public void onSensorSample(int sensorType, long timestamp, float[] values) {
+        if(addSensorSample(sensorType, timestamp, values)) {
+            fuseBearing();
+        }
+    }
+
+    /**
+     * Adds a sensor sample. Rotation vector samples are fused right away, but the bearing pass of gravity and
+     * magnetometer samples is left to the caller, so it can fuse a burst of them only once. Event values are
+     * copied with their timestamps, since they are reused by the caller.
+     *
+     * @param sensorType Type of the sensor.
+     * @param timestamp Timestamp of the event, in nanoseconds.
+     * @param values Values of the event.
+     * @return Whether a bearing pass is pending, to be run by {@link #fuseBearing()}.
+     */
+    boolean addSensorSample(int sensorType, long timestamp, float[] values) {
+
+        mInputEventCount++;
+        CompassSensorMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onEvent(getMetricsStream(sensorType));
+        }
+
+        if(sensorType == Sensor.TYPE_ACCELEROMETER && mPositionInterpolationRate > 0) {
+            onAccelerationSample(timestamp, values);
+        }
+
+        // Ignore low quality data
+        if(mMagneticFieldSensorAccuracy < SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
+            if(metrics != null) {
+                metrics.onLowAccuracyDrop();
+            }
+            return false;
+        }
+
+        switch (sensorType) {
+            case Sensor.TYPE_GRAVITY:
+                // The gravity sensor takes over the accelerometer, which may still be used to detect steps
+                if(mGravityFromAccelerometer) {
+                    mGravityFromAccelerometer = false;
+                    mGravitySamples.clear();
+                }
+                mGravitySamples.add(timestamp, values);
+                return !mBearingFromRotationVector;
+            case Sensor.TYPE_ACCELEROMETER:
+                if(mGravityFromAccelerometer) {
+                    mGravitySamples.add(timestamp, values);
+                    return !mBearingFromRotationVector;
+                }
+                return false;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                mMagneticFieldSamples.add(timestamp, values);
+                return !mBearingFromRotationVector;
+            case Sensor.TYPE_ROTATION_VECTOR:
+                // Its length depends on the device, so the copy is allocated once with the right size
+                if(mRotationVectorData == null || mRotationVectorData.length != values.length) {
+                    mRotationVectorData = new float[values.length];
+                }
+                System.arraycopy(values, 0, mRotationVectorData, 0, mRotationVectorData.length);
+                mRotationVectorTimestamp = timestamp;
+
+                // The bearing stages are throttled by the event time, so a replay is throttled the same way
+                boolean bearing = mBearingFromRotationVector && timestamp >= mNextBearingTimestamp;
+                if(bearing) {
+                    mNextBearingTimestamp = timestamp + MINIMUM_BEARING_INTERVAL;
+                }
+                fuse(bearing, true);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Fuses the bearing sensor samples added since the last pass.
+     */
+    void fuseBearing() {
+        fuse(true, false);
+    }
+
+    /**
+     * Fuses a location fix right away. The fix is copied, since it may be reused by the caller.
+     */
+    @Override
+    public void onLocationSample(Location location) {
+        mInputEventCount++;
+        CompassSensorMetrics metrics = mMetrics;
+        if(metrics != null) {
+            metrics.onEvent(CompassSensorMetrics.STREAM_LOCATION);
+        }
+        mLocationBuffer.set(location);
+        mCurrentLocation = mLocationBuffer;
+        mDeadReckoning.onFix(location.getLatitude(), location.getLongitude(),
+                location.hasAccuracy() ? location.getAccuracy() : 0);
+        mChanges |= CHANGED_LOCATION;
+        fuse(true, true);
+        mCallback.onLocationFix(location);
+    }
+
+    @Override
+    public void onSensorAccuracyChanged(int sensorType, int accuracy) {
+        if(sensorType == Sensor.TYPE_MAGNETIC_FIELD) {
+            CompassSensorMetrics metrics = mMetrics;
+            if(metrics != null && accuracy < SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM
+                    && mMagneticFieldSensorAccuracy >= SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM) {
+                metrics.onLowAccuracyChange();
+            }
+            mMagneticFieldSensorAccuracy = accuracy;
+        }
+    }
+
+    /**
+     * Called for every accelerometer event, when positions are interpolated between location fixes. The
+     * dead-reckoning position is published at most at the interpolation rate, and only when it moved.
+     *
+     * @param timestamp Timestamp of the event, in nanoseconds.
+     * @param values Acceleration along the device axes.
+     */
+    private void onAccelerationSample(long timestamp, float[] values) {
+        mDeadReckoning.onAcceleration(timestamp, values, mAzimuth);
+
+        float rate = mPositionInterpolationRate;
+        if(mCurrentLocation == null || !mDeadReckoning.hasMoved() || rate <= 0
+                || timestamp - mLastInterpolationTimestamp < (long) (1e9f / rate)) {
+            return;
+        }
+
+        double latitude = mDeadReckoning.getLatitude();
+        double longitude = mDeadReckoning.getLongitude();
+        if(latitude != mLocationBuffer.getLatitude() || longitude != mLocationBuffer.getLongitude()) {
+            mLastInterpolationTimestamp = timestamp;
+            mLocationBuffer.setLatitude(latitude);
+            mLocationBuffer.setLongitude(longitude);
+            mChanges |= CHANGED_LOCATION;
+            fuse(true, false);
+        }
+    }
+
+    /**
+     * @param sensorType Type of the sensor.
+     * @return The metrics stream of the sensor.
+     */
+    private static int getMetricsStream(int sensorType) {
+        switch (sensorType) {
+            case Sensor.TYPE_GRAVITY:
+                return CompassSensorMetrics.STREAM_GRAVITY;
+            case Sensor.TYPE_ACCELEROMETER:
+                return CompassSensorMetrics.STREAM_ACCELEROMETER;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                return CompassSensorMetrics.STREAM_MAGNETIC_FIELD;
+            default:
+                return CompassSensorMetrics.STREAM_ROTATION_VECTOR;
+        }
+    }
+
+    /**
+     * Runs a single fusion pass for an input event, and hands its results to the callback at once.
+     *
+     * @param bearing Whether the input affects the bearing and azimuth.
+     * @param rotation Whether the input affects the rotation.
+     */
+    private void fuse(boolean bearing, boolean rotation) {
+        mFusionPassCount++;
+        CompassSensorMetrics metrics = mMetrics;
+        long start = metrics != null ? System.nanoTime() : 0;
+
+        // Rotation goes first, since the bearing may be derived from it
+        if(rotation) {
+            onRotationSensorChanged();
+        }
+        if(bearing) {
+            mBearingPassCount++;
+            onBearingSensorsChanged();
+        }
+        if(mChanges != 0) {
+            mCallback.onFused(mChanges);
+            mChanges = 0;
+        }
+        if(metrics != null) {
+            metrics.onFusion(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Whenever any sensor related to bearing and azimuth orientation has changed.
+     */
+    private void onBearingSensorsChanged() {
+        Location locationToTrack = mLocationToTrack;
+        if(mCurrentLocation == null || locationToTrack == null) {
+            return;
+        }
+
+        long timestamp;
+        if(mBearingFromRotationVector) {
+            // Orientation was already derived from the rotation vector
+            if(!mHasRotation) {
+                return;
+            }
+            timestamp = mRotationVectorTimestamp;
+        } else {
+            if(mGravitySamples.size() == 0 || mMagneticFieldSamples.size() == 0) {
+                return;
+            }
+
+            // Both streams are aligned to the latest time which both of them have reached
+            timestamp = Math.min(mGravitySamples.getLatestTimestamp(), mMagneticFieldSamples.getLatestTimestamp());
+        }
+
+        // Passes without a newer orientation, such as location fixes, only update the bearing of the tracked
+        // location, so the filter and the dead-band see every orientation sample once
+        float northAzimuth;
+        boolean azimuthChanged = false;
+        if(!mHasFilteredAzimuth || timestamp != mFilteredTimestamp || mAzimuthFilter != mCurrentAzimuthFilter) {
+            if(!mBearingFromRotationVector) {
+                mGravitySamples.interpolate(timestamp, mGravityData);
+                mMagneticFieldSamples.interpolate(timestamp, mMagneticFieldData);
+
+                SensorManager.getRotationMatrix(mRotationMatrix, null, mGravityData, mMagneticFieldData);
+                SensorManager.getOrientation(mRotationMatrix, mOrientationData);
+                mPitch = Angles.toDegrees(mOrientationData[1]);
+            }
+
+            // The declination is taken at the time of the fix, so a replayed recording fuses the same azimuth
+            // whatever day it is replayed on
+            long fixTime = mCurrentLocation.getTime();
+            float declination = DeclinationCache.getDefault().getDeclination(
+                    mCurrentLocation.getLatitude(),
+                    mCurrentLocation.getLongitude(),
+                    mCurrentLocation.getAltitude(), fixTime > 0 ? fixTime : System.currentTimeMillis());
+
+            float rawAzimuth = Angles.wrapDegrees(Angles.toDegrees(mOrientationData[0]) + declination);
+            northAzimuth = filterAzimuth(rawAzimuth, timestamp);
+            mHasFilteredAzimuth = true;
+            mFilteredTimestamp = timestamp;
+            azimuthChanged = mBearingDeadBand.accept(rawAzimuth, northAzimuth);
+        } else {
+            northAzimuth = mAzimuth;
+        }
+
+        float bearing = (float) GeodesicCache.getDefault().solve(
+                mCurrentLocation.getLatitude(), mCurrentLocation.getLongitude(),
+                locationToTrack.getLatitude(), locationToTrack.getLongitude()).getInitialBearing();
+
+        mBearingToLocation = Angles.wrapDegrees(northAzimuth - bearing);
+        mAzimuth = northAzimuth;
+        mOrientationTimestamp = timestamp;
+
+        // Listeners are only notified when the azimuth leaves the dead-band, or when the user moved enough
+        // to change the bearing of the tracked location
+        boolean bearingChanged = Float.isNaN(mTargetBearing)
+                || Math.abs(Angles.shortestArc(mTargetBearing, bearing)) >= mBearingDeadBand.getWidth();
+        if(azimuthChanged || bearingChanged) {
+            mTargetBearing = bearing;
+            mChanges |= CHANGED_BEARING;
+        } else {
+            CompassSensorMetrics metrics = mMetrics;
+            if(metrics != null) {
+                metrics.onDeadBandSuppression();
+            }
+        }
+    }
+
+    /**
+     * Runs the azimuth through the filter stage. The filter is reset whenever it is replaced.
+     *
+     * @param azimuth The raw azimuth, in degrees.
+     * @param timestamp Timestamp of the azimuth, in nanoseconds.
+     * @return The filtered azimuth, in degrees.
+     */
+    private float filterAzimuth(float azimuth, long timestamp) {
+        AngleFilter filter = mAzimuthFilter;
+        if(filter != mCurrentAzimuthFilter) {
+            mCurrentAzimuthFilter = filter;
+            if(filter != null) {
+                filter.reset();
+            }
+        }
+        return filter != null ? filter.filter(azimuth, timestamp) : azimuth;
+    }
+
+    /**
+     * Whenever the rotation vector or the location changes, this method must be called to calculate rotation.
+     */
+    private void onRotationSensorChanged() {
+        if(mRotationVectorData != null && mCurrentLocation != null) {
+            SensorManager.getRotationMatrixFromVector(mRotationMatrixFromVector, mRotationVectorData);
+            SensorManager.getOrientation(mRotationMatrixFromVector, mOrientationData);
+            mPitch = Angles.toDegrees(mOrientationData[1]);
+            mOrientationTimestamp = mRotationVectorTimestamp;
+            mHasRotation = true;
+            mChanges |= CHANGED_ROTATION;
+        }
+    }
+
+    /**
+     * @return The current user location, or null if it is still unknown.
+     */
+    Location getLocation() {
+        return mCurrentLocation;
+    }
+
+    /**
+     * @return The angle between user`s orientation and the tracked location, or NaN if it is still unknown.
+     */
+    public float getBearingToLocation() {
+        return mBearingToLocation;
+    }
+
+    /**
+     * @return Azimuth to north pole, or NaN if it is still unknown.
+     */
+    public float getAzimuth() {
+        return mAzimuth;
+    }
+
+    /**
+     * @return Pitch of the device, in degrees, or NaN if it is still unknown.
+     */
+    public float getPitch() {
+        return mPitch;
+    }
+
+    /**
+     * @return The device rotation matrix, which is only valid when {@link #hasRotation()}.
+     */
+    float[] getRotationMatrix() {
+        return mRotationMatrixFromVector;
+    }
+
+    /**
+     * @return Whether the device rotation is known.
+     */
+    boolean hasRotation() {
+        return mHasRotation;
+    }
+
+    /**
+     * @return Timestamp of the sensor event which produced the current orientation, in nanoseconds.
+     */
+    long getOrientationTimestamp() {
+        return mOrientationTimestamp;
+    }
+
+    /**
+     * @return The speed of the user, in meters per second, measured by the steps detected since the last fix.
+     */
+    float getStepSpeed() {
+        return mDeadReckoning.getSpeed();
+    }
+
+    /**
+     * @return The number of steps detected to interpolate positions between location fixes.
+     */
+    long getStepCount() {
+        return mDeadReckoning.getStepCount();
+    }
+
+    /**
+     * @return The number of sensor events and location fixes received so far.
+     */
+    public long getInputEventCount() {
+        return mInputEventCount;
+    }
+
+    /**
+     * @return The number of fusion passes run so far. There is at most one per input event.
+     */
+    public long getFusionPassCount() {
+        return mFusionPassCount;
+    }
+
+    /**
+     * @return The number of fusion passes which ran the bearing stages so far.
+     */
+    public long getBearingPassCount() {
+        return mBearingPassCount;
+    }
+}
@@ -0,0 +1,209 @@
+package com.arecmetafora.getmethere;
+
+import android.location.Location;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Recorder of the inputs of a {@link CompassSensor}: sensor events, sensor accuracy changes and location fixes.
+ * Recordings are played back by a {@link SensorReplayer}, so the whole pipeline can be reproduced and benchmarked
+ * with real traces.
+ * <p>
+ * The recording is a compact binary stream. It starts with the {@link #MAGIC} number and the {@link #VERSION}
+ * byte, followed by records until the end of the stream. Every record starts with its tag byte and the time
+ * elapsed since the previous record was received, in nanoseconds, as an unsigned variable length integer:
+ * <ul>
+ *     <li>{@link #TAG_SENSOR_EVENT}: the sensor type (variable length), the difference between the event
+ *     timestamp and the previous one (zig-zag variable length, in nanoseconds), the number of values
+ *     (one byte) and the values (4 bytes each).</li>
+ *     <li>{@link #TAG_ACCURACY_CHANGE}: the sensor type (variable length) and the accuracy (one byte).</li>
+ *     <li>{@link #TAG_LOCATION}: a byte of {@code LOCATION_HAS_*} flags, the UTC time in milliseconds (8 bytes),
+ *     the latitude and the longitude (8 bytes each), then the altitude (8 bytes), the accuracy, the speed and
+ *     the bearing (4 bytes each), if flagged.</li>
+ * </ul>
+ * Variable length integers are written 7 bits per byte, least significant first, with the high bit set on
+ * all bytes but the last one. Fixed length numbers are big-endian.
+ * <p>
+ * Recording errors do not interrupt the sensor. Once one happens, the next records are dropped, and it is
+ * reported by {@link #checkError()}.
+ */
+public final class SensorRecorder {
+
+    /**
+     * First bytes of a recording ("GMTR").
+     */
+    static final int MAGIC = 0x474D5452;
+
+    /**
+     * Version of the recording format.
+     */
+    static final int VERSION = 1;
+
+    // Record tags
+    static final int TAG_SENSOR_EVENT = 1;
+    static final int TAG_ACCURACY_CHANGE = 2;
+    static final int TAG_LOCATION = 3;
+
+    // Optional fields of a location record
+    static final int LOCATION_HAS_ALTITUDE = 1;
+    static final int LOCATION_HAS_ACCURACY = 1 << 1;
+    static final int LOCATION_HAS_SPEED = 1 << 2;
+    static final int LOCATION_HAS_BEARING = 1 << 3;
+
+    private final DataOutputStream mOut;
+    private long mLastReceiveTime;
+    private long mLastEventTimestamp;
+    private IOException mError;
+
+    /**
+     * Creates a recorder, writing the recording header.
+     *
+     * @param out Stream where the recording is written to. It is buffered by the recorder.
+     * @throws IOException If the header could not be written.
+     */
+    public SensorRecorder(OutputStream out) throws IOException {
+        mOut = new DataOutputStream(new BufferedOutputStream(out));
+        mOut.writeInt(MAGIC);
+        mOut.writeByte(VERSION);
+        mLastReceiveTime = System.nanoTime();
+    }
+
+    /**
+     * Records a sensor event.
+     *
+     * @param sensorType Type of the sensor, such as {@link android.hardware.Sensor#TYPE_MAGNETIC_FIELD}.
+     * @param timestamp Timestamp of the event, in nanoseconds.
+     * @param values Values of the event.
+     */
+    public synchronized void recordSensorEvent(int sensorType, long timestamp, float[] values) {
+        if(mError != null) {
+            return;
+        }
+        try {
+            writeHeader(TAG_SENSOR_EVENT);
+            writeVarLong(sensorType);
+            long delta = timestamp - mLastEventTimestamp;
+            writeVarLong((delta << 1) ^ (delta >> 63));
+            mLastEventTimestamp = timestamp;
+            int count = Math.min(values.length, 255);
+            mOut.writeByte(count);
+            for(int i = 0; i < count; i++) {
+                mOut.writeFloat(values[i]);
+            }
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Records a change of the accuracy of a sensor.
+     *
+     * @param sensorType Type of the sensor.
+     * @param accuracy The new accuracy, such as {@link android.hardware.SensorManager#SENSOR_STATUS_ACCURACY_HIGH}.
+     */
+    public synchronized void recordAccuracyChange(int sensorType, int accuracy) {
+        if(mError != null) {
+            return;
+        }
+        try {
+            writeHeader(TAG_ACCURACY_CHANGE);
+            writeVarLong(sensorType);
+            mOut.writeByte(accuracy);
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Records a location fix.
+     *
+     * @param location The location fix.
+     */
+    public synchronized void recordLocation(Location location) {
+        if(mError != null) {
+            return;
+        }
+        try {
+            writeHeader(TAG_LOCATION);
+            int flags = (location.hasAltitude() ? LOCATION_HAS_ALTITUDE : 0)
+                    | (location.hasAccuracy() ? LOCATION_HAS_ACCURACY : 0)
+                    | (location.hasSpeed() ? LOCATION_HAS_SPEED : 0)
+                    | (location.hasBearing() ? LOCATION_HAS_BEARING : 0);
+            mOut.writeByte(flags);
+            mOut.writeLong(location.getTime());
+            mOut.writeDouble(location.getLatitude());
+            mOut.writeDouble(location.getLongitude());
+            if((flags & LOCATION_HAS_ALTITUDE) != 0) {
+                mOut.writeDouble(location.getAltitude());
+            }
+            if((flags & LOCATION_HAS_ACCURACY) != 0) {
+                mOut.writeFloat(location.getAccuracy());
+            }
+            if((flags & LOCATION_HAS_SPEED) != 0) {
+                mOut.writeFloat(location.getSpeed());
+            }
+            if((flags & LOCATION_HAS_BEARING) != 0) {
+                mOut.writeFloat(location.getBearing());
+            }
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Writes the buffered records to the underlying stream.
+     */
+    public synchronized void flush() {
+        if(mError != null) {
+            return;
+        }
+        try {
+            mOut.flush();
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+
+    /**
+     * Flushes and closes the recording.
+     *
+     * @throws IOException If the recording failed, now or before.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            mOut.close();
+        } catch (IOException e) {
+            if(mError == null) {
+                mError = e;
+            }
+        }
+        if(mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * @return The first error which happened while recording, or null if there was none.
+     */
+    public synchronized IOException checkError() {
+        return mError;
+    }
+
+    private void writeHeader(int tag) throws IOException {
+        long receiveTime = System.nanoTime();
+        mOut.writeByte(tag);
+        writeVarLong(receiveTime - mLastReceiveTime);
+        mLastReceiveTime = receiveTime;
+    }
+
+    private void writeVarLong(long value) throws IOException {
+        while((value & ~0x7FL) != 0) {
+            mOut.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte((int) value);
+    }
+}
@@ -0,0 +1,194 @@
+package com.arecmetafora.getmethere;
+
+import android.location.Location;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay driver of the recordings made by a {@link SensorRecorder}. It feeds the recorded inputs to a
+ * {@link Target}, either with their original timing or as fast as possible.
+ * <p>
+ * Replays do not allocate per record: the values of sensor events and the location fixes are kept in buffers
+ * reused by the next records, so targets must copy what they keep.
+ */
+public final class SensorReplayer {
+
+    /**
+     * Receiver of the replayed inputs. Its methods are called on the thread which runs the replay.
+     */
+    public interface Target {
+
+        /**
+         * Called for every replayed sensor event.
+         *
+         * @param sensorType Type of the sensor.
+         * @param timestamp Timestamp of the event, in nanoseconds.
+         * @param values Values of the event. The array is reused by the next events.
+         */
+        void onSensorSample(int sensorType, long timestamp, float[] values);
+
+        /**
+         * Called for every replayed change of the accuracy of a sensor.
+         *
+         * @param sensorType Type of the sensor.
+         * @param accuracy The new accuracy.
+         */
+        void onSensorAccuracyChanged(int sensorType, int accuracy);
+
+        /**
+         * Called for every replayed location fix.
+         *
+         * @param location The location fix. The instance is reused by the next fixes.
+         */
+        void onLocationSample(Location location);
+    }
+
+    /**
+     * Provider of the replayed location fixes.
+     */
+    public static final String PROVIDER = "replay";
+
+    private final DataInputStream mIn;
+
+    // Buffers of sensor values, by their number of values
+    private final float[][] mValues = new float[256][];
+    private final Location mLocation = new Location(PROVIDER);
+
+    /**
+     * Creates a replay driver, reading the recording header.
+     *
+     * @param in Stream where the recording is read from. It is buffered by the replayer.
+     * @throws IOException If the stream is not a supported recording.
+     */
+    public SensorReplayer(InputStream in) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(in));
+        if(mIn.readInt() != SensorRecorder.MAGIC) {
+            throw new IOException("Not a sensor recording");
+        }
+        int version = mIn.readUnsignedByte();
+        if(version != SensorRecorder.VERSION) {
+            throw new IOException("Unsupported sensor recording version: " + version);
+        }
+    }
+
+    /**
+     * Replays the recording until its end, on the calling thread.
+     *
+     * @param target Receiver of the replayed inputs.
+     * @param realTime True to keep the time recorded between inputs, or false to replay them as fast as possible.
+     * @return The number of replayed records.
+     * @throws IOException If the recording could not be read, it is corrupted, or the replay was interrupted.
+     */
+    public int replay(Target target, boolean realTime) throws IOException {
+        int count = 0;
+        long eventTimestamp = 0;
+        long dueTime = System.nanoTime();
+
+        while(true) {
+            int tag = mIn.read();
+            if(tag < 0) {
+                return count;
+            }
+
+            try {
+                dueTime += readVarLong();
+                switch (tag) {
+                    case SensorRecorder.TAG_SENSOR_EVENT: {
+                        int sensorType = (int) readVarLong();
+                        long delta = readVarLong();
+                        eventTimestamp += (delta >>> 1) ^ -(delta & 1);
+                        int length = mIn.readUnsignedByte();
+                        float[] values = mValues[length];
+                        if(values == null) {
+                            values = mValues[length] = new float[length];
+                        }
+                        for(int i = 0; i < length; i++) {
+                            values[i] = mIn.readFloat();
+                        }
+                        waitUntil(realTime, dueTime);
+                        target.onSensorSample(sensorType, eventTimestamp, values);
+                        break;
+                    }
+                    case SensorRecorder.TAG_ACCURACY_CHANGE: {
+                        int sensorType = (int) readVarLong();
+                        int accuracy = mIn.readUnsignedByte();
+                        waitUntil(realTime, dueTime);
+                        target.onSensorAccuracyChanged(sensorType, accuracy);
+                        break;
+                    }
+                    case SensorRecorder.TAG_LOCATION: {
+                        readLocation(mLocation);
+                        waitUntil(realTime, dueTime);
+                        target.onLocationSample(mLocation);
+                        break;
+                    }
+                    default:
+                        throw new IOException("Corrupted sensor recording: unknown record " + tag);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Truncated sensor recording");
+            }
+            count++;
+        }
+    }
+
+    /**
+     * Closes the recording stream.
+     *
+     * @throws IOException If the stream could not be closed.
+     */
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    private void readLocation(Location location) throws IOException {
+        int flags = mIn.readUnsignedByte();
+        location.reset();
+        location.setProvider(PROVIDER);
+        location.setTime(mIn.readLong());
+        location.setLatitude(mIn.readDouble());
+        location.setLongitude(mIn.readDouble());
+        if((flags & SensorRecorder.LOCATION_HAS_ALTITUDE) != 0) {
+            location.setAltitude(mIn.readDouble());
+        }
+        if((flags & SensorRecorder.LOCATION_HAS_ACCURACY) != 0) {
+            location.setAccuracy(mIn.readFloat());
+        }
+        if((flags & SensorRecorder.LOCATION_HAS_SPEED) != 0) {
+            location.setSpeed(mIn.readFloat());
+        }
+        if((flags & SensorRecorder.LOCATION_HAS_BEARING) != 0) {
+            location.setBearing(mIn.readFloat());
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = mIn.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted sensor recording: malformed number");
+    }
+
+    private static void waitUntil(boolean realTime, long dueTime) throws InterruptedIOException {
+        if(realTime) {
+            long delay;
+            while((delay = dueTime - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+                if(Thread.interrupted()) {
+                    throw new InterruptedIOException("Sensor replay interrupted");
+                }
+            }
+        }
+    }
+}
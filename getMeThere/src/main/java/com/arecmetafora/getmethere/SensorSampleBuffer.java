@@ -0,0 +1,120 @@
+package com.arecmetafora.getmethere;
+
+/**
+ * Ring buffer of the latest samples of a sensor, stored in primitive arrays together with their timestamps.
+ * <p>
+ * Samples are copied, since the framework reuses the values of its sensor events, and can be interpolated at
+ * any timestamp, so streams sampled at different times can be aligned before being fused.
+ * <p>
+ * This class is not thread safe.
+ */
+final class SensorSampleBuffer {
+
+    private final int mDimension;
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final float[] mValues;
+
+    /**
+     * Position of the next sample to be written.
+     */
+    private int mHead;
+    private int mSize;
+
+    /**
+     * Creates a sensor sample buffer.
+     *
+     * @param dimension Number of values of each sample.
+     * @param capacity Number of samples which are kept.
+     */
+    SensorSampleBuffer(int dimension, int capacity) {
+        mDimension = dimension;
+        mCapacity = capacity;
+        mTimestamps = new long[capacity];
+        mValues = new float[capacity * dimension];
+    }
+
+    /**
+     * Copies a sample into the buffer, discarding the oldest one when full.
+     * Samples older than the latest one are ignored.
+     *
+     * @param timestamp Timestamp of the sample, in nanoseconds.
+     * @param values Values of the sample. Only the first {@code dimension} values are copied.
+     */
+    void add(long timestamp, float[] values) {
+        if(mSize > 0 && timestamp < getLatestTimestamp()) {
+            return;
+        }
+        mTimestamps[mHead] = timestamp;
+        System.arraycopy(values, 0, mValues, mHead * mDimension, mDimension);
+        mHead = (mHead + 1) % mCapacity;
+        if(mSize < mCapacity) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Discards all samples.
+     */
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of samples in the buffer.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Timestamp of the latest sample, in nanoseconds. The buffer must not be empty.
+     */
+    long getLatestTimestamp() {
+        return mTimestamps[index(mSize - 1)];
+    }
+
+    /**
+     * Linearly interpolates the samples at a timestamp. Timestamps out of the buffered range are clamped to the
+     * oldest or the latest sample, since extrapolating noisy sensors only amplifies the noise.
+     *
+     * @param timestamp The timestamp, in nanoseconds.
+     * @param values Array where the interpolated values will be written.
+     * @return False if the buffer is empty.
+     */
+    boolean interpolate(long timestamp, float[] values) {
+        if(mSize == 0) {
+            return false;
+        }
+
+        // Latest samples are the most likely to be asked, so the search goes backwards
+        int newer = mSize - 1;
+        while(newer > 0 && mTimestamps[index(newer - 1)] >= timestamp) {
+            newer--;
+        }
+
+        int newerOffset = index(newer) * mDimension;
+        long newerTimestamp = mTimestamps[index(newer)];
+        if(newer == 0 || timestamp >= newerTimestamp) {
+            System.arraycopy(mValues, newerOffset, values, 0, mDimension);
+            return true;
+        }
+
+        int olderOffset = index(newer - 1) * mDimension;
+        long olderTimestamp = mTimestamps[index(newer - 1)];
+        float fraction = (float) (timestamp - olderTimestamp) / (newerTimestamp - olderTimestamp);
+        for(int i = 0; i < mDimension; i++) {
+            float older = mValues[olderOffset + i];
+            values[i] = older + (mValues[newerOffset + i] - older) * fraction;
+        }
+        return true;
+    }
+
+    /**
+     * Converts the position of a sample, from the oldest (zero) to the latest, into its index in the arrays.
+     */
+    private int index(int position) {
+        return (mHead - mSize + position + mCapacity) % mCapacity;
+    }
+}